@@ -30,8 +30,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -40,13 +40,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import eu.fistar.sdcs.pa.common.Capabilities;
 import eu.fistar.sdcs.pa.common.IProtocolAdapter;
@@ -57,34 +60,147 @@ import eu.fistar.sdcs.pa.common.DeviceDescription;
 import eu.fistar.sdcs.pa.common.Observation;
 import eu.fistar.sdcs.pa.common.IDeviceAdapterListener;
 import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+import eu.fistar.sdcs.pa.da.CommandExecutor;
+import eu.fistar.sdcs.pa.da.CommandRequest;
+import eu.fistar.sdcs.pa.da.ConnectionScheduler;
+import eu.fistar.sdcs.pa.da.DAFanOut;
+import eu.fistar.sdcs.pa.da.DADiscovery;
+import eu.fistar.sdcs.pa.da.DADiscoveryCache;
+import eu.fistar.sdcs.pa.da.DAInfoCache;
+import eu.fistar.sdcs.pa.da.DASelector;
+import eu.fistar.sdcs.pa.da.DeviceList;
+import eu.fistar.sdcs.pa.da.DeviceListJournal;
+import eu.fistar.sdcs.pa.da.DeviceListSync;
+import eu.fistar.sdcs.pa.da.DevicePatternTrie;
+import eu.fistar.sdcs.pa.da.DeviceRoutingIndex;
+import eu.fistar.sdcs.pa.da.PairedDeviceCache;
+import eu.fistar.sdcs.pa.data.JournalReplayer;
+import eu.fistar.sdcs.pa.data.ObservationBatcher;
+import eu.fistar.sdcs.pa.data.ObservationHistory;
+import eu.fistar.sdcs.pa.data.ObservationJournal;
+import eu.fistar.sdcs.pa.data.ObservationLogger;
+import eu.fistar.sdcs.pa.data.OverflowPolicy;
+import eu.fistar.sdcs.pa.data.StreamFilter;
+import eu.fistar.sdcs.pa.data.StreamPolicy;
+import eu.fistar.sdcs.pa.data.TransactionSizeLimiter;
+import eu.fistar.sdcs.pa.data.WindowAggregator;
+import eu.fistar.sdcs.pa.dispatch.StripedExecutor;
+import eu.fistar.sdcs.pa.dispatch.SubscriberFilter;
+import eu.fistar.sdcs.pa.dispatch.SubscriberRegistry;
 
 /**
  * This class is the implementation of the Protocol Adapter. It is a bound service which can,
  * in turn, bind other services (the Device Adapters). It implements both the IProtocolAdapter
  * interface for communication with the application, and the IDeviceAdapterListener interface for
- * communication with Device Adapters.
+ * communication with Device Adapters. The features not covered by IProtocolAdapter are offered
+ * to the application through IProtocolAdapterExt, returned when binding with ACTION_BIND_EXT.
  *
  * @author Marcello Morena
  * @author Alexandru Serbanati
  */
 public class PAManagerService extends Service {
 
-    // SharedPreferences related constants
+    // Action of the Intent used to bind the PA to get its extended API (IProtocolAdapterExt)
+    public final static String ACTION_BIND_EXT = "eu.fistar.sdcs.pa.BIND_EXT";
+
+    // Extras that can be set in the Intent used to bind the PA to tune the observation batches
+    public final static String EXTRA_BATCH_MAX_SIZE = "batchMaxSize";
+    public final static String EXTRA_BATCH_MAX_DELAY = "batchMaxDelay";
+
+    // Extras that can be set in the Intent used to bind the PA to bound the observation queues
+    public final static String EXTRA_QUEUE_CAPACITY = "queueCapacity";
+    public final static String EXTRA_QUEUE_POLICY = "queuePolicy";
+    public final static String EXTRA_QUEUE_MAX_BLOCK_TIME = "queueMaxBlockTime";
+
+    // Extra that can be set in the Intent used to bind the PA to limit the size of data pushes
+    public final static String EXTRA_MAX_TRANSACTION_SIZE = "maxTransactionSize";
+
+    // Extras that can be set in the Intent used to bind the PA to control data path diagnostics
+    public final static String EXTRA_DEBUG_DATA = "debugData";
+    public final static String EXTRA_DATA_LOG_SAMPLING = "dataLogSampling";
+
+    // Extra of the binding Intent setting the number of recent observations kept for every property
+    public final static String EXTRA_HISTORY_CAPACITY = "historyCapacity";
+
+    // Extra of the binding Intent setting the time the DAs have to answer a request sent to all of them
+    public final static String EXTRA_DA_DEADLINE = "daDeadline";
+
+    // Prefix of the log messages reporting the outcome of asynchronous commands, followed by
+    // "<command ID> <COMPLETED|FAILED|TIMEOUT> on device <Device ID> (<command>)[: <detail>]"
+    public final static String COMMAND_RESULT_PREFIX = "Command ";
+
+    // Extras of the binding Intent limiting the connection attempts of the bulk requests
+    public final static String EXTRA_MAX_CONNECTIONS_PER_DA = "maxConnectionsPerDa";
+    public final static String EXTRA_CONNECTION_TIMEOUT = "connectionTimeout";
+
+    // Prefix of the log messages reporting the progress of bulk connection requests, followed by
+    // "<request ID> <CONNECTED|DISCONNECTED|FAILED|TIMEOUT> on device <Device ID> (<done>/<total>)[: <detail>]"
+    public final static String CONNECTION_PROGRESS_PREFIX = "Connection ";
+
+    // Log messages notifying the applications of the discovery: "<prefix><DA ID>" for every DA
+    // found and "<finished> (<number> Device Adapters)" at the end
+    public final static String DA_FOUND_PREFIX = "Device Adapter found: ";
+    public final static String DA_DISCOVERY_FINISHED = "Device Adapter discovery finished";
+
+    // Log messages notifying the applications that the package of a DA was updated or removed, followed by the DA ID
+    public final static String DA_UPDATED_PREFIX = "Device Adapter updated: ";
+    public final static String DA_REMOVED_PREFIX = "Device Adapter removed: ";
+
+    // Maximum time to wait for the pending callbacks to be delivered when the PA is destroyed
+    private final static long DISPATCHER_SHUTDOWN_TIMEOUT = 1000L;
+
+    // Name of the directory holding the observation journal
+    private final static String JOURNAL_DIRNAME = "journal";
+
+    // Name of the directory holding the journal of the white/black lists
+    private final static String LISTS_DIRNAME = "lists";
+
+    // Name of the directory holding the cache of the discovered DAs
+    private final static String DISCOVERY_DIRNAME = "discovery";
+
+    // SharedPreferences related constants, where the white/black lists were saved by older versions
     private final static String SHPREF_FILENAME = "listSync";
     private final static String SHPREF_WHITELIST_NAME = "whitelist";
     private final static String SHPREF_BLACKLIST_NAME = "blacklist";
 
+    // Maximum number of changes of a list sent to the DAs one by one, beyond that the whole list is sent
+    private final static int MAX_LIST_DELTA = 256;
+
     // Variables for storing white/black lists
-    private final List<String> blacklist = new CopyOnWriteArrayList<>();
-    private final List<String> whitelist = new CopyOnWriteArrayList<>();
+    private final DeviceList blacklist = new DeviceList();
+    private final DeviceList whitelist = new DeviceList();
+    private DeviceListSync listSync;
+    private DeviceListJournal listJournal;
+    private final Set<String> discoveredDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Variables for Device Adapter discovery
+    private DADiscovery discovery;
+    private DADiscoveryCache discoveryCache;
+    private final Set<String> restartAfterUpdate = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     // Variables for Device Adapter management
     private Map<String, Capabilities> availableDAs = new ConcurrentHashMap<>(); // <[DA ID], [DACapabilities]>
     private Map<String, IDeviceAdapter> connectedDAs = new ConcurrentHashMap<>(); // <[DA ID], [DAInstance]>
     private Map<String, DAConnection> daConnections = new ConcurrentHashMap<>(); // <[DA ID], [DAConnection]>
+    private final DeviceRoutingIndex deviceRouting = new DeviceRoutingIndex();
+    private final PairedDeviceCache pairedDevices = new PairedDeviceCache();
+    private final DAFanOut fanOut = new DAFanOut("PA fan-out");
+    private final DAInfoCache daInfo = new DAInfoCache();
+    private final DASelector daSelector = new DASelector();
+    private CommandExecutor commands;
+    private ConnectionScheduler connections;
 
     // Variables for Application Management
-    private IProtocolAdapterListener appApi;
+    private final SubscriberRegistry subscribers = new SubscriberRegistry();
+    private ObservationBatcher batcher;
+    private final StripedExecutor dispatcher = new StripedExecutor("PA dispatcher");
+    private final TransactionSizeLimiter sizeLimiter = new TransactionSizeLimiter();
+    private final StreamFilter streamFilter = new StreamFilter();
+    private final ObservationLogger dataLogger = new ObservationLogger(BuildConfig.DEBUG, 0);
+    private final ObservationHistory history = new ObservationHistory();
+    private WindowAggregator aggregator;
+    private ObservationJournal journal;
+    private JournalReplayer journalReplayer;
 
     // Variables for Protocol Adapter management
     private boolean firstStart = true;
@@ -103,16 +219,29 @@ public class PAManagerService extends Service {
 
             List<DeviceDescription> connectedDev = new ArrayList<DeviceDescription>();
 
-            // Scan all connected DAs
+            // Select the connected DAs having access to connected devices
+            List<String> targets = new ArrayList<String>();
             for (String tmpDaName : connectedDAs.keySet()) {
 
                 // Retrieve the Capabilities of the DA
                 Capabilities cap = availableDAs.get(tmpDaName);
 
-                // If the DA has access to connected devices, add its devices to the general list
-                if (cap.isCommunicationInitiator()) {
-                    connectedDev.addAll(connectedDAs.get(tmpDaName).getConnectedDevices());
+                if (cap != null && cap.isCommunicationInitiator()) {
+                    targets.add(tmpDaName);
+                }
+            }
+
+            // Ask all of them concurrently and add their devices to the general list
+            DAFanOut.Result<List<DeviceDescription>> result = fanOut.invoke(targets, connectedDAs, new DAFanOut.Call<List<DeviceDescription>>() {
+                @Override
+                public List<DeviceDescription> call(String daId, IDeviceAdapter da) throws RemoteException {
+                    return da.getConnectedDevices();
                 }
+            });
+            reportIncomplete("getConnectedDevices", result);
+
+            for (List<DeviceDescription> daDevices : result.getResults().values()) {
+                if (daDevices != null) connectedDev.addAll(daDevices);
             }
 
             // Return the list of devices
@@ -131,43 +260,8 @@ public class PAManagerService extends Service {
         public Map<String, List<String>> getDADevices() throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Fetching paired devices address");
 
-            Map<String, List<String>> daDev = new HashMap<String, List<String>>();
-
-            // For each connected DA...
-            for (IDeviceAdapter tmpDa : connectedDAs.values()) {
-
-                // ... retrieve the Capabilities of the DA...
-                Capabilities cap = tmpDa.getDACapabilities();
-
-                // ... then if it can provide the paired devices...
-                if (cap.canProvideAvailableDevice()) {
-
-                    // ... retrieve all the managed paired devices and the DA ID...
-                    List<String> daPairedDev = tmpDa.getPairedDevicesAddress();
-                    String daId = cap.getPackageName();
-
-                    // ... and for each device...
-                    for (String dev : daPairedDev) {
-
-                        // ... check if it's already contained in the original HashMap...
-                        List<String> daHandlingDevice = daDev.get(dev);
-
-                        // ... if so, then add the actual DA to the list of DAs handling this device
-                        if (daHandlingDevice != null) {
-                            daHandlingDevice.add(daId);
-                        }
-                        // Otherwise create a new entry in the map for the device
-                        else {
-                            daHandlingDevice = new ArrayList<String>();
-                            daHandlingDevice.add(daId);
-                            daDev.put(dev, daHandlingDevice);
-                        }
-                    }
-                }
-            }
-
-            // Return the HashMap of the devices
-            return daDev;
+            // The paired devices are collected when the DAs connect, just return a copy
+            return pairedDevices.getDevices();
         }
 
         /**
@@ -192,21 +286,43 @@ public class PAManagerService extends Service {
          * @param devId The device ID (the MAC Address)
          */
         @Override
-        public void setDeviceConfig(Map config, String devId) throws RemoteException {
-            Log.i(PAAndroidConstants.PA_LOGTAG, "Fetching paired devices address");
+        public void setDeviceConfig(final Map config, final String devId) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Setting configuration of device " + devId);
+
+            // If the device is connected, configure it through the DA handling it
+            String ownerDa = deviceRouting.get(devId);
+            if (ownerDa != null && connectedDAs.containsKey(ownerDa)) {
+                Capabilities cap = availableDAs.get(ownerDa);
 
-            // Scan all connected DAs
+                if (cap != null && (cap.getDeviceConfigurationType() == Capabilities.CONFIG_RUNTIME_ONLY ||
+                        cap.getDeviceConfigurationType() == Capabilities.CONFIG_STARTUP_AND_RUNTIME)) {
+                    connectedDAs.get(ownerDa).setDeviceConfig(config, devId);
+                }
+                return;
+            }
+
+            // Select the connected DAs to send the request to
+            List<String> targets = new ArrayList<String>();
             for (String tmpDaName : connectedDAs.keySet()) {
 
                 // Retrieve the Capabilities of the DA
                 Capabilities cap = availableDAs.get(tmpDaName);
 
                 // If the DA supports device configuration at runtime, try to configure the device
-                if (cap.getDeviceConfigurationType() == Capabilities.CONFIG_RUNTIME_ONLY ||
-                        cap.getDeviceConfigurationType() == Capabilities.CONFIG_STARTUP_AND_RUNTIME) {
-                    connectedDAs.get(tmpDaName).setDeviceConfig(config, devId);
+                if (cap != null && (cap.getDeviceConfigurationType() == Capabilities.CONFIG_RUNTIME_ONLY ||
+                        cap.getDeviceConfigurationType() == Capabilities.CONFIG_STARTUP_AND_RUNTIME)) {
+                    targets.add(tmpDaName);
                 }
             }
+
+            // Send the request to all of them concurrently
+            reportIncomplete("setDeviceConfig", fanOut.invoke(targets, connectedDAs, new DAFanOut.Call<Void>() {
+                @Override
+                public Void call(String daId, IDeviceAdapter da) throws RemoteException {
+                    da.setDeviceConfig(config, devId);
+                    return null;
+                }
+            }));
         }
 
         /**
@@ -219,8 +335,11 @@ public class PAManagerService extends Service {
         public void startDA(String daId) throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Starting Device Adapter " + daId);
 
-            // Retrieve the Capabilities object for the specified DA
+            // Retrieve the Capabilities object for the specified DA, which may still be replying to the discovery
             Capabilities daCap = daId != null ? availableDAs.get(daId) : null;
+            if (daCap == null && daId != null && discovery.await(daId)) {
+                daCap = availableDAs.get(daId);
+            }
 
             // Start the specified DA using the correct action in the Intent if the DA exists and
             // it is not already started
@@ -259,17 +378,8 @@ public class PAManagerService extends Service {
                 // Stop the operation of the Device Adapter
                 tmpDa.stop();
 
-                // Get the DAConnection object from the Map
-                DAConnection conn = daConnections.get(daId);
-
-                if (conn != null) {
-                    // Unbind the Device Adapter
-                    unbindService(conn);
-
-                    // Remove the DA from the Maps
-                    connectedDAs.remove(daId);
-                    daConnections.remove(daId);
-                }
+                // Unbind it and forget about it
+                releaseDA(daId);
             }
             else {
                 Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter " + daId + " is not running");
@@ -285,6 +395,9 @@ public class PAManagerService extends Service {
          */
         @Override
         public Map getAvailableDAs() throws RemoteException {
+            // Let the DAs that did not reply yet complete the list
+            discovery.await(null);
+
             return availableDAs;
         }
 
@@ -308,9 +421,25 @@ public class PAManagerService extends Service {
         public void connectDev(String devId) throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Connecting to the specific device " + devId);
 
-            // Retrieve the map of the devices and the list of the DAs handling the specified device
-            Map<String, List<String>> devices = getDADevices();
-            List<String> daHandlingDevice = devices.get(devId);
+            // Retrieve the list of the DAs handling the specified device
+            List<String> daHandlingDevice = pairedDevices.getDAs(devId);
+
+            // The device may have been paired after its DAs connected: refresh the cache and look again
+            if (daHandlingDevice == null) {
+                refreshDADevices();
+                daHandlingDevice = pairedDevices.getDAs(devId);
+            }
+
+            // If several DAs can handle the device, try them starting from the best for this type of device
+            if (daHandlingDevice != null && daHandlingDevice.size() > 1) {
+                List<String> candidates = rankCandidates(devId, daHandlingDevice);
+
+                if (!candidates.isEmpty()) {
+                    Log.i(PAAndroidConstants.PA_LOGTAG, "Device " + devId + " handled by " + candidates + ", trying them in this order");
+                    connections.submit(Collections.singletonList(new ConnectionScheduler.Request(devId, candidates, ConnectionScheduler.Action.CONNECT)), 0);
+                    return;
+                }
+            }
 
             // Check whether there is exactly one DA handling the specified device
             if (daHandlingDevice != null && daHandlingDevice.size() == 1) {
@@ -323,13 +452,13 @@ public class PAManagerService extends Service {
                 if (cap.isCommunicationInitiator()) {
                     da.connectDev(devId);
                 } else {
-                    appApi.log(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "Connection initiation is not supported by the specified device (" + devId + ")");
+                    logToApplications(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "Connection initiation is not supported by the specified device (" + devId + ")");
                     throw new RuntimeException("Connection initiation is not supported by the specified device (" + devId + ")");
                 }
 
             } else {
-                appApi.log(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The device " + devId + " is not present in the list or is handled by more than one Device Adapter. Try using forceConnectDev.");
-                throw new RuntimeException("The device " + devId + " is not present in the list or is handled by more than one Device Adapter. Try using forceConnectDev.");
+                logToApplications(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The device " + devId + " is not present in the list or none of its Device Adapters can initiate connections. Try using forceConnectDev.");
+                throw new RuntimeException("The device " + devId + " is not present in the list or none of its Device Adapters can initiate connections. Try using forceConnectDev.");
             }
         }
 
@@ -358,15 +487,15 @@ public class PAManagerService extends Service {
                         // ... then try connecting to the device
                         da.forceConnectDev(devId);
                     } else {
-                        appApi.log(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "Connection initiation is not supported by the specified device (" + devId + ")");
+                        logToApplications(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "Connection initiation is not supported by the specified device (" + devId + ")");
                         throw new RuntimeException("Connection initiation is not supported by the specified device (" + devId + ")");
                     }
                 } else {
-                    appApi.log(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The specified Device Adapter " + devId + " is not connected!");
+                    logToApplications(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The specified Device Adapter " + devId + " is not connected!");
                     throw new RuntimeException("The specified Device Adapter " + devId + " is not connected!");
                 }
             } else {
-                appApi.log(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The specified Device Adapter " + devId + " is not available in the system!");
+                logToApplications(LOG_LEVEL.ERROR, PAAndroidConstants.PA_PACKAGE, "The specified Device Adapter " + devId + " is not available in the system!");
                 throw new RuntimeException("The specified Device Adapter " + devId + " is not available in the system!");
             }
         }
@@ -377,30 +506,57 @@ public class PAManagerService extends Service {
          * @param devId The Device ID
          */
         @Override
-        public void disconnectDev(String devId) throws RemoteException {
+        public void disconnectDev(final String devId) throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Disconnecting device " + devId);
 
-            // Scan all connected DAs
+            // If the DA handling the device is known, ask only that one
+            String ownerDa = deviceRouting.get(devId);
+            IDeviceAdapter ownerEndpoint = ownerDa != null ? connectedDAs.get(ownerDa) : null;
+            if (ownerEndpoint != null) {
+                Capabilities cap = availableDAs.get(ownerDa);
+
+                if (cap != null && cap.isCommunicationInitiator()) {
+                    ownerEndpoint.disconnectDev(devId);
+                }
+                return;
+            }
+
+            // Select the connected DAs to send the request to
+            List<String> targets = new ArrayList<String>();
             for (String tmpDaName : connectedDAs.keySet()) {
 
                 // Retrieve the Capabilities of the DA
                 Capabilities cap = availableDAs.get(tmpDaName);
 
                 // If the DA supports connection initiation, connect to the specified device
-                if (cap.isCommunicationInitiator()) {
-                    connectedDAs.get(tmpDaName).disconnectDev(devId);
+                if (cap != null && cap.isCommunicationInitiator()) {
+                    targets.add(tmpDaName);
                 }
             }
+
+            // Send the request to all of them concurrently
+            reportIncomplete("disconnectDev", fanOut.invoke(targets, connectedDAs, new DAFanOut.Call<Void>() {
+                @Override
+                public Void call(String daId, IDeviceAdapter da) throws RemoteException {
+                    da.disconnectDev(devId);
+                    return null;
+                }
+            }));
         }
 
         /**
-         * Receive a binder from the Application representing its interface.
+         * Receive a binder from the Application representing its interface. Several applications
+         * can register their listener, and each of them will receive data and events.
          *
          * @param application The IBinder of the application
          */
         @Override
         public void registerPAListener(IBinder application) throws RemoteException {
-            appApi = IProtocolAdapterListener.Stub.asInterface(application);
+            subscribers.register(application);
+
+            // Deliver the data stored while no application was listening
+            journalReplayer.start();
+
             // TODO If more initialization or initial actions are needed after the application registered itself, just do them here
         }
 
@@ -409,9 +565,11 @@ public class PAManagerService extends Service {
          * Note that this insertion will persist, even through Device Adapter reboots, until
          * the device it's removed from the list. Every device adapter should check the format
          * of the address passed as an argument and, if it does not support that kind of
-         * address, it can safely ignore that address.
+         * address, it can safely ignore that address. A prefix pattern ending with '*', like
+         * "00:1A:7D:*", adds every device whose ID starts with it; the DAs receive the IDs of the
+         * known devices matching it.
          *
-         * @param devId The Device ID
+         * @param devId The Device ID or pattern
          */
         @Override
         public void addDeviceToWhitelist(String devId) throws RemoteException {
@@ -420,23 +578,8 @@ public class PAManagerService extends Service {
             // If the device ID is not valid, just do nothing
             if (devId == null || "".equals(devId)) return;
 
-            // Othwerwise add it to the list
-            whitelist.add(devId);
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports whitelist, add the specified device to its whitelist
-                if (cap.hasWhitelist()) {
-                    connectedDAs.get(tmpDaName).addDeviceToWhitelist(devId);
-                }
-            }
+            // Othwerwise add it to the list, the DAs and the storage will be updated shortly
+            if (whitelist.add(devId)) listSync.schedule();
         }
 
         /**
@@ -452,23 +595,8 @@ public class PAManagerService extends Service {
             // If the device ID is not valid, just do nothing
             if (devId == null || "".equals(devId)) return;
 
-            // Othwerwise remove it from the list
-            whitelist.remove(devId);
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports whitelist, remove the specified device from whitelist
-                if (cap.hasWhitelist()) {
-                    connectedDAs.get(tmpDaName).removeDeviceFromWhitelist(devId);
-                }
-            }
+            // Othwerwise remove it from the list, the DAs and the storage will be updated shortly
+            if (whitelist.remove(devId)) listSync.schedule();
         }
 
         /**
@@ -481,7 +609,7 @@ public class PAManagerService extends Service {
         public List<String> getWhitelist() throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Retrieving the global whitelist");
 
-            return whitelist;
+            return whitelist.toList();
         }
 
         /**
@@ -497,30 +625,8 @@ public class PAManagerService extends Service {
         public void setWhitelist(List<String> mWhitelist) throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Setting the global whitelist");
 
-            // Empty the list
-            emptyList(whitelist);
-
-            if (mWhitelist != null) {
-                // Add to the whitelist every element of the list passed as argument
-                for (String dev : mWhitelist) {
-                    if (dev != null && !"".equals(dev)) whitelist.add(dev);
-                }
-            }
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports whitelist, remove the specified device from whitelist
-                if (cap.hasWhitelist()) {
-                    connectedDAs.get(tmpDaName).setWhitelist(whitelist);
-                }
-            }
+            // Replace the content of the list, the DAs will only receive the differences
+            if (whitelist.replace(validDevices(mWhitelist))) listSync.schedule();
         }
 
         /**
@@ -528,9 +634,11 @@ public class PAManagerService extends Service {
          * Note that this insertion will persist, even through Device Adapter reboots, until
          * the device it's removed from the list. Every device adapter should check the format
          * of the address passed as an argument and, if it does not support that kind of
-         * address, it can safely ignore that address.
+         * address, it can safely ignore that address. A prefix pattern ending with '*', like
+         * "00:1A:7D:*", adds every device whose ID starts with it; the DAs receive the IDs of the
+         * known devices matching it.
          *
-         * @param devId The Device ID
+         * @param devId The Device ID or pattern
          */
         @Override
         public void addDeviceToBlackList(String devId) throws RemoteException {
@@ -539,23 +647,8 @@ public class PAManagerService extends Service {
             // If the device ID is not valid, just do nothing
             if (devId == null || "".equals(devId)) return;
 
-            // Othwerwise add it to the list
-            blacklist.add(devId);
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports blacklist, add the specified device to blacklist
-                if (cap.hasBlacklist()) {
-                    connectedDAs.get(tmpDaName).addDeviceToBlackList(devId);
-                }
-            }
+            // Othwerwise add it to the list, the DAs and the storage will be updated shortly
+            if (blacklist.add(devId)) listSync.schedule();
         }
 
         /**
@@ -571,23 +664,8 @@ public class PAManagerService extends Service {
             // If the device ID is not valid, just do nothing
             if (devId == null || "".equals(devId)) return;
 
-            // Othwerwise remove it from the list
-            blacklist.remove(devId);
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports blacklist, remove the specified device from blacklist
-                if (cap.hasBlacklist()) {
-                    connectedDAs.get(tmpDaName).removeDeviceFromBlacklist(devId);
-                }
-            }
+            // Othwerwise remove it from the list, the DAs and the storage will be updated shortly
+            if (blacklist.remove(devId)) listSync.schedule();
         }
 
         /**
@@ -600,7 +678,7 @@ public class PAManagerService extends Service {
         public List<String> getBlacklist() throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Retrieving the global blacklist");
 
-            return blacklist;
+            return blacklist.toList();
         }
 
         /**
@@ -616,30 +694,8 @@ public class PAManagerService extends Service {
         public void setBlackList(List<String> mBlacklist) throws RemoteException {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Setting the global blacklist");
 
-            // Empty the list
-            emptyList(blacklist);
-
-            if (mBlacklist != null) {
-                // Add to the whitelist every element of the list passed as argument
-                for (String dev : mBlacklist) {
-                    if (dev != null && !"".equals(dev)) blacklist.add(dev);
-                }
-            }
-
-            // Reflect the changes on SharedPreferences
-            syncSharedPreferences();
-
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
-
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
-
-                // If the DA supports blacklist, remove the specified device from blacklist
-                if (cap.hasBlacklist()) {
-                    connectedDAs.get(tmpDaName).setWhitelist(blacklist);
-                }
-            }
+            // Replace the content of the list, the DAs will only receive the differences
+            if (blacklist.replace(validDevices(mBlacklist))) listSync.schedule();
         }
 
         /**
@@ -656,16 +712,22 @@ public class PAManagerService extends Service {
 
             // Retrieve the right DA
             IDeviceAdapter tmpDa = daId != null ? connectedDAs.get(daId) : null;
-            Capabilities cap = daId != null ? availableDAs.get(daId) : null;
+            Capabilities cap = capabilitiesOf(daId);
 
             // If the Device Adapter is not connected throw an Exception
             if (tmpDa == null || cap == null) {
                 throw new IllegalStateException("The Device Adapter " + daId + " is not connected to Protocol Adapter! If you are sure that the Device Adapter is connected, try increasing the time interval between the Device Adapter connection and the retrieving of command list.");
             }
 
-            // Retrieve and return the Device Adapter's command list
+            // Retrieve and return the Device Adapter's command list, collected when it connected if possible
             if (cap.supportCommands()) {
-                commandList = tmpDa.getCommandList();
+                List<String> cached = daInfo.getCommandList(daId);
+                if (cached != null) {
+                    commandList.addAll(cached);
+                } else {
+                    commandList = tmpDa.getCommandList();
+                    daInfo.put(daId, cap, commandList);
+                }
             }
 
             return commandList;
@@ -693,30 +755,235 @@ public class PAManagerService extends Service {
                 return;
             }
 
-            // Scan all connected DAs
-            for (String tmpDaName : connectedDAs.keySet()) {
+            // Send the command to the DA handling the device
+            routeCommand(command, parameter, devId);
+        }
+    };
 
-                // Retrieve the Capabilities of the DA
-                Capabilities cap = availableDAs.get(tmpDaName);
+    // Implementation of the extended Protocol Adapter API (IProtocolAdapterExt) to pass to the Application
+    private final IProtocolAdapterExt.Stub extEndpoint = new IProtocolAdapterExt.Stub() {
 
-                // If the DA supports sending commands to devices and is connection initiator...
-                if (cap.supportCommands() && cap.isCommunicationInitiator()) {
+        /**
+         * Set the filter of a registered application, so that it only receives the data and the
+         * events it is interested in. Any criterion can be null to accept everything.
+         *
+         * @param application The IBinder of the application listener
+         * @param deviceIds The accepted Device IDs
+         * @param daIds The accepted DA IDs
+         * @param properties The accepted property names
+         * @return True if the application is registered, false otherwise
+         */
+        @Override
+        public boolean setSubscriberFilter(IBinder application, List<String> deviceIds, List<String> daIds, List<String> properties) throws RemoteException {
+            return subscribers.setFilter(application, new SubscriberFilter(deviceIds, daIds, properties));
+        }
 
-                    List<DeviceDescription> connDevs = connectedDAs.get(tmpDaName).getConnectedDevices();
+        /**
+         * Make a registered application receive, for every property of the devices it is
+         * interested in, the min, max, mean and count of the observations over a time window
+         * instead of the raw observations. Aggregates are pushed as Observations of the same
+         * property, with the start of the window as phenomenon time, its length as duration and
+         * the values min, max, mean and count.
+         *
+         * @param application The IBinder of the application listener
+         * @param window The length of the window in milliseconds (one of WindowAggregator.WINDOWS),
+         *               or 0 to receive the raw observations again
+         * @return True if the application is registered, false otherwise
+         */
+        @Override
+        public boolean setSubscriberAggregation(IBinder application, long window) throws RemoteException {
+            if (window != 0L && !WindowAggregator.isSupported(window)) {
+                throw new IllegalArgumentException("Unsupported aggregation window: " + window);
+            }
 
-                    // ... Scan its connected devices...
-                    for (DeviceDescription tmpDev : connDevs) {
+            boolean registered = subscribers.setAggregateWindow(application, window);
+            aggregator.setEnabled(subscribers.wantsAggregates());
+            return registered;
+        }
 
-                        // ... If the desired device is connected with this DA at the moment, send it the command
-                        if (devId.equals(tmpDev.getDeviceID())) {
-                            connectedDAs.get(tmpDaName).execCommand(command, parameter, devId);
-                            break;
-                        }
-                    }
+        /**
+         * Set the policy used to thin out the stream of observations of a property of a device
+         * before dispatching it. The most specific policy applies, and changes take effect
+         * immediately. Pass 0 to disable any of the criteria.
+         *
+         * @param devId The Device ID, or null for every device
+         * @param property The property name, or null for every property
+         * @param decimation Keep one observation every decimation observations
+         * @param minInterval The minimum time between two forwarded observations, in milliseconds
+         * @param absoluteDeadband The minimum absolute change of the value
+         * @param relativeDeadband The minimum relative change of the value (e.g. 0.05 for 5%)
+         */
+        @Override
+        public void setStreamPolicy(String devId, String property, int decimation, long minInterval, double absoluteDeadband, double relativeDeadband) throws RemoteException {
+            StreamPolicy policy = new StreamPolicy(decimation, minInterval, absoluteDeadband, relativeDeadband);
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Setting stream policy for device " + devId + ", property " + property + ": " + policy);
+
+            streamFilter.setPolicy(devId, property, policy);
+        }
+
+        /**
+         * Remove the policy of a property of a device, so that all its observations are forwarded
+         * again (unless a less specific policy applies).
+         *
+         * @param devId The Device ID, or null for every device
+         * @param property The property name, or null for every property
+         */
+        @Override
+        public void removeStreamPolicy(String devId, String property) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Removing stream policy for device " + devId + ", property " + property);
+
+            streamFilter.setPolicy(devId, property, null);
+        }
+
+        /**
+         * Retrieve the recent observations of a device, for applications that started late or
+         * reconnected. Only the last observations of every property are kept in memory.
+         *
+         * @param devId The Device ID
+         * @param property The property name, or null for every property
+         * @param since The timestamp of the oldest observation to retrieve
+         * @return The observations, ordered by timestamp for each property
+         */
+        @Override
+        public List<Observation> getObservationsSince(String devId, String property, long since) throws RemoteException {
+            return history.getSince(devId, property, since);
+        }
+
+        /**
+         * Execute a command on a device asynchronously. The method returns immediately with the
+         * ID of the command; when the command completes, fails or times out, the applications
+         * interested in the device receive a log() message starting with COMMAND_RESULT_PREFIX
+         * and the ID. The commands for the same device are executed in order, one at a time,
+         * while the commands for different devices run in parallel.
+         *
+         * @param command The command to execute on the device
+         * @param parameter The optional parameter to pass to the device together with the command
+         * @param devId The Device ID
+         * @param timeout The maximum time the command can take in milliseconds, or 0 for the default
+         * @return The ID of the command
+         * @throws IllegalStateException If too many commands are waiting for the device, or the
+         * device did not answer a previous command yet
+         */
+        @Override
+        public String submitCommand(String command, String parameter, String devId, long timeout) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Submitting command " + command + " for device " + devId);
+
+            return commands.submit(devId, command, parameter, timeout);
+        }
+
+        /**
+         * Execute several commands, possibly on many devices, in a single call. The commands
+         * for different devices run in parallel, the ones for the same device in order. The
+         * method returns when all the commands completed, failed or timed out, blocking the
+         * calling thread for at most CommandExecutor.MAX_BULK_WAIT.
+         *
+         * @param devIds The Device IDs
+         * @param commands The commands to execute, one for each Device ID
+         * @param parameters The optional parameters of the commands, one for each Device ID, or null
+         * @param timeout The maximum time each command can take in milliseconds, or 0 for the default
+         * @return The outcome of every command, in the order of the requests: COMPLETED, FAILED or
+         * TIMEOUT, followed by ": " and a description for the failures
+         */
+        @Override
+        public List<String> execCommands(List<String> devIds, List<String> commands, List<String> parameters, long timeout) throws RemoteException {
+            if (devIds == null || commands == null || devIds.size() != commands.size() || (parameters != null && parameters.size() != devIds.size())) {
+                throw new IllegalArgumentException("Device IDs, commands and parameters must have the same size");
+            }
+
+            List<CommandRequest> requests = new ArrayList<CommandRequest>(devIds.size());
+            for (int i = 0; i < devIds.size(); i++) {
+                requests.add(new CommandRequest(devIds.get(i), commands.get(i), parameters != null ? parameters.get(i) : null));
+            }
+
+            List<String> outcomes = new ArrayList<String>(requests.size());
+            for (CommandExecutor.Outcome outcome : PAManagerService.this.execCommands(requests, timeout)) {
+                outcomes.add(outcome.toString());
+            }
+
+            return outcomes;
+        }
 
+        /**
+         * Connect to many devices, without opening too many connections at the same time on the
+         * same Device Adapter. The method returns immediately with the ID of the request; every time
+         * a device registers, fails or times out, the applications interested in the device receive
+         * a log() message starting with CONNECTION_PROGRESS_PREFIX, the ID and the progress.
+         *
+         * @param devIds The Device IDs
+         * @param priority The priority of the request: the requests with higher priority are started first
+         * @return The ID of the request
+         */
+        @Override
+        public String connectDevs(List<String> devIds, int priority) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Connecting to " + devIds.size() + " devices");
+
+            // The devices may have been paired after their DAs connected: refresh the cache once
+            for (String devId : devIds) {
+                if (pairedDevices.getDAs(devId) == null) {
+                    refreshDADevices();
+                    break;
                 }
+            }
+
+            // The devices handled by several DAs try them starting from the best for their type
+            List<ConnectionScheduler.Request> requests = new ArrayList<ConnectionScheduler.Request>();
+            for (String devId : devIds) {
+                List<String> daHandlingDevice = pairedDevices.getDAs(devId);
+                List<String> candidates = daHandlingDevice != null ? rankCandidates(devId, daHandlingDevice) : Collections.<String>emptyList();
+                requests.add(new ConnectionScheduler.Request(devId, candidates, ConnectionScheduler.Action.CONNECT));
+            }
+
+            return connections.submit(requests, priority);
+        }
 
+        /**
+         * Force the connection to many devices using the specified Device Adapter, without opening
+         * too many connections at the same time. The progress is reported like for connectDevs().
+         *
+         * @param devIds The Device IDs
+         * @param daId The ID of the Device Adapter
+         * @param priority The priority of the request: the requests with higher priority are started first
+         * @return The ID of the request
+         */
+        @Override
+        public String forceConnectDevs(List<String> devIds, String daId, int priority) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Forcing connection to " + devIds.size() + " devices via " + daId);
+
+            List<ConnectionScheduler.Request> requests = new ArrayList<ConnectionScheduler.Request>();
+            for (String devId : devIds) {
+                requests.add(new ConnectionScheduler.Request(devId, daId, ConnectionScheduler.Action.FORCE_CONNECT));
+            }
+
+            return connections.submit(requests, priority);
+        }
+
+        /**
+         * Disconnect from many devices. The progress is reported like for connectDevs(); the devices
+         * not connected at the moment are reported as failed.
+         *
+         * @param devIds The Device IDs
+         * @param priority The priority of the request: the requests with higher priority are started first
+         * @return The ID of the request
+         */
+        @Override
+        public String disconnectDevs(List<String> devIds, int priority) throws RemoteException {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Disconnecting " + devIds.size() + " devices");
+
+            List<ConnectionScheduler.Request> requests = new ArrayList<ConnectionScheduler.Request>();
+            for (String devId : devIds) {
+                requests.add(new ConnectionScheduler.Request(devId, deviceRouting.get(devId), ConnectionScheduler.Action.DISCONNECT));
             }
+
+            return connections.submit(requests, priority);
+        }
+
+        /**
+         * Ask again every connected Device Adapter for the paired devices it can handle, for
+         * instance after the user paired a new device.
+         */
+        @Override
+        public void refreshDADevices() throws RemoteException {
+            PAManagerService.this.refreshDADevices();
         }
     };
 
@@ -733,14 +1000,42 @@ public class PAManagerService extends Service {
          *      The device to register
          */
         @Override
-        public void registerDevice(DeviceDescription devDesc, String daId) {
+        public void registerDevice(final DeviceDescription devDesc, final String daId) {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Received device description: " + devDesc.toString());
 
-            try {
-                appApi.registerDevice(devDesc, daId);
-            } catch (RemoteException e) {
-                Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to register device with application!");
+            // Ignore the blacklisted devices, even if their DA does not support the blacklist
+            if (isBlacklisted(devDesc)) {
+                Log.i(PAAndroidConstants.PA_LOGTAG, "Ignoring blacklisted device " + devDesc.getDeviceID());
+
+                // The DAs only know the devices matching a pattern of the blacklist once they are known
+                if (blacklist.matchesPattern(devDesc.getDeviceID())) onDevicesDiscovered(Collections.singletonList(devDesc.getDeviceID()));
+                return;
+            }
+
+            // The patterns of the lists may match a device not paired
+            if (deviceRouting.get(devDesc.getDeviceID()) == null && pairedDevices.getDAs(devDesc.getDeviceID()) == null) {
+                onDevicesDiscovered(Collections.singletonList(devDesc.getDeviceID()));
             }
+
+            // Keep track of the DA handling the device, to route the requests and apply the subscribers' filters
+            deviceRouting.put(devDesc.getDeviceID(), daId);
+            subscribers.setDeviceOwner(devDesc.getDeviceID(), daId);
+
+            // The connection attempt of a bulk request, if any, succeeded and frees its slot
+            connections.onConnected(devDesc.getDeviceID(), daId);
+
+            // Queue the event together with the data of the device, to preserve their order
+            batcher.addEvent(devDesc.getDeviceID(), new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.dispatch(devDesc.getDeviceID(), new SubscriberRegistry.Call() {
+                        @Override
+                        public void call(IProtocolAdapterListener listener) throws RemoteException {
+                            listener.registerDevice(devDesc, daId);
+                        }
+                    });
+                }
+            });
         }
 
         /**
@@ -751,14 +1046,24 @@ public class PAManagerService extends Service {
          *      The device whom the properties belongs to
          */
         @Override
-        public void registerDeviceProperties(DeviceDescription devDesc) {
+        public void registerDeviceProperties(final DeviceDescription devDesc) {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Received properties to register from device: " + devDesc.toString());
 
-            try {
-                appApi.registerDeviceProperties(devDesc);
-            } catch (RemoteException e) {
-                Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to register device properties with application!");
-            }
+            // Ignore the blacklisted devices, even if their DA does not support the blacklist
+            if (isBlacklisted(devDesc)) return;
+
+            // Queue the event together with the data of the device, to preserve their order
+            batcher.addEvent(devDesc.getDeviceID(), new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.dispatch(devDesc.getDeviceID(), new SubscriberRegistry.Call() {
+                        @Override
+                        public void call(IProtocolAdapterListener listener) throws RemoteException {
+                            listener.registerDeviceProperties(devDesc);
+                        }
+                    });
+                }
+            });
         }
 
         /**
@@ -773,19 +1078,29 @@ public class PAManagerService extends Service {
          */
         @Override
         public void pushData(List<Observation> observations, DeviceDescription devDesc) {
-            String dataStr = "";
-            for (Observation obs : observations) {
-                dataStr += obs.toString() + "\n";
-            }
-            Log.i(PAAndroidConstants.PA_LOGTAG, "Received data to push\n" +
-                    "Device: " + devDesc.getDeviceID() + "\n" +
-                    "Data: \n" + dataStr);
+            // Drop the data of the blacklisted devices before doing anything with it
+            if (isBlacklisted(devDesc)) return;
 
-            try {
-                appApi.pushData(observations, devDesc);
-            } catch (RemoteException e) {
-                Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to push data with application!");
+            // Observations are only formatted if the diagnostics ask for it
+            dataLogger.logPush(observations, devDesc);
+
+            // Learn how quickly the DA of the device delivers its observations, if it is known
+            String daId = deviceRouting.get(devDesc.getDeviceID());
+            if (daId != null && !observations.isEmpty()) {
+                daSelector.recordArrival(devDesc.getDeviceID(), daId, observations.get(observations.size() - 1).getPhenomenonTime(), System.currentTimeMillis());
             }
+
+            // Aggregates are computed on the full stream, before the stream policies apply
+            aggregator.add(observations, devDesc);
+
+            // Discard the observations not needed according to the stream policies
+            streamFilter.filter(observations, devDesc.getDeviceID());
+
+            // Keep the recent observations for the applications that will ask for them
+            history.record(observations, devDesc.getDeviceID());
+
+            // Buffer the observations, they will reach the application with the next batch
+            batcher.add(observations, devDesc);
         }
 
         /**
@@ -794,15 +1109,34 @@ public class PAManagerService extends Service {
          * @param devDesc
          *      The device to use
          */
-        public void deregisterDevice(DeviceDescription devDesc) {
+        public void deregisterDevice(final DeviceDescription devDesc) {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Received device deregistration: " + devDesc.getDeviceID());
 
-            try {
-                appApi.deregisterDevice(devDesc);
-            } catch (RemoteException e) {
-                Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to deregister device with application!");
-            }
+            // Requests for the device can no longer be routed
+            deviceRouting.remove(devDesc.getDeviceID());
+
+            // Queue the event together with the data of the device, to preserve their order
+            batcher.addEvent(devDesc.getDeviceID(), new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.dispatch(devDesc.getDeviceID(), new SubscriberRegistry.Call() {
+                        @Override
+                        public void call(IProtocolAdapterListener listener) throws RemoteException {
+                            listener.deregisterDevice(devDesc);
+                        }
+                    });
+
+                    // The device left the system, its route, filtering state and history are no longer needed
+                    subscribers.removeDevice(devDesc.getDeviceID());
+                    streamFilter.removeDevice(devDesc.getDeviceID());
+                    history.removeDevice(devDesc.getDeviceID());
+                    aggregator.removeDevice(devDesc.getDeviceID());
+                    commands.removeDevice(devDesc.getDeviceID());
+                }
+            });
 
+            // The device left the system, its queue is no longer needed
+            batcher.remove(devDesc.getDeviceID());
         }
 
         /**
@@ -810,14 +1144,24 @@ public class PAManagerService extends Service {
          *
          * @param devDesc The ID of the disconnected device
          */
-        public void deviceDisconnected(DeviceDescription devDesc) {
+        public void deviceDisconnected(final DeviceDescription devDesc) {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Received device disconnection: " + devDesc.getDeviceID());
 
-            try {
-                appApi.deviceDisconnected(devDesc);
-            } catch (RemoteException e) {
-                Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to notify device disconnection to application!");
-            }
+            // Requests for the device can no longer be routed
+            deviceRouting.remove(devDesc.getDeviceID());
+
+            // Queue the event together with the data of the device, to preserve their order
+            batcher.addEvent(devDesc.getDeviceID(), new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.dispatch(devDesc.getDeviceID(), new SubscriberRegistry.Call() {
+                        @Override
+                        public void call(IProtocolAdapterListener listener) throws RemoteException {
+                            listener.deviceDisconnected(devDesc);
+                        }
+                    });
+                }
+            });
         }
 
         /**
@@ -829,35 +1173,342 @@ public class PAManagerService extends Service {
          * @param message The message associated with the event
          */
         @Override
-        public void log(int logLevel, String daId, String message) throws RemoteException {
-            appApi.log(logLevel, daId, message);
+        public void log(final int logLevel, final String daId, final String message) throws RemoteException {
+            dispatcher.execute(daId, new Runnable() {
+                @Override
+                public void run() {
+                    logToApplications(logLevel, daId, message);
+                }
+            });
         }
 
     };
 
-    BroadcastReceiver broadcastDiscoveryDA = new BroadcastReceiver() {
+    /**
+     * Receive the batches of observations from the ObservationBatcher (on the dispatcher threads)
+     * and push them to the application
+     */
+    private final ObservationBatcher.FlushListener batchEndpoint = new ObservationBatcher.FlushListener() {
+
+        @Override
+        public void onFlush(List<Observation> observations, DeviceDescription devDesc) {
+            // Store the batch only if no application can receive it
+            if (subscribers.isEmpty()) {
+                store(observations, devDesc);
+                return;
+            }
+
+            // Large batches are pushed in several transactions to stay below the binder limit
+            if (!subscribers.pushData(observations, devDesc, sizeLimiter)) {
+                if (subscribers.isEmpty()) {
+                    // Every application died in the meantime, keep the batch for later
+                    store(observations, devDesc);
+                    return;
+                }
+
+                // The applications interested in the device died, the others do not want the batch
+                Log.d(PAAndroidConstants.PA_LOGTAG, "Dropping " + observations.size() + " observations of device " + devDesc.getDeviceID() + ", no application wants them");
+            }
+
+            // Deliver the batches stored while no application was listening, if any are left
+            journalReplayer.start();
+        }
+
         /**
-         * Receive Discovery Reply Intents from DAs and insert all info about DAs in the list of
-         * available DAs
+         * Store a batch in the journal, to replay it when an application registers.
          *
-         * @param context The context
-         * @param intent Intent received from DA
+         * @param observations The observations of the batch
+         * @param devDesc The device whom the observations belong to
          */
+        private void store(List<Observation> observations, DeviceDescription devDesc) {
+            if (!journal.append(observations, devDesc)) {
+                Log.d(PAAndroidConstants.PA_LOGTAG, "Observation journal not available, dropping " + observations.size() + " observations of device " + devDesc.getDeviceID() +
+                        " (" + journal.getDroppedRecords() + " batches dropped so far)");
+            }
+        }
+
+    };
+
+    /**
+     * Receive the batches replayed from the journal (on the replay thread) and push them to the
+     * application
+     */
+    private final ObservationJournal.Consumer journalEndpoint = new ObservationJournal.Consumer() {
+
         @Override
-        public void onReceive(Context context, Intent intent) {
-            // Extract DA ID and DA Capabilities from the Intent
-            String daId = intent.getStringExtra(DA_DISCOVERY.BUNDLE_DAID);
-            Capabilities daCap = intent.getParcelableExtra(DA_DISCOVERY.BUNDLE_DACAP);
+        public boolean onReplay(List<Observation> observations, DeviceDescription devDesc) {
+            if (subscribers.pushData(observations, devDesc, sizeLimiter)) return true;
+
+            // Suspend the replay while no application is listening, the next batch pushed to an
+            // application will start it again; skip the batches no live application wants
+            return !subscribers.isEmpty();
+        }
+
+    };
+
+    /**
+     * Receive the aggregates of the closed windows from the WindowAggregator and queue them with
+     * the data of their device, so that they reach the application in order. It is called while
+     * the aggregator holds the lock of the device, so it must not do more than queueing
+     */
+    private final WindowAggregator.Listener aggregateEndpoint = new WindowAggregator.Listener() {
+
+        @Override
+        public void onAggregates(final long window, final List<Observation> aggregates, final DeviceDescription devDesc) {
+            // Stop aggregating when the applications asking for it are gone
+            if (!subscribers.wantsAggregates()) {
+                aggregator.setEnabled(false);
+                return;
+            }
+
+            batcher.addEvent(devDesc.getDeviceID(), new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.pushAggregates(window, aggregates, devDesc, sizeLimiter);
+                }
+            });
+        }
+
+    };
+
+    /**
+     * Send the asynchronous commands to the Device Adapters (on the command threads)
+     */
+    private final CommandExecutor.Target commandTarget = new CommandExecutor.Target() {
+
+        @Override
+        public void execute(String devId, String command, String parameter) throws Exception {
+            if (!routeCommand(command, parameter, devId)) {
+                throw new IllegalStateException("Device " + devId + " is not connected or does not support commands");
+            }
+        }
+
+    };
+
+    /**
+     * Receive the outcome of the asynchronous commands and report it, through log(), to the
+     * applications interested in the device
+     */
+    private final CommandExecutor.Listener commandEndpoint = new CommandExecutor.Listener() {
+
+        @Override
+        public void onCommandResult(String commandId, String devId, String command, CommandExecutor.Status status, String detail) {
+            final int level = status == CommandExecutor.Status.COMPLETED ? LOG_LEVEL.INFO : LOG_LEVEL.ERROR;
+            final String message = COMMAND_RESULT_PREFIX + commandId + " " + status + " on device " + devId + " (" + command + ")" +
+                    (detail != null ? ": " + detail : "");
+
+            Log.i(PAAndroidConstants.PA_LOGTAG, message);
+            subscribers.dispatch(devId, new SubscriberRegistry.Call() {
+                @Override
+                public void call(IProtocolAdapterListener listener) throws RemoteException {
+                    listener.log(level, PAAndroidConstants.PA_PACKAGE, message);
+                }
+            });
+        }
+
+    };
+
+    /**
+     * Send the connection requests of the bulk requests to the Device Adapters (on the
+     * connection threads)
+     */
+    private final ConnectionScheduler.Target connectionTarget = new ConnectionScheduler.Target() {
+
+        @Override
+        public void execute(String daId, String devId, ConnectionScheduler.Action action) throws Exception {
+            // Retrieve the endpoint and the Capabilities of the DA
+            IDeviceAdapter da = connectedDAs.get(daId);
+            Capabilities cap = capabilitiesOf(daId);
+
+            if (da == null || cap == null) {
+                throw new IllegalStateException("Device Adapter " + daId + " is not connected");
+            }
+            if (!cap.isCommunicationInitiator()) {
+                throw new IllegalStateException("Connection initiation is not supported by Device Adapter " + daId);
+            }
+
+            switch (action) {
+                case CONNECT:
+                    da.connectDev(devId);
+                    break;
+                case FORCE_CONNECT:
+                    da.forceConnectDev(devId);
+                    break;
+                default:
+                    da.disconnectDev(devId);
+            }
+        }
+
+    };
+
+    /**
+     * Receive the progress of the bulk connection requests and report it, through log(), to the
+     * applications interested in the device
+     */
+    private final ConnectionScheduler.Listener connectionEndpoint = new ConnectionScheduler.Listener() {
 
+        @Override
+        public void onProgress(String requestId, String devId, ConnectionScheduler.Status status, String detail, int done, int total) {
+            final int level = status == ConnectionScheduler.Status.FAILED || status == ConnectionScheduler.Status.TIMEOUT ? LOG_LEVEL.WARNING : LOG_LEVEL.INFO;
+            final String message = CONNECTION_PROGRESS_PREFIX + requestId + " " + status + " on device " + devId + " (" + done + "/" + total + ")" +
+                    (detail != null ? ": " + detail : "");
+
+            Log.i(PAAndroidConstants.PA_LOGTAG, message);
+            subscribers.dispatch(devId, new SubscriberRegistry.Call() {
+                @Override
+                public void call(IProtocolAdapterListener listener) throws RemoteException {
+                    listener.log(level, PAAndroidConstants.PA_PACKAGE, message);
+                }
+            });
+        }
+
+        @Override
+        public void onAttempt(String devId, String daId, ConnectionScheduler.Action action, ConnectionScheduler.Status status, long duration) {
+            // Learn which DA works best for this type of device
+            if (action != ConnectionScheduler.Action.DISCONNECT) {
+                daSelector.recordConnection(devId, daId, status == ConnectionScheduler.Status.CONNECTED, duration);
+            }
+        }
+
+    };
+
+    /**
+     * Save the changes of the white/black lists and send them to the Device Adapters (on the
+     * list sync thread)
+     */
+    private final DeviceListSync.Listener listSyncEndpoint = new DeviceListSync.Listener() {
+
+        @Override
+        public void onSync() {
+            DeviceList.Delta whiteDelta = whitelist.drainDelta();
+            DeviceList.Delta blackDelta = blacklist.drainDelta();
+
+            if (whiteDelta != null || blackDelta != null) {
+                // Save the changes together, compacting the journal when it holds too many obsolete changes
+                listJournal.append(whiteDelta, blackDelta);
+                if (listJournal.needsCompaction(whitelist.size() + blacklist.size())) {
+                    listJournal.compact(whitelist.toList(), blacklist.toList());
+                }
+
+                if (whiteDelta != null) propagateListChanges(whiteDelta.getAdded(), whiteDelta.getRemoved(), false);
+                if (blackDelta != null) propagateListChanges(blackDelta.getAdded(), blackDelta.getRemoved(), true);
+            }
+
+            // Send the devices that became known and match a pattern, which the DAs cannot match
+            List<String> discovered = new ArrayList<String>(discoveredDevices);
+            discoveredDevices.removeAll(discovered);
+            List<String> whiteMatches = new ArrayList<String>();
+            List<String> blackMatches = new ArrayList<String>();
+            for (String devId : discovered) {
+                if (whitelist.matchesPattern(devId)) whiteMatches.add(devId);
+                if (blacklist.matchesPattern(devId)) blackMatches.add(devId);
+            }
+            if (!whiteMatches.isEmpty()) propagateListChanges(whiteMatches, Collections.<String>emptyList(), false);
+            if (!blackMatches.isEmpty()) propagateListChanges(blackMatches, Collections.<String>emptyList(), true);
+        }
+
+    };
+
+    /**
+     * Receive the Device Adapters as they reply to the discovery (on the discovery thread),
+     * making them available and notifying the applications
+     */
+    private final DADiscovery.Listener discoveryEndpoint = new DADiscovery.Listener() {
+
+        @Override
+        public void onDAFound(String daId, Capabilities cap) {
             // Insert the newly found DA inside the list of available DAs
-            if (daId != null && daCap != null) {
-                availableDAs.put(daId, daCap);
-                Log.i(PAAndroidConstants.PA_LOGTAG, "Found Device Adapter " + daCap.getFriendlyName() + " (" + daCap.getPackageName() + ")");
+            availableDAs.put(daId, cap);
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Found Device Adapter " + cap.getFriendlyName() + " (" + cap.getPackageName() + ")");
+
+            // Remember it together with the version of its package, for the next start
+            PackageInfo info = packageInfoOf(cap.getPackageName());
+            if (info != null) discoveryCache.put(daId, cap, info.versionCode, info.lastUpdateTime);
+
+            logToApplications(LOG_LEVEL.INFO, PAAndroidConstants.PA_PACKAGE, DA_FOUND_PREFIX + daId);
+
+            // A DA running when its package was updated is started again
+            if (restartAfterUpdate.remove(daId)) {
+                try {
+                    appEndpoint.startDA(daId);
+                } catch (RemoteException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Failed to restart updated Device Adapter " + daId);
+                }
             }
+        }
+
+        @Override
+        public void onDiscoveryFinished(int found, boolean early) {
+            discoveryCache.save();
+            logToApplications(LOG_LEVEL.INFO, PAAndroidConstants.PA_PACKAGE, DA_DISCOVERY_FINISHED + " (" + found + " Device Adapters)");
+        }
+
+    };
+
+    /**
+     * Receive the installation, update and removal of the packages, re-probing or removing only
+     * the affected DA instead of discovering all of them again
+     */
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
 
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String pkg = intent.getData() != null ? intent.getData().getSchemeSpecificPart() : null;
+            if (pkg == null || pkg.equals(getPackageName())) return;
+
+            // An update is also notified as a removal and an addition: wait for the replacement
+            String action = intent.getAction();
+            boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action) && !replacing) {
+                removeDAsOf(pkg, false);
+            } else if (Intent.ACTION_PACKAGE_REPLACED.equals(action) || (Intent.ACTION_PACKAGE_ADDED.equals(action) && !replacing)) {
+                // The Capabilities of an updated DA may have changed: forget them and ask again
+                removeDAsOf(pkg, true);
+                if (discovery.isDeviceAdapter(pkg)) discovery.probe(pkg);
+            }
         }
+
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Create the stage that collects the observations in batches before pushing them
+        batcher = new ObservationBatcher(batchEndpoint, dispatcher);
+
+        // Open the journal keeping the data while no application is listening, with what was left by the last run
+        journal = new ObservationJournal(getDir(JOURNAL_DIRNAME, MODE_PRIVATE));
+        journal.open();
+        journalReplayer = new JournalReplayer(journal, journalEndpoint);
+
+        // Create the stage computing the aggregates, enabled when an application asks for them
+        aggregator = new WindowAggregator(aggregateEndpoint);
+
+        // Create the stage executing the asynchronous commands
+        commands = new CommandExecutor(commandTarget, commandEndpoint);
+
+        // Create the stage scheduling the bulk connections
+        connections = new ConnectionScheduler(connectionTarget, connectionEndpoint);
+
+        // Create the stage propagating the changes of the white/black lists and their journal
+        listSync = new DeviceListSync(listSyncEndpoint);
+        listJournal = new DeviceListJournal(getDir(LISTS_DIRNAME, MODE_PRIVATE));
+
+        // Create the stage discovering the DAs in the background, and the cache of its results
+        discovery = new DADiscovery(this, discoveryEndpoint);
+        discoveryCache = new DADiscoveryCache(getDir(DISCOVERY_DIRNAME, MODE_PRIVATE), BuildConfig.VERSION_CODE);
+
+        // Keep the available DAs up to date when packages are installed, updated or removed
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(packageReceiver, packageFilter);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
 
@@ -878,8 +1529,41 @@ public class PAManagerService extends Service {
                 Log.d(PAAndroidConstants.PA_LOGTAG, ex.toString());
             }
 
+            // Apply the batching limits requested by the Issuer, if any
+            batcher.setMaxBatchSize(intent.getIntExtra(EXTRA_BATCH_MAX_SIZE, ObservationBatcher.DEFAULT_MAX_BATCH_SIZE));
+            batcher.setMaxBatchDelay(intent.getLongExtra(EXTRA_BATCH_MAX_DELAY, ObservationBatcher.DEFAULT_MAX_BATCH_DELAY));
+
+            // Apply the queue limits requested by the Issuer, if any
+            batcher.setQueueCapacity(intent.getIntExtra(EXTRA_QUEUE_CAPACITY, ObservationBatcher.DEFAULT_QUEUE_CAPACITY));
+            batcher.setMaxBlockTime(intent.getLongExtra(EXTRA_QUEUE_MAX_BLOCK_TIME, ObservationBatcher.DEFAULT_MAX_BLOCK_TIME));
+            String policy = intent.getStringExtra(EXTRA_QUEUE_POLICY);
+            if (policy != null) {
+                try {
+                    batcher.setOverflowPolicy(OverflowPolicy.valueOf(policy));
+                } catch (IllegalArgumentException e) {
+                    Log.w(PAAndroidConstants.PA_LOGTAG, "Unknown queue policy " + policy + ", using " + ObservationBatcher.DEFAULT_OVERFLOW_POLICY);
+                }
+            }
+
+            // Apply the transaction size limit requested by the Issuer, if any
+            sizeLimiter.setMaxTransactionSize(intent.getIntExtra(EXTRA_MAX_TRANSACTION_SIZE, TransactionSizeLimiter.DEFAULT_MAX_TRANSACTION_SIZE));
+
+            // Apply the data path diagnostics settings requested by the Issuer, if any
+            dataLogger.setDebugEnabled(intent.getBooleanExtra(EXTRA_DEBUG_DATA, BuildConfig.DEBUG));
+            dataLogger.setSamplingRate(intent.getIntExtra(EXTRA_DATA_LOG_SAMPLING, 0));
+
+            // Apply the history size requested by the Issuer, if any
+            history.setCapacity(intent.getIntExtra(EXTRA_HISTORY_CAPACITY, ObservationHistory.DEFAULT_CAPACITY));
+
+            // Apply the deadline for the requests sent to the DAs requested by the Issuer, if any
+            fanOut.setDeadline(intent.getLongExtra(EXTRA_DA_DEADLINE, DAFanOut.DEFAULT_DEADLINE));
+
+            // Apply the limits of the bulk connections requested by the Issuer, if any
+            connections.setMaxPerDa(intent.getIntExtra(EXTRA_MAX_CONNECTIONS_PER_DA, ConnectionScheduler.DEFAULT_MAX_PER_DA));
+            connections.setTimeout(intent.getLongExtra(EXTRA_CONNECTION_TIMEOUT, ConnectionScheduler.DEFAULT_TIMEOUT));
+
             // Retrieve the saved values for blacklist and whitelist
-            restoreFromSharedPreferences();
+            restoreLists();
 
             // Discover DAs on the system
             discoverDAs();
@@ -892,12 +1576,17 @@ public class PAManagerService extends Service {
             Log.i(PAAndroidConstants.PA_LOGTAG, "Protocol Adapter already up and running: not restarted.");
         }
 
-        return appEndpoint;
+        // The extended API is returned only to those asking for it
+        return ACTION_BIND_EXT.equals(intent.getAction()) ? extEndpoint : appEndpoint;
 
     }
 
     @Override
     public void onDestroy() {
+        // Stop the discovery, if still running, and watching the packages
+        unregisterReceiver(packageReceiver);
+        discovery.close();
+
         // Stop and unbind from binded DAs in order to avoid ServiceConnection leak
         Set<String> das = new TreeSet<String>(connectedDAs.keySet());
 
@@ -912,89 +1601,514 @@ public class PAManagerService extends Service {
             }
         }
 
+        // Push the observations still waiting in the buffers and the pending callbacks
+        journalReplayer.close();
+        aggregator.close();
+        batcher.close();
+        dispatcher.shutdown(DISPATCHER_SHUTDOWN_TIMEOUT);
+        Log.i(PAAndroidConstants.PA_LOGTAG, "Observation queues closed, " + batcher.getCounters());
+
+        // The batches still in the journal will be replayed at the next start
+        journal.close();
+
+        // Save the last changes of the white/black lists
+        listSync.close();
+        listJournal.close();
+
+        // Abandon the requests to the DAs and the commands still in progress
+        fanOut.shutdown();
+        commands.shutdown();
+        connections.shutdown();
+
         Log.d(PAAndroidConstants.PA_LOGTAG, "Protocol Adapter terminating");
     }
 
     /**
-     * Discover all the DA available on the system
+     * Discover all the DA available on the system. The DAs found by the last run whose package
+     * did not change are available immediately; the request is sent only to the other packages
+     * and the method returns without waiting for them: they are added to the available DAs as
+     * they reply, and the discovery ends as soon as all of them replied.
      */
     private void discoverDAs() {
-        Log.i(PAAndroidConstants.PA_LOGTAG, "Starting Device Adapter discovery");
+        List<String> changed = discovery.getInstalledPackages();
+
+        // Take the DAs whose package is still installed with the same version from the cache
+        discoveryCache.load();
+        for (DADiscoveryCache.Entry entry : discoveryCache.getEntries()) {
+            String pkg = entry.getCapabilities().getPackageName();
+            PackageInfo info = packageInfoOf(pkg);
+
+            if (info != null && info.versionCode == entry.getVersionCode() && info.lastUpdateTime == entry.getLastUpdateTime() && changed.remove(pkg)) {
+                availableDAs.put(entry.getDaId(), entry.getCapabilities());
+            } else {
+                discoveryCache.remove(entry.getDaId());
+            }
+        }
+        Log.i(PAAndroidConstants.PA_LOGTAG, availableDAs.size() + " Device Adapters restored from the discovery cache, " + changed.size() + " packages to discover");
+
+        // Ask only the packages that are new or changed
+        if (changed.isEmpty()) {
+            discoveryCache.save();
+        } else {
+            discovery.start(changed, true);
+        }
+    }
+
+    /**
+     * Return the information about an installed package.
+     *
+     * @param pkg The package name
+     * @return The PackageInfo, or null if the package is not installed
+     */
+    private PackageInfo packageInfoOf(String pkg) {
+        try {
+            return pkg != null ? getPackageManager().getPackageInfo(pkg, 0) : null;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Execute several commands, possibly on many devices, waiting for all of them to complete,
+     * fail or time out. The commands for devices that are not connected fail immediately.
+     *
+     * @param requests The commands to execute
+     * @param timeout The maximum time each command can take in milliseconds, or 0 for the default
+     * @return The outcome of every command, in the order of the requests
+     */
+    private List<CommandExecutor.Outcome> execCommands(List<CommandRequest> requests, long timeout) {
+        Log.i(PAAndroidConstants.PA_LOGTAG, "Executing " + requests.size() + " commands");
+
+        // Find the DAs of the devices not in the routing index, all at once
+        for (CommandRequest request : requests) {
+            if (request.getDeviceID() != null && deviceRouting.get(request.getDeviceID()) == null) {
+                learnRoutes("execCommands");
+                break;
+            }
+        }
+
+        // Leave out the commands for devices not connected
+        CommandExecutor.Outcome[] outcomes = new CommandExecutor.Outcome[requests.size()];
+        List<CommandRequest> routed = new ArrayList<CommandRequest>();
+        List<Integer> routedIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < requests.size(); i++) {
+            String daId = deviceRouting.get(requests.get(i).getDeviceID());
+
+            if (daId == null || !connectedDAs.containsKey(daId)) {
+                outcomes[i] = new CommandExecutor.Outcome(CommandExecutor.Status.FAILED, "Device " + requests.get(i).getDeviceID() + " is not connected");
+                continue;
+            }
+
+            routed.add(requests.get(i));
+            routedIndexes.add(i);
+        }
+
+        // IDeviceAdapter has no batch command, so the commands run in parallel per device
+        List<CommandExecutor.Outcome> routedOutcomes = commands.executeAll(routed, timeout);
+        for (int i = 0; i < routedOutcomes.size(); i++) {
+            outcomes[routedIndexes.get(i)] = routedOutcomes.get(i);
+        }
+
+        return Arrays.asList(outcomes);
+    }
+
+    /**
+     * Ask again every connected Device Adapter for the paired devices it can handle, for
+     * instance after the user paired a new device.
+     */
+    private void refreshDADevices() {
+        reportIncomplete("refreshDADevices", fanOut.invoke(connectedDAs.keySet(), connectedDAs, new DAFanOut.Call<Void>() {
+            @Override
+            public Void call(String daId, IDeviceAdapter da) throws RemoteException {
+                Capabilities cap = capabilitiesOf(daId);
+                if (cap == null) cap = da.getDACapabilities();
+
+                if (cap.canProvideAvailableDevice()) {
+                    putPairedDevices(daId, da.getPairedDevicesAddress());
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Send a command to the Device Adapter handling a device, finding it through the routing
+     * index or, if the device is not in the index, by asking the DAs for their connected devices.
+     *
+     * @param command The command to execute on the device
+     * @param parameter The optional parameter to pass to the device together with the command
+     * @param devId The Device ID
+     * @return True if the command was sent to a DA, false if no DA can execute it
+     * @throws RemoteException If the binder call to the DA fails
+     */
+    private boolean routeCommand(String command, String parameter, String devId) throws RemoteException {
+        // If the DA handling the device is known, send the command straight to it
+        String ownerDa = deviceRouting.get(devId);
+        IDeviceAdapter ownerEndpoint = ownerDa != null ? connectedDAs.get(ownerDa) : null;
+        if (ownerEndpoint != null) {
+            Capabilities cap = capabilitiesOf(ownerDa);
+
+            if (cap != null && cap.supportCommands() && cap.isCommunicationInitiator()) {
+                ownerEndpoint.execCommand(command, parameter, devId);
+                return true;
+            }
+            return false;
+        }
+
+        // Otherwise ask the DAs supporting commands for their connected devices...
+        learnRoutes("execCommand");
+
+        // ... If the desired device is connected with one of them at the moment, send it the command
+        String foundDa = deviceRouting.get(devId);
+        IDeviceAdapter foundEndpoint = foundDa != null ? connectedDAs.get(foundDa) : null;
+        if (foundEndpoint != null) {
+            foundEndpoint.execCommand(command, parameter, devId);
+            return true;
+        }
 
-        // Create the Intent to broadcast
-        Intent intent = new Intent(DA_DISCOVERY.REQUEST_ACTION);
-        intent.putExtra(DA_DISCOVERY.BUNDLE_REPACT, DA_DISCOVERY.REPLY_ACTION);
+        return false;
+    }
+
+    /**
+     * Ask the Device Adapters supporting commands for their connected devices, and add them to
+     * the routing index. Used when a command is sent to a device whose DA is not known yet.
+     *
+     * @param operation The name of the request needing the routes, used to report failures
+     */
+    private void learnRoutes(String operation) {
+        // Ask the DAs supporting commands for their connected devices, concurrently
+        List<String> targets = new ArrayList<String>();
+        for (String tmpDaName : connectedDAs.keySet()) {
+
+            // Retrieve the Capabilities of the DA
+            Capabilities cap = capabilitiesOf(tmpDaName);
+
+            // If the DA supports sending commands to devices and is connection initiator...
+            if (cap != null && cap.supportCommands() && cap.isCommunicationInitiator()) {
+                targets.add(tmpDaName);
+            }
+        }
+
+        DAFanOut.Result<List<DeviceDescription>> result = fanOut.invoke(targets, connectedDAs, new DAFanOut.Call<List<DeviceDescription>>() {
+            @Override
+            public List<DeviceDescription> call(String daId, IDeviceAdapter da) throws RemoteException {
+                return da.getConnectedDevices();
+            }
+        });
+        reportIncomplete(operation, result);
+
+        // Learn the routes to all their devices
+        for (Map.Entry<String, List<DeviceDescription>> entry : result.getResults().entrySet()) {
+            if (entry.getValue() == null) continue;
+
+            for (DeviceDescription tmpDev : entry.getValue()) {
+                deviceRouting.put(tmpDev.getDeviceID(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Return the connected Device Adapters able to initiate the connection with a device,
+     * starting from the one that worked best with this type of device.
+     *
+     * @param devId The Device ID
+     * @param daIds The IDs of the DAs handling the device
+     * @return The IDs of the DAs that can be used, the best first
+     */
+    private List<String> rankCandidates(String devId, List<String> daIds) {
+        List<String> usable = new ArrayList<String>();
+        for (String daId : daIds) {
+            Capabilities cap = capabilitiesOf(daId);
+            if (cap != null && cap.isCommunicationInitiator() && connectedDAs.containsKey(daId)) usable.add(daId);
+        }
+
+        return daSelector.rank(devId, usable);
+    }
+
+    /**
+     * Unbind a Device Adapter and remove it from the Maps, together with the routes to its
+     * devices and everything known about it while connected.
+     *
+     * @param daId The DA ID
+     */
+    private void releaseDA(String daId) {
+        // Get the DAConnection object from the Map
+        DAConnection conn = daConnections.get(daId);
 
-        // Create the Intent Filter to receive broadcast replies
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(DA_DISCOVERY.REPLY_ACTION);
+        if (conn != null) {
+            // Unbind the Device Adapter
+            unbindService(conn);
 
-        // Register the Broadcast Receiver for replies and set it to run in another thread
-        HandlerThread ht = new HandlerThread("ht");
-        ht.start();
-        registerReceiver(broadcastDiscoveryDA, filter, null, new Handler(ht.getLooper()));
+            // Remove the DA from the Maps
+            connectedDAs.remove(daId);
+            daConnections.remove(daId);
+            deviceRouting.removeDa(daId);
+            connections.removeDa(daId);
+            pairedDevices.remove(daId);
+            daInfo.invalidate(daId);
+        }
+    }
 
-        // Send in broadcast the Intent for discovery
-        sendBroadcast(intent);
+    /**
+     * Forget the Device Adapters of a package that was removed or updated, stopping them if
+     * they are running.
+     *
+     * @param pkg The package name
+     * @param updated True if the package was updated, so that its running DAs are started again once rediscovered
+     */
+    private void removeDAsOf(String pkg, boolean updated) {
+        for (Map.Entry<String, Capabilities> entry : availableDAs.entrySet()) {
+            if (!pkg.equals(entry.getValue().getPackageName())) continue;
 
-        // Create a new Thread object to stop the discovery and also use it as a lock
-        ScanningStopAndLock r = new ScanningStopAndLock();
+            // Make the DA unavailable first, so that it is not restarted when its service dies
+            String daId = entry.getKey();
+            availableDAs.remove(daId);
+            discoveryCache.remove(daId);
+            daSelector.removeDa(daId);
 
-        // Set the timeout for receiving replies
-        r.start();
+            if (connectedDAs.containsKey(daId)) {
+                if (updated) restartAfterUpdate.add(daId);
 
-        // Wait for the scanning to be done before returning
-        synchronized (r) {
-            while (!r.isDiscoveryDone()) {
                 try {
-                    r.wait();
-                } catch (InterruptedException e) {
-                    // Just wait until scanning is done
+                    appEndpoint.stopDA(daId);
+                } catch (RemoteException e) {
+                    // The DA is probably gone together with its package
+                    releaseDA(daId);
                 }
             }
+
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter " + daId + (updated ? " updated" : " removed"));
+            logToApplications(LOG_LEVEL.INFO, PAAndroidConstants.PA_PACKAGE, (updated ? DA_UPDATED_PREFIX : DA_REMOVED_PREFIX) + daId);
+        }
+
+        discoveryCache.save();
+    }
+
+    /**
+     * Return the Capabilities of a Device Adapter without any IPC: the ones it reported when it
+     * connected if available, otherwise the ones collected during the discovery.
+     *
+     * @param daId The DA ID
+     * @return The Capabilities of the DA, or null if the DA is not known
+     */
+    private Capabilities capabilitiesOf(String daId) {
+        if (daId == null) return null;
+
+        Capabilities cap = daInfo.getCapabilities(daId);
+        return cap != null ? cap : availableDAs.get(daId);
+    }
+
+    /**
+     * Report to the applications the Device Adapters that did not answer a request in time or
+     * failed, since the results of a request sent to several DAs may be partial.
+     *
+     * @param operation The name of the request
+     * @param result The outcome of the request
+     */
+    private void reportIncomplete(String operation, DAFanOut.Result<?> result) {
+        if (result.isComplete()) return;
+
+        logToApplications(LOG_LEVEL.WARNING, PAAndroidConstants.PA_PACKAGE, operation + " incomplete: Device Adapters " +
+                result.getTimedOut() + " timed out, " + result.getFailed().keySet() + " failed");
+    }
+
+    /**
+     * Forward a log message to every registered application.
+     *
+     * @param logLevel The severity of the event
+     * @param source The ID of the component that generated the event
+     * @param message The message associated with the event
+     */
+    private void logToApplications(final int logLevel, final String source, final String message) {
+        subscribers.dispatch(null, new SubscriberRegistry.Call() {
+            @Override
+            public void call(IProtocolAdapterListener listener) throws RemoteException {
+                listener.log(logLevel, source, message);
+            }
+        });
+    }
+
+    /**
+     * Check whether a device sending data or events to the PA is blacklisted. This is called for
+     * every callback of the DAs, so it must stay cheap: a hash lookup and a walk of the trie of
+     * the patterns, without locks.
+     *
+     * @param devDesc The device
+     * @return True if the device is in the blacklist, false otherwise
+     */
+    private boolean isBlacklisted(DeviceDescription devDesc) {
+        return devDesc != null && blacklist.contains(devDesc.getDeviceID());
+    }
+
+    /**
+     * Return the valid device IDs of a list passed by an application, skipping null and empty IDs.
+     *
+     * @param devIds The list of devices, possibly null
+     * @return The valid device IDs
+     */
+    private List<String> validDevices(List<String> devIds) {
+        List<String> valid = new ArrayList<String>();
+
+        if (devIds != null) {
+            for (String dev : devIds) {
+                if (dev != null && !"".equals(dev)) valid.add(dev);
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Replace the patterns of a device list with the Device IDs they match among the devices
+     * known to the PA, that is the paired and the connected ones, since the Device Adapters only
+     * support exact IDs.
+     *
+     * @param entries The entries of the list, Device IDs and patterns
+     * @return The Device IDs, without duplicates
+     */
+    private List<String> expandPatterns(List<String> entries) {
+        Set<String> devIds = new LinkedHashSet<String>();
+        List<String> patterns = new ArrayList<String>();
+
+        for (String entry : entries) {
+            if (DevicePatternTrie.isPattern(entry)) {
+                patterns.add(entry);
+            } else {
+                devIds.add(entry);
+            }
+        }
+        if (patterns.isEmpty()) return entries;
+
+        // Match every known device once against all the patterns
+        DevicePatternTrie trie = new DevicePatternTrie(patterns);
+        Set<String> known = new HashSet<String>(pairedDevices.getDevices().keySet());
+        for (String daId : connectedDAs.keySet()) {
+            known.addAll(deviceRouting.getDevices(daId));
         }
+        for (String devId : known) {
+            if (trie.matches(devId)) devIds.add(devId);
+        }
+
+        return new ArrayList<String>(devIds);
+    }
+
+    /**
+     * Remember the devices that became known to the PA, and schedule sending them to the Device
+     * Adapters if they match a pattern of the lists: the DAs only receive the known devices
+     * matching the patterns.
+     *
+     * @param devIds The Device IDs
+     */
+    private void onDevicesDiscovered(Collection<String> devIds) {
+        if (!whitelist.hasPatterns() && !blacklist.hasPatterns()) return;
 
+        for (String devId : devIds) {
+            if (whitelist.matchesPattern(devId) || blacklist.matchesPattern(devId)) {
+                discoveredDevices.add(devId);
+                listSync.schedule();
+            }
+        }
     }
 
     /**
-     * Stop the discovery of new DAs
+     * Update the cache of the paired devices of a Device Adapter, noting the devices that were
+     * not known before.
+     *
+     * @param daId The DA ID
+     * @param devices The Device IDs of the paired devices the DA can handle
      */
-    private void stopDADiscovery() {
-        // Stop receiving intents related to DA discovery
-        unregisterReceiver(broadcastDiscoveryDA);
+    private void putPairedDevices(String daId, List<String> devices) {
+        List<String> discovered = new ArrayList<String>();
+        if (devices != null) {
+            for (String devId : devices) {
+                if (pairedDevices.getDAs(devId) == null && deviceRouting.get(devId) == null) discovered.add(devId);
+            }
+        }
 
-        Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter discovery ended");
+        pairedDevices.put(daId, devices);
+        onDevicesDiscovered(discovered);
     }
 
     /**
-     * Remove every element on this list
+     * Send the changes of a device list to the connected Device Adapters supporting it: one
+     * request per change if they are few, the whole list otherwise.
      *
-     * @param list The list of devices
+     * @param addedEntries The entries added to the list
+     * @param removedEntries The entries removed from the list
+     * @param black True for the blacklist, false for the whitelist
      */
-    private void emptyList(List<String> list) {
+    private void propagateListChanges(List<String> addedEntries, List<String> removedEntries, final boolean black) {
+        DeviceList list = black ? blacklist : whitelist;
+        int changes = addedEntries.size() + removedEntries.size();
+        final List<String> full = changes > MAX_LIST_DELTA || changes > list.size() ? expandPatterns(list.toList()) : null;
+
+        // The DAs only know exact IDs: patterns become the known devices matching them, and the
+        // devices still matched by another entry must not be removed
+        final List<String> added = expandPatterns(addedEntries);
+        final List<String> removed = new ArrayList<String>();
+        for (String devId : expandPatterns(removedEntries)) {
+            if (!list.contains(devId)) removed.add(devId);
+        }
 
-        if (list == null || list.isEmpty()) return;
+        // Select the connected DAs supporting the list
+        List<String> targets = new ArrayList<String>();
+        for (String tmpDaName : connectedDAs.keySet()) {
+            Capabilities cap = capabilitiesOf(tmpDaName);
 
-        for (String dev:list) {
-            list.remove(dev);
+            if (cap != null && (black ? cap.hasBlacklist() : cap.hasWhitelist())) {
+                targets.add(tmpDaName);
+            }
         }
+        if (targets.isEmpty()) return;
+
+        Log.d(PAAndroidConstants.PA_LOGTAG, "Sending " + (full != null ? "the whole " : changes + " changes of the ") + (black ? "blacklist" : "whitelist") + " to " + targets.size() + " Device Adapters");
+
+        // Send the changes to all of them concurrently
+        reportIncomplete(black ? "setBlackList" : "setWhitelist", fanOut.invoke(targets, connectedDAs, new DAFanOut.Call<Void>() {
+            @Override
+            public Void call(String daId, IDeviceAdapter da) throws RemoteException {
+                if (full != null) {
+                    if (black) da.setBlackList(full); else da.setWhitelist(full);
+                    return null;
+                }
 
+                for (String devId : removed) {
+                    if (black) da.removeDeviceFromBlacklist(devId); else da.removeDeviceFromWhitelist(devId);
+                }
+                for (String devId : added) {
+                    if (black) da.addDeviceToBlackList(devId); else da.addDeviceToWhitelist(devId);
+                }
+                return null;
+            }
+        }));
     }
 
     /**
-     * Synchronize actual value of whitelist and blacklist with SharedPreferences
+     * Restore the whitelist and the blacklist from their journal. On the first start after an
+     * update, the lists saved in the SharedPreferences are moved to the journal; they are only
+     * removed from the SharedPreferences once the journal holding them is in place, so that the
+     * move is done again if it did not complete.
      */
-    private void syncSharedPreferences() {
-        // Get the SharedPreferences and prepare them for editing
-        SharedPreferences settings = getSharedPreferences(SHPREF_FILENAME, 0);
-        SharedPreferences.Editor editor = settings.edit();
+    private void restoreLists() {
+        List<String> restoredWhitelist = new ArrayList<String>();
+        List<String> restoredBlacklist = new ArrayList<String>();
+
+        if (listJournal.open(restoredWhitelist, restoredBlacklist)) {
+            whitelist.load(restoredWhitelist);
+            blacklist.load(restoredBlacklist);
+        } else {
+            restoreFromSharedPreferences();
 
-        // Update the values of whitelist and blacklist in the SharedPreferences
-        editor.putString(SHPREF_WHITELIST_NAME, new JSONArray(whitelist).toString());
-        editor.putString(SHPREF_BLACKLIST_NAME, new JSONArray(blacklist).toString());
+            // Create the journal even for empty lists, so that the changes are recorded
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Moving the white/black lists from SharedPreferences to the journal");
+            if (listJournal.compact(whitelist.toList(), blacklist.toList())) {
+                getSharedPreferences(SHPREF_FILENAME, 0).edit().clear().commit();
+            } else {
+                Log.e(PAAndroidConstants.PA_LOGTAG, "Cannot create the device list journal, the white/black lists stay in SharedPreferences");
+            }
+        }
 
-        // Commit the edits
-        editor.commit();
+        Log.d(PAAndroidConstants.PA_LOGTAG, "Restored " + whitelist.size() + " whitelisted and " + blacklist.size() + " blacklisted devices");
     }
 
     /**
@@ -1021,22 +2135,27 @@ public class PAManagerService extends Service {
         }
 
         // Add to whitelist every element present in JSONArray retrieved from SharedPreferences
+        List<String> restored = new ArrayList<String>();
         for (int i = 0; i < jWhitelist.length(); i++) {
             try {
-                whitelist.add(jWhitelist.getString(i));
+                restored.add(jWhitelist.getString(i));
             } catch (JSONException e) {
                 Log.d(PAAndroidConstants.PA_LOGTAG, "Failed restoring whitelist from SharedPreferences");
             }
         }
 
+        whitelist.load(restored);
+
         // Add to blacklist every element present in JSONArray retrieved from SharedPreferences
+        restored = new ArrayList<String>();
         for (int i = 0; i < jBlacklist.length(); i++) {
             try {
-                blacklist.add(jBlacklist.getString(i));
+                restored.add(jBlacklist.getString(i));
             } catch (JSONException e) {
                 Log.d(PAAndroidConstants.PA_LOGTAG, "Failed restoring blacklist from SharedPreferences");
             }
         }
+        blacklist.load(restored);
     }
 
     /**
@@ -1058,28 +2177,6 @@ public class PAManagerService extends Service {
 
     }
 
-    private class ScanningStopAndLock extends Thread {
-        private boolean done = false;
-
-        @Override
-        public void run() {
-            try {
-                Thread.sleep(DA_DISCOVERY.TIMEOUT);
-            } catch (InterruptedException e) {
-                // Do nothing
-            }
-            stopDADiscovery();
-            synchronized (this) {
-                done = true;
-                notifyAll();
-            }
-        }
-
-        public boolean isDiscoveryDone() {
-            return done;
-        }
-    }
-
     /**
      * Endpoint for managing the connection/disconnection of the Device Adapters
      */
@@ -1105,24 +2202,40 @@ public class PAManagerService extends Service {
             }
 
             try {
-                // Get the Capabilities of the DA
+                // Get the Capabilities of the DA and its commands, once for all
                 Capabilities cap = tmpDa.getDACapabilities();
+                daInfo.put(daId, cap, cap.supportCommands() ? tmpDa.getCommandList() : null);
 
                 // Restore the blacklist inside the newly connected DA if it's supported
                 if (cap.hasBlacklist()) {
-                    tmpDa.setBlackList(blacklist);
+                    tmpDa.setBlackList(expandPatterns(blacklist.toList()));
                 }
 
                 // Restore the whitelist inside the newly connected DA if it's supported
                 if (cap.hasWhitelist()) {
-                    tmpDa.setWhitelist(whitelist);
+                    tmpDa.setWhitelist(expandPatterns(whitelist.toList()));
                 }
 
                 // Start the newly connected DA
                 tmpDa.start();
 
-                // Notify the Application that the DA has finished its initialization phase
-                appApi.onDAConnected(daId);
+                // Collect the paired devices the DA can handle
+                if (cap.canProvideAvailableDevice()) {
+                    putPairedDevices(daId, tmpDa.getPairedDevicesAddress());
+
+                    // The patterns of the lists may match some of them: send the lists again
+                    if (cap.hasBlacklist() && blacklist.hasPatterns()) tmpDa.setBlackList(expandPatterns(blacklist.toList()));
+                    if (cap.hasWhitelist() && whitelist.hasPatterns()) tmpDa.setWhitelist(expandPatterns(whitelist.toList()));
+                }
+
+                // Notify the Applications that the DA has finished its initialization phase
+                final String connectedDaId = daId;
+                subscribers.dispatch(null, new SubscriberRegistry.Call() {
+                    @Override
+                    public void call(IProtocolAdapterListener listener) throws RemoteException {
+                        listener.onDAConnected(connectedDaId);
+                    }
+                });
 
             } catch (RemoteException e) {
                 Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to start DA " + daId);
@@ -1137,8 +2250,12 @@ public class PAManagerService extends Service {
 
             Log.i(PAAndroidConstants.PA_LOGTAG, daId + " Device Adapter service disconnected.");
 
-            // Remove the Device Adapter from the DA List
+            // Remove the Device Adapter from the DA List, together with the routes to its devices
             connectedDAs.remove(daId);
+            deviceRouting.removeDa(daId);
+            connections.removeDa(daId);
+            pairedDevices.remove(daId);
+            daInfo.invalidate(daId);
 
             try {
                 // Try to start the DA again. This way, the DA will be added again to the list of
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Executes the commands for the devices asynchronously. Every command gets an ID as soon as it
+ * is submitted, and its outcome (completion, failure or timeout) is reported later to a listener.
+ * The commands for the same device are executed one at a time, in the order they were
+ * submitted, while the commands for different devices run in parallel.
+ * <p>
+ * A binder call cannot be interrupted, so a command that times out keeps its thread until the
+ * Device Adapter answers. Until then the device is blocked: the commands waiting for it and the
+ * new ones fail immediately instead of piling up behind the stuck call. Threads are created as
+ * needed, so a stuck device holds a single thread and never delays the other devices.
+ */
+public class CommandExecutor {
+
+    // Default maximum time a command can take before being reported as timed out
+    public static final long DEFAULT_TIMEOUT = 10000L;
+
+    // Maximum number of commands waiting for each device
+    public static final int MAX_PENDING = 64;
+
+    // Maximum time executeAll() waits for the outcomes, whatever the number of commands
+    public static final long MAX_BULK_WAIT = 60000L;
+
+    // Idle time of the threads
+    private static final long KEEP_ALIVE = 30L;
+
+    private final ConcurrentMap<String, DeviceQueue> queues = new ConcurrentHashMap<>(); // <[Device ID], [DeviceQueue]>
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Target target;
+    private final Listener listener;
+
+    /**
+     * The outcome of a command
+     */
+    public enum Status {
+        COMPLETED, FAILED, TIMEOUT
+    }
+
+    /**
+     * Sends the commands to the devices.
+     */
+    public interface Target {
+
+        /**
+         * Send a command to a device, blocking until the device adapter accepted it.
+         *
+         * @param devId The Device ID
+         * @param command The command
+         * @param parameter The optional parameter of the command
+         * @throws Exception If the command could not be executed
+         */
+        public void execute(String devId, String command, String parameter) throws Exception;
+    }
+
+    /**
+     * Receives the outcome of the commands.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a command completed, failed or timed out.
+         *
+         * @param commandId The ID of the command
+         * @param devId The Device ID
+         * @param command The command
+         * @param status The outcome of the command
+         * @param detail A description of the failure, or null
+         */
+        public void onCommandResult(String commandId, String devId, String command, Status status, String detail);
+    }
+
+    /**
+     * The outcome of a command of a bulk request
+     */
+    public static class Outcome {
+        private final Status status;
+        private final String detail;
+
+        public Outcome(Status status, String detail) {
+            this.status = status;
+            this.detail = detail;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return detail != null ? status + ": " + detail : status.toString();
+        }
+    }
+
+    /**
+     * Create a new executor.
+     *
+     * @param target The target sending the commands to the devices
+     * @param listener The listener receiving the outcome of the commands
+     */
+    public CommandExecutor(Target target, Listener listener) {
+        this.target = target;
+        this.listener = listener;
+
+        // Timeouts have their own thread, so that they fire even if all the workers are stuck
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), newThreadFactory("PA commands"));
+        timer = new ScheduledThreadPoolExecutor(1, newThreadFactory("PA command timer"));
+    }
+
+    /**
+     * Submit a command for a device.
+     *
+     * @param devId The Device ID
+     * @param command The command
+     * @param parameter The optional parameter of the command
+     * @param timeout The maximum time the command can take, in milliseconds, or 0 for the default
+     * @return The ID of the command, which will be passed to the listener with its outcome
+     * @throws IllegalStateException If too many commands are waiting for the device, or the
+     * device did not answer a previous command yet
+     */
+    public String submit(String devId, String command, String parameter, long timeout) {
+        return submit(devId, command, parameter, timeout, null);
+    }
+
+    /**
+     * Execute several commands, waiting for all of them to complete, fail or time out. The
+     * commands for different devices run in parallel and the ones for the same device in order,
+     * exactly as if they had been submitted one by one, but their outcome is returned instead of
+     * being reported to the listener. The wait lasts at most MAX_BULK_WAIT: the commands without
+     * an outcome by then are reported as timed out, even though they keep running.
+     *
+     * @param requests The commands to execute
+     * @param timeout The maximum time each command can take in milliseconds, or 0 for the default
+     * @return The outcome of every command, in the order of the requests
+     */
+    public List<Outcome> executeAll(List<CommandRequest> requests, long timeout) {
+        final Outcome[] outcomes = new Outcome[requests.size()];
+        final CountDownLatch latch = new CountDownLatch(requests.size());
+        Map<String, Integer> perDevice = new HashMap<String, Integer>(); // <[Device ID], [Number of commands]>
+        int longestQueue = 0;
+
+        for (int i = 0; i < requests.size(); i++) {
+            CommandRequest request = requests.get(i);
+
+            Integer count = perDevice.get(request.getDeviceID());
+            count = count != null ? count + 1 : 1;
+            perDevice.put(request.getDeviceID(), count);
+            longestQueue = Math.max(longestQueue, count);
+
+            final int index = i;
+            try {
+                submit(request.getDeviceID(), request.getCommand(), request.getParameter(), timeout, new Callback() {
+                    @Override
+                    public void onResult(Status status, String detail) {
+                        synchronized (outcomes) {
+                            outcomes[index] = new Outcome(status, detail);
+                        }
+                        latch.countDown();
+                    }
+                });
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // The command will not be executed
+                synchronized (outcomes) {
+                    outcomes[index] = new Outcome(Status.FAILED, e.getMessage());
+                }
+                latch.countDown();
+            }
+        }
+
+        // Every command ends by its timeout, so the longest device queue bounds the wait
+        try {
+            long perCommand = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+            long wait = Math.min(MAX_BULK_WAIT, perCommand * longestQueue + perCommand);
+            if (!latch.await(wait, TimeUnit.MILLISECONDS)) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Bulk command execution did not complete in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Outcome> result = new ArrayList<Outcome>(outcomes.length);
+        synchronized (outcomes) {
+            for (Outcome outcome : outcomes) {
+                result.add(outcome != null ? outcome : new Outcome(Status.TIMEOUT, "Not executed in time"));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Submit a command for a device.
+     *
+     * @param devId The Device ID
+     * @param command The command
+     * @param parameter The optional parameter of the command
+     * @param timeout The maximum time the command can take, in milliseconds, or 0 for the default
+     * @param callback The callback receiving the outcome, or null to report it to the listener
+     * @return The ID of the command
+     */
+    private String submit(String devId, String command, String parameter, long timeout, Callback callback) {
+        if (devId == null || command == null) throw new IllegalArgumentException("Device ID and command are required");
+
+        Command cmd = new Command("cmd-" + nextId.incrementAndGet(), devId, command, parameter, timeout > 0 ? timeout : DEFAULT_TIMEOUT);
+        cmd.callback = callback;
+
+        DeviceQueue queue = queues.get(devId);
+        if (queue == null) {
+            DeviceQueue newQueue = new DeviceQueue();
+            queue = queues.putIfAbsent(devId, newQueue);
+            if (queue == null) queue = newQueue;
+        }
+
+        synchronized (queue) {
+            if (queue.blocked) {
+                throw new IllegalStateException("Device " + devId + " did not answer a previous command yet");
+            }
+            if (queue.pending.size() >= MAX_PENDING) {
+                throw new IllegalStateException("Too many commands waiting for device " + devId);
+            }
+
+            queue.pending.add(cmd);
+            if (queue.running == null) startNext(queue);
+        }
+
+        return cmd.id;
+    }
+
+    /**
+     * Forget the queue of a device that left the system, if it is idle.
+     *
+     * @param devId The Device ID
+     */
+    public void removeDevice(String devId) {
+        DeviceQueue queue = devId != null ? queues.get(devId) : null;
+        if (queue == null) return;
+
+        synchronized (queue) {
+            if (queue.running == null && queue.pending.isEmpty()) queues.remove(devId, queue);
+        }
+    }
+
+    /**
+     * Stop the executor, abandoning the commands still waiting.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start the next command of a device. Must be called while holding the lock of the queue.
+     *
+     * @param queue The queue of the device
+     */
+    private void startNext(final DeviceQueue queue) {
+        final Command cmd = queue.pending.poll();
+        queue.running = cmd;
+        if (cmd == null) return;
+
+        try {
+            cmd.timeoutFuture = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    complete(cmd, Status.TIMEOUT, "No answer after " + cmd.timeout + " ms");
+                    block(queue, cmd);
+                }
+            }, cmd.timeout, TimeUnit.MILLISECONDS);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        target.execute(cmd.devId, cmd.command, cmd.parameter);
+                        complete(cmd, Status.COMPLETED, null);
+                    } catch (Exception e) {
+                        complete(cmd, Status.FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+                    } finally {
+                        finished(queue, cmd);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Command executor stopped, dropping command " + cmd.id);
+        }
+    }
+
+    /**
+     * Start the next command of a device once the call of the running one returned, unblocking
+     * the device if that call had timed out.
+     *
+     * @param queue The queue of the device
+     * @param cmd The command whose call returned
+     */
+    private void finished(DeviceQueue queue, Command cmd) {
+        synchronized (queue) {
+            if (queue.running != cmd) return;
+
+            if (queue.blocked) {
+                Log.i(PAAndroidConstants.PA_LOGTAG, "Device " + cmd.devId + " answered command " + cmd.id + " after its timeout");
+                queue.blocked = false;
+            }
+            startNext(queue);
+        }
+    }
+
+    /**
+     * Block a device whose running command timed out while its call is still in progress,
+     * failing the commands waiting for it.
+     *
+     * @param queue The queue of the device
+     * @param cmd The command that timed out
+     */
+    private void block(DeviceQueue queue, Command cmd) {
+        List<Command> dropped;
+
+        synchronized (queue) {
+            if (queue.running != cmd) return;
+
+            queue.blocked = true;
+            dropped = new ArrayList<Command>(queue.pending);
+            queue.pending.clear();
+        }
+
+        for (Command waiting : dropped) {
+            complete(waiting, Status.FAILED, "Device " + cmd.devId + " did not answer command " + cmd.id);
+        }
+    }
+
+    /**
+     * Report the outcome of a command, unless it was already reported.
+     *
+     * @param cmd The command
+     * @param status The outcome of the command
+     * @param detail A description of the failure, or null
+     */
+    private void complete(Command cmd, Status status, String detail) {
+        if (!cmd.done.compareAndSet(false, true)) return;
+
+        Future<?> timeoutFuture = cmd.timeoutFuture;
+        if (timeoutFuture != null) timeoutFuture.cancel(false);
+
+        // Commands of a bulk request go back to their caller, the others to the listener
+        try {
+            if (cmd.callback != null) {
+                cmd.callback.onResult(status, detail);
+            } else {
+                listener.onCommandResult(cmd.id, cmd.devId, cmd.command, status, detail);
+            }
+        } catch (RuntimeException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to report the result of command " + cmd.id, e);
+        }
+    }
+
+    /**
+     * Create a factory of daemon threads.
+     *
+     * @param name The name of the threads
+     * @return The thread factory
+     */
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Receives the outcome of a single command
+     */
+    private interface Callback {
+        public void onResult(Status status, String detail);
+    }
+
+    /**
+     * The commands of a single device
+     */
+    private static class DeviceQueue {
+        private final ArrayDeque<Command> pending = new ArrayDeque<Command>();
+        private Command running = null;
+        private boolean blocked = false;
+    }
+
+    /**
+     * A submitted command
+     */
+    private static class Command {
+        private final String id;
+        private final String devId;
+        private final String command;
+        private final String parameter;
+        private final long timeout;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private volatile Future<?> timeoutFuture;
+        private Callback callback = null;
+
+        private Command(String id, String devId, String command, String parameter, long timeout) {
+            this.id = id;
+            this.devId = devId;
+            this.command = command;
+            this.parameter = parameter;
+            this.timeout = timeout;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+/**
+ * A command to execute on a device, as part of a bulk request.
+ */
+public class CommandRequest {
+
+    private final String devId;
+    private final String command;
+    private final String parameter;
+
+    /**
+     * Create a new command request.
+     *
+     * @param devId The Device ID
+     * @param command The command to execute on the device
+     * @param parameter The optional parameter to pass to the device together with the command
+     */
+    public CommandRequest(String devId, String command, String parameter) {
+        this.devId = devId;
+        this.command = command;
+        this.parameter = parameter;
+    }
+
+    public String getDeviceID() {
+        return devId;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandRequest{devId=" + devId + ", command=" + command + ", parameter=" + parameter + "}";
+    }
+}
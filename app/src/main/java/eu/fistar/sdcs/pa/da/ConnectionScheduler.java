@@ -0,0 +1,687 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Schedules the connections and disconnections of many devices, limiting the number of
+ * connection attempts running at the same time on every Device Adapter, so that the radio of the
+ * DA is not saturated by a whole fleet connecting at once. A connection attempt holds its slot
+ * until the device registers or the attempt times out. The requests waiting for a slot are
+ * started by priority, then in the order they were submitted, and the progress of every bulk
+ * request is reported asynchronously to a listener. A connection can be given several DAs in
+ * order of preference: if the attempt with one DA fails or times out, the next one is tried, and
+ * the DA that timed out is asked to disconnect the device so that a late connection is dropped.
+ * <p>
+ * A binder call cannot be interrupted, so a call to a DA that does not answer keeps the slot of
+ * its attempt even after the attempt timed out: a stuck DA can only hold as many threads as it
+ * has slots, and the other DAs are never delayed. Until its calls return, the operations waiting
+ * for a stuck DA fail, or move on to their next DA, instead of waiting for a free slot.
+ */
+public class ConnectionScheduler {
+
+    // Default maximum number of connection attempts running at the same time on a DA
+    public static final int DEFAULT_MAX_PER_DA = 2;
+
+    // Default maximum time a device can take to register after the connection was requested
+    public static final long DEFAULT_TIMEOUT = 30000L;
+
+    // Idle time of the threads
+    private static final long KEEP_ALIVE = 30L;
+
+    private final Map<String, DaQueue> queues = new HashMap<String, DaQueue>(); // <[DA ID], [DaQueue]>
+    private final Map<String, Job> inFlight = new HashMap<String, Job>(); // <[Device ID], [Job]>
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final Target target;
+    private final Listener listener;
+    private volatile int maxPerDa = DEFAULT_MAX_PER_DA;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * The operation to perform on a device
+     */
+    public enum Action {
+        CONNECT, FORCE_CONNECT, DISCONNECT
+    }
+
+    /**
+     * The progress of the operation on a device
+     */
+    public enum Status {
+        CONNECTED, DISCONNECTED, FAILED, TIMEOUT
+    }
+
+    /**
+     * Sends the connection requests to the Device Adapters.
+     */
+    public interface Target {
+
+        /**
+         * Ask a Device Adapter to connect or disconnect a device, blocking until the DA accepted
+         * the request.
+         *
+         * @param daId The DA ID
+         * @param devId The Device ID
+         * @param action The operation to perform
+         * @throws Exception If the request could not be sent
+         */
+        public void execute(String daId, String devId, Action action) throws Exception;
+    }
+
+    /**
+     * Receives the progress of the bulk requests.
+     */
+    public interface Listener {
+
+        /**
+         * Called every time the operation on a device of a bulk request ends.
+         *
+         * @param requestId The ID of the bulk request
+         * @param devId The Device ID
+         * @param status The outcome of the operation on the device
+         * @param detail A description of the failure, or null
+         * @param done The number of devices of the request whose operation ended
+         * @param total The number of devices of the request
+         */
+        public void onProgress(String requestId, String devId, Status status, String detail, int done, int total);
+
+        /**
+         * Called every time an attempt with a single Device Adapter ends, including the ones
+         * followed by an attempt with another DA.
+         *
+         * @param devId The Device ID
+         * @param daId The DA ID
+         * @param action The operation attempted
+         * @param status The outcome of the attempt
+         * @param duration The time the attempt took, in milliseconds
+         */
+        public void onAttempt(String devId, String daId, Action action, Status status, long duration);
+    }
+
+    /**
+     * The operation to perform on a single device of a bulk request
+     */
+    public static class Request {
+        private final String devId;
+        private final List<String> daIds;
+        private final Action action;
+
+        /**
+         * Create a new request.
+         *
+         * @param devId The Device ID
+         * @param daId The ID of the DA handling the device, or null if there is none
+         * @param action The operation to perform
+         */
+        public Request(String devId, String daId, Action action) {
+            this(devId, daId != null ? Collections.singletonList(daId) : Collections.<String>emptyList(), action);
+        }
+
+        /**
+         * Create a new request that can be performed by several Device Adapters.
+         *
+         * @param devId The Device ID
+         * @param daIds The IDs of the DAs able to handle the device, the preferred one first
+         * @param action The operation to perform
+         */
+        public Request(String devId, List<String> daIds, Action action) {
+            this.devId = devId;
+            this.daIds = Collections.unmodifiableList(new ArrayList<String>(daIds));
+            this.action = action;
+        }
+
+        public String getDeviceID() {
+            return devId;
+        }
+
+        public List<String> getDaIds() {
+            return daIds;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+    }
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param target The target sending the requests to the Device Adapters
+     * @param listener The listener receiving the progress of the bulk requests
+     */
+    public ConnectionScheduler(Target target, Listener listener) {
+        this.target = target;
+        this.listener = listener;
+
+        // Timeouts have their own thread, so that they fire even if all the workers are stuck
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), newThreadFactory("PA connections"));
+        timer = new ScheduledThreadPoolExecutor(1, newThreadFactory("PA connection timer"));
+    }
+
+    /**
+     * Set the maximum number of connection attempts running at the same time on a Device Adapter.
+     *
+     * @param maxPerDa The maximum number of attempts, at least 1
+     */
+    public void setMaxPerDa(int maxPerDa) {
+        this.maxPerDa = Math.max(1, maxPerDa);
+        synchronized (this) {
+            for (DaQueue queue : queues.values()) {
+                startNext(queue);
+            }
+        }
+    }
+
+    /**
+     * Set the maximum time a device can take to register after the connection was requested.
+     *
+     * @param timeout The timeout, in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = Math.max(1L, timeout);
+    }
+
+    /**
+     * Submit a bulk request. The devices without a Device Adapter, or with an operation already
+     * scheduled, are reported as failed right away.
+     *
+     * @param requests The operations to perform, one per device
+     * @param priority The priority of the request: the requests with higher priority are started first
+     * @return The ID of the bulk request, which will be passed to the listener with the progress
+     */
+    public String submit(List<Request> requests, int priority) {
+        Batch batch = new Batch("conn-" + nextId.incrementAndGet(), requests.size());
+        List<Job> rejected = new ArrayList<Job>();
+
+        List<Job> blocked;
+        synchronized (this) {
+            for (Request request : requests) {
+                Job job = new Job(batch, request, priority, nextSeq.incrementAndGet());
+
+                if (request.daIds.isEmpty()) {
+                    job.detail = "No Device Adapter can handle the device";
+                    rejected.add(job);
+                } else if (request.devId == null || inFlight.containsKey(request.devId)) {
+                    job.detail = "An operation is already scheduled for the device";
+                    rejected.add(job);
+                } else {
+                    inFlight.put(request.devId, job);
+                    enqueue(job);
+                }
+            }
+
+            for (DaQueue queue : new ArrayList<DaQueue>(queues.values())) {
+                startNext(queue);
+            }
+            blocked = takeBlocked();
+        }
+
+        Log.d(PAAndroidConstants.PA_LOGTAG, "Scheduled connection request " + batch.id + " for " + requests.size() + " devices");
+
+        for (Job job : rejected) {
+            report(job, Status.FAILED, job.detail);
+        }
+        failBlocked(blocked);
+
+        return batch.id;
+    }
+
+    /**
+     * Notify that a device registered, completing its connection attempt, if any. A device
+     * registered by another DA than the one of the running attempt, for instance the DA of an
+     * attempt that already timed out, does not complete it.
+     *
+     * @param devId The Device ID
+     * @param daId The ID of the DA that registered the device
+     */
+    public void onConnected(String devId, String daId) {
+        Job job;
+        int attempt;
+        synchronized (this) {
+            job = devId != null ? inFlight.get(devId) : null;
+            if (job == null || !job.started || job.request.action == Action.DISCONNECT) return;
+            if (!job.getDaId().equals(daId)) return;
+            attempt = job.attempt;
+        }
+
+        complete(job, attempt, Status.CONNECTED, null);
+    }
+
+    /**
+     * Fail the operations waiting for or running on a Device Adapter that went away.
+     *
+     * @param daId The DA ID
+     */
+    public void removeDa(String daId) {
+        List<Job> jobs = new ArrayList<Job>();
+        List<Integer> attempts = new ArrayList<Integer>();
+        synchronized (this) {
+            for (Job job : inFlight.values()) {
+                if (daId != null && daId.equals(job.getDaId())) {
+                    jobs.add(job);
+                    attempts.add(job.attempt);
+                }
+            }
+        }
+
+        for (int i = 0; i < jobs.size(); i++) {
+            complete(jobs.get(i), attempts.get(i), Status.FAILED, "Device Adapter " + daId + " disconnected");
+        }
+    }
+
+    /**
+     * Stop the scheduler, abandoning the operations still waiting.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start the operations waiting on a Device Adapter, as long as it has free slots. Must be
+     * called while holding the lock of the scheduler.
+     *
+     * @param queue The queue of the DA
+     */
+    private void startNext(final DaQueue queue) {
+        while (queue.running < maxPerDa && !queue.pending.isEmpty()) {
+            final Job job = queue.pending.poll();
+            final int attempt = job.attempt;
+            final String daId = queue.daId;
+            final DaCall call = new DaCall();
+            job.started = true;
+            job.startTime = System.currentTimeMillis();
+            job.call = call;
+            queue.running++;
+
+            try {
+                job.timeoutFuture = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(job, attempt, Status.TIMEOUT, "No answer after " + timeout + " ms");
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception failure = null;
+                        try {
+                            target.execute(daId, job.request.devId, job.request.action);
+                        } catch (Exception e) {
+                            failure = e;
+                        }
+                        returned(queue, job, call);
+
+                        // A disconnection ends when the DA accepts it, a connection when the device registers
+                        if (failure != null) {
+                            complete(job, attempt, Status.FAILED, failure.getMessage() != null ? failure.getMessage() : failure.toString());
+                        } else if (job.request.action == Action.DISCONNECT) {
+                            complete(job, attempt, Status.DISCONNECTED, null);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.d(PAAndroidConstants.PA_LOGTAG, "Connection scheduler stopped, dropping request for device " + job.request.devId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify that the call of an attempt returned. If the attempt already ended, its slot is
+     * freed, after asking the DA to disconnect the device if the attempt timed out.
+     *
+     * @param queue The queue of the DA
+     * @param job The operation
+     * @param call The call that returned
+     */
+    private void returned(DaQueue queue, Job job, DaCall call) {
+        synchronized (this) {
+            call.returned = true;
+            if (!call.ended) return;
+
+            if (call.stuck) {
+                Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter " + queue.daId + " answered for device " + job.request.devId + " after the timeout");
+                queue.stuck--;
+            }
+            if (!call.cancel) {
+                release(queue);
+                return;
+            }
+        }
+
+        cancel(queue, job);
+    }
+
+    /**
+     * Ask a Device Adapter to disconnect a device whose connection attempt timed out, and then
+     * free the slot of the attempt. Must be called after the connection call returned, so that
+     * the DA receives the two requests in order.
+     *
+     * @param queue The queue of the DA
+     * @param job The operation
+     */
+    private void cancel(DaQueue queue, Job job) {
+        try {
+            target.execute(queue.daId, job.request.devId, Action.DISCONNECT);
+        } catch (Exception e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Failed to cancel the connection of device " + job.request.devId + " via " + queue.daId, e);
+        } finally {
+            synchronized (this) {
+                release(queue);
+            }
+        }
+    }
+
+    /**
+     * Take the operations waiting for the Device Adapters with a stuck call, which would not
+     * get a slot until the DA answers. Must be called while holding the lock of the scheduler.
+     *
+     * @return The operations, with the attempt they were waiting for as blocked attempt
+     */
+    private List<Job> takeBlocked() {
+        List<Job> blocked = new ArrayList<Job>();
+        for (DaQueue queue : queues.values()) {
+            if (queue.stuck > 0) blocked.addAll(queue.pending);
+        }
+        for (Job job : blocked) {
+            job.blockedAttempt = job.attempt;
+        }
+        return blocked;
+    }
+
+    /**
+     * End the attempts of the operations waiting for a stuck Device Adapter, so that they try
+     * their next DA, if any.
+     *
+     * @param blocked The operations returned by takeBlocked()
+     */
+    private void failBlocked(List<Job> blocked) {
+        for (Job job : blocked) {
+            complete(job, job.blockedAttempt, Status.FAILED, "Device Adapter " + job.request.daIds.get(job.blockedAttempt) + " is not answering");
+        }
+    }
+
+    /**
+     * Free a slot of a Device Adapter and start the next operation waiting for it. Must be called
+     * while holding the lock of the scheduler.
+     *
+     * @param queue The queue of the DA
+     */
+    private void release(DaQueue queue) {
+        queue.running--;
+        startNext(queue);
+        if (queue.running == 0 && queue.pending.isEmpty() && queues.get(queue.daId) == queue) queues.remove(queue.daId);
+    }
+
+    /**
+     * Put an operation in the queue of the Device Adapter of its current attempt. Must be called
+     * while holding the lock of the scheduler.
+     *
+     * @param job The operation
+     */
+    private void enqueue(Job job) {
+        String daId = job.getDaId();
+
+        DaQueue queue = queues.get(daId);
+        if (queue == null) {
+            queue = new DaQueue(daId);
+            queues.put(daId, queue);
+        }
+
+        job.started = false;
+        queue.pending.add(job);
+    }
+
+    /**
+     * End an attempt of an operation, unless it already ended, and free its slot for the next
+     * one. A failed connection is tried again with the next Device Adapter, if there is one.
+     *
+     * @param job The operation
+     * @param attempt The attempt ending
+     * @param status The outcome of the attempt
+     * @param detail A description of the failure, or null
+     */
+    private void complete(Job job, int attempt, Status status, String detail) {
+        final DaQueue queue;
+        String daId;
+        long duration;
+        boolean started;
+        boolean retry;
+        boolean cancel = false;
+        List<Job> blocked;
+
+        synchronized (this) {
+            if (job.done || job.attempt != attempt) return;
+
+            Future<?> timeoutFuture = job.timeoutFuture;
+            if (timeoutFuture != null) timeoutFuture.cancel(false);
+            job.timeoutFuture = null;
+
+            retry = (status == Status.FAILED || status == Status.TIMEOUT) && attempt + 1 < job.request.daIds.size();
+
+            // Free the slot of the DA once its call returned, or leave its queue if the attempt
+            // did not start yet. A connection timing out before trying another DA is cancelled.
+            daId = job.getDaId();
+            started = job.started;
+            duration = started ? System.currentTimeMillis() - job.startTime : 0L;
+            queue = queues.get(daId);
+            if (queue != null) {
+                if (started) {
+                    DaCall call = job.call;
+                    call.ended = true;
+                    call.cancel = retry && status == Status.TIMEOUT && job.request.action != Action.DISCONNECT;
+                    if (call.returned) {
+                        if (call.cancel) {
+                            cancel = true;
+                        } else {
+                            queue.running--;
+                        }
+                    } else if (status == Status.TIMEOUT) {
+                        call.stuck = true;
+                        queue.stuck++;
+                    }
+                } else {
+                    queue.pending.remove(job);
+                }
+            }
+
+            if (retry) {
+                job.attempt++;
+                enqueue(job);
+                startNext(queues.get(job.getDaId()));
+            } else {
+                job.done = true;
+                if (inFlight.get(job.request.devId) == job) inFlight.remove(job.request.devId);
+            }
+
+            if (queue != null) {
+                startNext(queue);
+                if (queue.running == 0 && queue.pending.isEmpty()) queues.remove(queue.daId);
+            }
+            blocked = takeBlocked();
+        }
+
+        if (cancel) {
+            final Job cancelled = job;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        cancel(queue, cancelled);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.d(PAAndroidConstants.PA_LOGTAG, "Connection scheduler stopped, not cancelling the connection of device " + job.request.devId);
+            }
+        }
+
+        try {
+            // Only the attempts that reached the DA say something about it
+            if (started) listener.onAttempt(job.request.devId, daId, job.request.action, status, duration);
+        } catch (RuntimeException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to report an attempt of connection request " + job.batch.id, e);
+        }
+
+        if (retry) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Device " + job.request.devId + " " + status + " via " + daId + ", trying the next Device Adapter");
+        } else {
+            report(job, status, detail);
+        }
+
+        failBlocked(blocked);
+    }
+
+    /**
+     * Report the end of the operation on a device to the listener.
+     *
+     * @param job The operation
+     * @param status The outcome of the operation
+     * @param detail A description of the failure, or null
+     */
+    private void report(Job job, Status status, String detail) {
+        try {
+            listener.onProgress(job.batch.id, job.request.devId, status, detail, job.batch.done.incrementAndGet(), job.batch.total);
+        } catch (RuntimeException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to report the progress of connection request " + job.batch.id, e);
+        }
+    }
+
+    /**
+     * Create a factory of daemon threads.
+     *
+     * @param name The name of the threads
+     * @return The thread factory
+     */
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * The operations of a single Device Adapter
+     */
+    private static class DaQueue {
+        private final String daId;
+        private final PriorityQueue<Job> pending = new PriorityQueue<Job>();
+        private int running = 0;
+        private int stuck = 0;
+
+        private DaQueue(String daId) {
+            this.daId = daId;
+        }
+    }
+
+    /**
+     * The call of an attempt to a Device Adapter, holding the slot of the attempt until both the
+     * call returned and the attempt ended
+     */
+    private static class DaCall {
+        private boolean returned = false;
+        private boolean ended = false;
+        private boolean cancel = false;
+        private boolean stuck = false;
+    }
+
+    /**
+     * A bulk request
+     */
+    private static class Batch {
+        private final String id;
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+
+        private Batch(String id, int total) {
+            this.id = id;
+            this.total = total;
+        }
+    }
+
+    /**
+     * The operation on a single device, ordered by priority and then by submission
+     */
+    private static class Job implements Comparable<Job> {
+        private final Batch batch;
+        private final Request request;
+        private final int priority;
+        private final long seq;
+        private Future<?> timeoutFuture = null;
+        private DaCall call = null;
+        private boolean started = false;
+        private boolean done = false;
+        private int attempt = 0;
+        private int blockedAttempt = 0;
+        private long startTime = 0L;
+        private String detail = null;
+
+        private Job(Batch batch, Request request, int priority, long seq) {
+            this.batch = batch;
+            this.request = request;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        private String getDaId() {
+            return request.daIds.get(attempt);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) return priority > other.priority ? -1 : 1;
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import eu.fistar.sdcs.pa.common.Capabilities;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants.DA_DISCOVERY;
+
+/**
+ * Discovers the Device Adapters installed on the system without blocking the caller. The
+ * discovery request is broadcast and the replies are handled on a background thread as they
+ * arrive; the discovery ends when all the expected DAs replied, or at the latest after
+ * DA_DISCOVERY.TIMEOUT. The expected DAs are the packages with a receiver for the discovery
+ * request, as reported by the PackageManager. The discovery can also be limited to some packages,
+ * sending the request only to them. The receiver of the replies is registered and unregistered
+ * under the lock of the discovery, so that a package joining a running discovery either gets its
+ * reply received or is probed again by a new discovery.
+ */
+public class DADiscovery {
+
+    private final Context context;
+    private final Listener listener;
+    private final HandlerThread discoveryThread;
+    private final Handler discoveryHandler;
+    private final Set<String> expected = new HashSet<String>(); // <[Package name]>
+    private final Set<String> found = new HashSet<String>(); // <[DA ID]>
+    private final Set<String> probes = new HashSet<String>(); // <[Package name]>
+    private boolean running = false;
+    private boolean closed = false;
+
+    /**
+     * Receives the Device Adapters as they are discovered.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the discovery thread when a Device Adapter replied.
+         *
+         * @param daId The DA ID
+         * @param cap The Capabilities of the DA
+         */
+        public void onDAFound(String daId, Capabilities cap);
+
+        /**
+         * Called on the discovery thread when the discovery ended.
+         *
+         * @param found The number of DAs that replied
+         * @param early True if all the expected DAs replied before the timeout, false otherwise
+         */
+        public void onDiscoveryFinished(int found, boolean early);
+    }
+
+    private final BroadcastReceiver replyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Extract DA ID and DA Capabilities from the Intent
+            String daId = intent.getStringExtra(DA_DISCOVERY.BUNDLE_DAID);
+            Capabilities daCap = intent.getParcelableExtra(DA_DISCOVERY.BUNDLE_DACAP);
+            if (daId == null || daCap == null) return;
+
+            listener.onDAFound(daId, daCap);
+
+            boolean complete;
+            synchronized (DADiscovery.this) {
+                found.add(daId);
+                complete = expected.remove(daCap.getPackageName()) && expected.isEmpty();
+                DADiscovery.this.notifyAll();
+            }
+
+            if (complete) finish(true);
+        }
+    };
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            finish(false);
+        }
+    };
+
+    /**
+     * Create a new discovery engine.
+     *
+     * @param context The context used to broadcast the requests and receive the replies
+     * @param listener The listener receiving the discovered DAs
+     */
+    public DADiscovery(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+
+        discoveryThread = new HandlerThread("PA discovery");
+        discoveryThread.start();
+        discoveryHandler = new Handler(discoveryThread.getLooper());
+    }
+
+    /**
+     * Return the packages that can reply to the discovery request, according to the
+     * PackageManager.
+     *
+     * @return The package names
+     */
+    public List<String> getInstalledPackages() {
+        List<String> packages = new ArrayList<String>();
+
+        List<ResolveInfo> receivers = context.getPackageManager().queryBroadcastReceivers(new Intent(DA_DISCOVERY.REQUEST_ACTION), 0);
+        if (receivers != null) {
+            for (ResolveInfo info : receivers) {
+                if (info.activityInfo != null && !context.getPackageName().equals(info.activityInfo.packageName)) {
+                    packages.add(info.activityInfo.packageName);
+                }
+            }
+        }
+
+        return packages;
+    }
+
+    /**
+     * Start a discovery, unless one is already running, and return immediately.
+     *
+     * @param expectedPackages The packages of the DAs expected to reply; if empty, the discovery
+     *                         always lasts until the timeout
+     * @param targeted True to send the request only to the expected packages, false to broadcast it to every package
+     */
+    public void start(Collection<String> expectedPackages, boolean targeted) {
+        synchronized (this) {
+            if (running || closed) return;
+
+            running = true;
+            found.clear();
+            expected.clear();
+            expected.addAll(expectedPackages);
+
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Starting Device Adapter discovery, expecting " + expectedPackages.size() + " Device Adapters");
+
+            // Register the Broadcast Receiver for replies, running on the discovery thread
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(DA_DISCOVERY.REPLY_ACTION);
+            context.registerReceiver(replyReceiver, filter, null, discoveryHandler);
+
+            // Send in broadcast the Intent for discovery and set the timeout for receiving replies
+            if (targeted) {
+                for (String pkg : expectedPackages) {
+                    sendRequest(pkg);
+                }
+            } else {
+                sendRequest(null);
+            }
+            discoveryHandler.postDelayed(timeout, DA_DISCOVERY.TIMEOUT);
+        }
+    }
+
+    /**
+     * Ask a single package for its Device Adapter, for instance because it was just installed or
+     * updated. If a discovery is running, the package is added to it, otherwise a discovery
+     * limited to the package is started.
+     *
+     * @param pkg The package name
+     */
+    public synchronized void probe(String pkg) {
+        if (running) {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Adding package " + pkg + " to the running Device Adapter discovery");
+            expected.add(pkg);
+            probes.add(pkg);
+            sendRequest(pkg);
+        } else {
+            start(Collections.singletonList(pkg), true);
+        }
+    }
+
+    /**
+     * Check whether a package contains a Device Adapter, that is a receiver for the discovery
+     * request.
+     *
+     * @param pkg The package name
+     * @return True if the package can reply to the discovery, false otherwise
+     */
+    public boolean isDeviceAdapter(String pkg) {
+        Intent intent = new Intent(DA_DISCOVERY.REQUEST_ACTION);
+        intent.setPackage(pkg);
+
+        List<ResolveInfo> receivers = context.getPackageManager().queryBroadcastReceivers(intent, 0);
+        return receivers != null && !receivers.isEmpty();
+    }
+
+    /**
+     * Wait until a Device Adapter is discovered or the discovery ends.
+     *
+     * @param daId The DA ID, or null to wait for the end of the discovery
+     * @return True if the DA was discovered (or the discovery ended, if no DA was given), false otherwise
+     */
+    public synchronized boolean await(String daId) {
+        while (running && (daId == null || !found.contains(daId))) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return daId == null ? !running : found.contains(daId);
+    }
+
+    /**
+     * Check whether a discovery is running.
+     *
+     * @return True if the discovery is running, false otherwise
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the discovery, if running, and its thread.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        finish(false);
+        discoveryThread.quit();
+    }
+
+    /**
+     * Send the discovery request.
+     *
+     * @param pkg The package to send the request to, or null to broadcast it to every package
+     */
+    private void sendRequest(String pkg) {
+        Intent intent = new Intent(DA_DISCOVERY.REQUEST_ACTION);
+        intent.putExtra(DA_DISCOVERY.BUNDLE_REPACT, DA_DISCOVERY.REPLY_ACTION);
+        if (pkg != null) intent.setPackage(pkg);
+
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * End the discovery, unless it already ended. The packages that joined the discovery with
+     * probe() and did not reply yet are probed again by a new discovery.
+     *
+     * @param early True if all the expected DAs replied, false otherwise
+     */
+    private void finish(boolean early) {
+        int count;
+        List<String> leftover;
+        synchronized (this) {
+            if (!running) return;
+
+            // A package may have joined after the reply that looked like the last one
+            if (early && !expected.isEmpty()) return;
+
+            running = false;
+            count = found.size();
+            leftover = new ArrayList<String>(probes);
+            leftover.retainAll(expected);
+            probes.clear();
+            discoveryHandler.removeCallbacks(timeout);
+
+            // Stop receiving intents related to DA discovery
+            context.unregisterReceiver(replyReceiver);
+            notifyAll();
+        }
+
+        Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter discovery ended, " + count + " Device Adapters found" + (early ? " before the timeout" : ""));
+
+        listener.onDiscoveryFinished(count, early);
+
+        // Probe once more the packages that joined without a reply, without marking them as probes
+        if (!leftover.isEmpty()) {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Probing again " + leftover.size() + " packages that joined the discovery");
+            synchronized (this) {
+                if (running) {
+                    expected.addAll(leftover);
+                    for (String pkg : leftover) {
+                        sendRequest(pkg);
+                    }
+                } else {
+                    start(leftover, true);
+                }
+            }
+        }
+    }
+}
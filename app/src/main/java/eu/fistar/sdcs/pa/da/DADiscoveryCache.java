@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.fistar.sdcs.pa.common.Capabilities;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Keeps on the disk the Device Adapters found by the last discoveries, each with the version and
+ * the update time of its package, so that at the next start the DAs whose package did not change
+ * are available immediately, without waiting for their reply. The Capabilities are stored in
+ * their Parcel form, which only changes with the common library: the whole cache is discarded
+ * when the PA itself is updated.
+ */
+public class DADiscoveryCache {
+
+    // Name of the cache file
+    public static final String FILENAME = "discovery.cache";
+
+    // Version of the file format
+    private static final int FORMAT = 1;
+
+    private final File file;
+    private final int appVersion;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>(); // <[DA ID], [Entry]>
+    private boolean dirty = false;
+
+    /**
+     * A Device Adapter found by a discovery
+     */
+    public static class Entry {
+        private final String daId;
+        private final Capabilities cap;
+        private final int versionCode;
+        private final long lastUpdateTime;
+
+        private Entry(String daId, Capabilities cap, int versionCode, long lastUpdateTime) {
+            this.daId = daId;
+            this.cap = cap;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        public String getDaId() {
+            return daId;
+        }
+
+        public Capabilities getCapabilities() {
+            return cap;
+        }
+
+        public int getVersionCode() {
+            return versionCode;
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param dir The directory of the cache file
+     * @param appVersion The version code of the PA, to discard the caches written by other versions
+     */
+    public DADiscoveryCache(File dir, int appVersion) {
+        this.file = new File(dir, FILENAME);
+        this.appVersion = appVersion;
+    }
+
+    /**
+     * Read the cache from the disk. A missing, outdated or damaged cache is simply empty.
+     */
+    public synchronized void load() {
+        entries.clear();
+        if (!file.exists()) return;
+
+        DataInputStream in = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT || in.readInt() != appVersion) {
+                Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter discovery cache written by another version, ignoring it");
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String daId = in.readUTF();
+                int versionCode = in.readInt();
+                long lastUpdateTime = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                entries.put(daId, new Entry(daId, Capabilities.CREATOR.createFromParcel(parcel), versionCode, lastUpdateTime));
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Failed to read the Device Adapter discovery cache, ignoring it", e);
+            entries.clear();
+        } finally {
+            parcel.recycle();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to close the Device Adapter discovery cache");
+                }
+            }
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Return the Device Adapters in the cache.
+     *
+     * @return A copy of the entries
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Store a Device Adapter found by a discovery.
+     *
+     * @param daId The DA ID
+     * @param cap The Capabilities of the DA
+     * @param versionCode The version code of the package of the DA
+     * @param lastUpdateTime The last update time of the package of the DA
+     */
+    public synchronized void put(String daId, Capabilities cap, int versionCode, long lastUpdateTime) {
+        entries.put(daId, new Entry(daId, cap, versionCode, lastUpdateTime));
+        dirty = true;
+    }
+
+    /**
+     * Forget a Device Adapter, for instance because its package changed or was removed.
+     *
+     * @param daId The DA ID
+     */
+    public synchronized void remove(String daId) {
+        if (entries.remove(daId) != null) dirty = true;
+    }
+
+    /**
+     * Write the cache to the disk, if it changed since it was read or written.
+     */
+    public synchronized void save() {
+        if (!dirty) return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            // Write the new cache aside, so that a crash leaves the old one intact
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(FORMAT);
+            out.writeInt(appVersion);
+            out.writeInt(entries.size());
+
+            for (Entry entry : entries.values()) {
+                parcel.setDataPosition(0);
+                parcel.setDataSize(0);
+                entry.cap.writeToParcel(parcel, 0);
+                byte[] data = parcel.marshall();
+
+                out.writeUTF(entry.daId);
+                out.writeInt(entry.versionCode);
+                out.writeLong(entry.lastUpdateTime);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) throw new IOException("Cannot rename " + tmp + " to " + file);
+            dirty = false;
+        } catch (IOException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to save the Device Adapter discovery cache", e);
+        } finally {
+            parcel.recycle();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to close the Device Adapter discovery cache");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+
+/**
+ * Sends the same call to several Device Adapters concurrently and gathers the results, waiting
+ * at most until a deadline. A slow or hung DA only delays the whole operation up to the deadline,
+ * and the DAs that did not answer in time or failed are reported together with the results of
+ * the others.
+ * <p>
+ * A binder call cannot be interrupted, so a call past its deadline keeps its thread until the DA
+ * answers. The DAs with such a call still running are not called again, and are reported as
+ * timed out right away, until the call returns: a hung DA holds at most one thread per request
+ * it did not answer, and the threads are created as needed, so it cannot starve the others.
+ */
+public class DAFanOut {
+
+    // Default maximum time to wait for the DAs to answer
+    public static final long DEFAULT_DEADLINE = 5000L;
+
+    // Idle time of the threads
+    private static final long KEEP_ALIVE = 30L;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Integer> stuck = new HashMap<String, Integer>(); // <[DA ID], [Calls past the deadline]>
+    private volatile long deadline = DEFAULT_DEADLINE;
+
+    /**
+     * A call to perform on a single Device Adapter.
+     *
+     * @param <T> The type of the result
+     */
+    public interface Call<T> {
+
+        /**
+         * Perform the call.
+         *
+         * @param daId The DA ID
+         * @param da The endpoint of the DA
+         * @return The result of the call, possibly null
+         * @throws RemoteException If the binder call fails
+         */
+        public T call(String daId, IDeviceAdapter da) throws RemoteException;
+    }
+
+    /**
+     * The outcome of a call sent to several Device Adapters.
+     *
+     * @param <T> The type of the results
+     */
+    public static class Result<T> {
+        private final Map<String, T> results = new LinkedHashMap<String, T>(); // <[DA ID], [Result]>
+        private final Map<String, Exception> failed = new HashMap<String, Exception>(); // <[DA ID], [Exception]>
+        private final List<String> timedOut = new ArrayList<String>();
+
+        /**
+         * Return the results of the DAs that answered in time, in the order the DAs were given.
+         *
+         * @return A Map with the DA IDs as keys and the results as values
+         */
+        public Map<String, T> getResults() {
+            return results;
+        }
+
+        /**
+         * Return the DAs whose call failed.
+         *
+         * @return A Map with the DA IDs as keys and the failures as values
+         */
+        public Map<String, Exception> getFailed() {
+            return failed;
+        }
+
+        /**
+         * Return the DAs that did not answer before the deadline, or were not called because
+         * they did not answer a previous call yet.
+         *
+         * @return The IDs of the DAs
+         */
+        public List<String> getTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Check whether every DA answered successfully.
+         *
+         * @return True if all the calls succeeded in time, false otherwise
+         */
+        public boolean isComplete() {
+            return failed.isEmpty() && timedOut.isEmpty();
+        }
+    }
+
+    /**
+     * Create a new fan-out engine.
+     *
+     * @param name The name of the threads
+     */
+    public DAFanOut(final String name) {
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Set the maximum time to wait for the DAs to answer.
+     *
+     * @param deadline The deadline, in milliseconds
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = Math.max(1L, deadline);
+    }
+
+    /**
+     * Send a call to several Device Adapters concurrently and wait for their answers until the
+     * deadline.
+     *
+     * @param daIds The IDs of the DAs to call
+     * @param das The endpoints of the connected DAs; DAs not in the Map are skipped
+     * @param call The call to perform
+     * @param <T> The type of the results
+     * @return The outcome of the call
+     */
+    public <T> Result<T> invoke(Collection<String> daIds, Map<String, IDeviceAdapter> das, final Call<T> call) {
+        Result<T> result = new Result<T>();
+        Map<String, Task<T>> tasks = new LinkedHashMap<String, Task<T>>(); // <[DA ID], [Task]>
+
+        // Scatter, skipping the DAs still busy with a call past its deadline
+        for (String daId : daIds) {
+            IDeviceAdapter da = das.get(daId);
+            if (da == null) continue;
+
+            if (isStuck(daId)) {
+                result.timedOut.add(daId);
+                continue;
+            }
+
+            Task<T> task = new Task<T>(daId, da, call);
+            try {
+                task.future = executor.submit(task);
+                tasks.put(daId, task);
+            } catch (RejectedExecutionException e) {
+                result.failed.put(daId, e);
+            }
+        }
+
+        // Gather, giving all the DAs the same deadline
+        long end = System.currentTimeMillis() + deadline;
+        for (Map.Entry<String, Task<T>> entry : tasks.entrySet()) {
+            String daId = entry.getKey();
+            Task<T> task = entry.getValue();
+
+            try {
+                long remaining = Math.max(0L, end - System.currentTimeMillis());
+                result.results.put(daId, task.future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                abandon(task);
+                result.timedOut.add(daId);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                result.failed.put(daId, cause instanceof Exception ? (Exception) cause : e);
+            } catch (InterruptedException e) {
+                abandon(task);
+                result.timedOut.add(daId);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (!result.isComplete()) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Device Adapters not answering: timed out " + result.timedOut + ", failed " + result.failed.keySet());
+        }
+
+        return result;
+    }
+
+    /**
+     * Stop the threads, abandoning the calls still in progress.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check whether a Device Adapter still has a call running past its deadline.
+     *
+     * @param daId The DA ID
+     * @return True if the DA did not answer a previous call yet, false otherwise
+     */
+    public synchronized boolean isStuck(String daId) {
+        return stuck.containsKey(daId);
+    }
+
+    /**
+     * Stop waiting for a call past its deadline. The DA is considered stuck until the call
+     * returns, if it did not already.
+     *
+     * @param task The call
+     */
+    private synchronized void abandon(Task<?> task) {
+        if (task.done || task.abandoned) return;
+
+        task.abandoned = true;
+        Integer count = stuck.get(task.daId);
+        stuck.put(task.daId, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Record the end of a call, freeing its DA if the call had been abandoned.
+     *
+     * @param task The call
+     */
+    private synchronized void finished(Task<?> task) {
+        task.done = true;
+        if (!task.abandoned) return;
+
+        Integer count = stuck.get(task.daId);
+        if (count == null || count <= 1) {
+            stuck.remove(task.daId);
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Device Adapter " + task.daId + " answered again");
+        } else {
+            stuck.put(task.daId, count - 1);
+        }
+    }
+
+    /**
+     * A call to a single Device Adapter, running on one of the threads
+     *
+     * @param <T> The type of the result
+     */
+    private class Task<T> implements Callable<T> {
+        private final String daId;
+        private final IDeviceAdapter da;
+        private final Call<T> call;
+        private Future<T> future;
+
+        // Guarded by the lock of the DAFanOut
+        private boolean done = false;
+        private boolean abandoned = false;
+
+        private Task(String daId, IDeviceAdapter da, Call<T> call) {
+            this.daId = daId;
+            this.da = da;
+            this.call = call;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                return call.call(daId, da);
+            } finally {
+                finished(this);
+            }
+        }
+    }
+}
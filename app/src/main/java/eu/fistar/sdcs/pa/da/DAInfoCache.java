@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.fistar.sdcs.pa.common.Capabilities;
+
+/**
+ * Caches what the connected Device Adapters reported about themselves when they connected, that
+ * is their Capabilities and the list of commands they support, so that they do not have to be
+ * asked again over IPC. The entry of a DA must be invalidated when the DA disconnects; it is
+ * replaced when the DA connects again.
+ */
+public class DAInfoCache {
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>(); // <[DA ID], [Entry]>
+
+    /**
+     * Store the information reported by a Device Adapter.
+     *
+     * @param daId The DA ID
+     * @param cap The Capabilities of the DA
+     * @param commands The commands supported by the DA, or null if it does not support commands
+     */
+    public void put(String daId, Capabilities cap, List<String> commands) {
+        if (daId == null || cap == null) return;
+
+        List<String> commandList = commands != null ? Collections.unmodifiableList(new ArrayList<String>(commands)) : Collections.<String>emptyList();
+        entries.put(daId, new Entry(cap, commandList));
+    }
+
+    /**
+     * Return the Capabilities reported by a connected Device Adapter.
+     *
+     * @param daId The DA ID
+     * @return The Capabilities, or null if the DA is not in the cache
+     */
+    public Capabilities getCapabilities(String daId) {
+        Entry entry = daId != null ? entries.get(daId) : null;
+        return entry != null ? entry.cap : null;
+    }
+
+    /**
+     * Return the commands supported by a connected Device Adapter.
+     *
+     * @param daId The DA ID
+     * @return An unmodifiable list of commands, or null if the DA is not in the cache
+     */
+    public List<String> getCommandList(String daId) {
+        Entry entry = daId != null ? entries.get(daId) : null;
+        return entry != null ? entry.commands : null;
+    }
+
+    /**
+     * Forget the information of a Device Adapter that disconnected or is restarting.
+     *
+     * @param daId The DA ID
+     */
+    public void invalidate(String daId) {
+        if (daId != null) entries.remove(daId);
+    }
+
+    /**
+     * The information reported by a single Device Adapter
+     */
+    private static class Entry {
+        private final Capabilities cap;
+        private final List<String> commands;
+
+        private Entry(Capabilities cap, List<String> commands) {
+            this.cap = cap;
+            this.commands = commands;
+        }
+    }
+}
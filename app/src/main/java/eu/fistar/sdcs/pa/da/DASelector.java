@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses among the Device Adapters able to handle a device, using what was learned from the
+ * previous connections to devices of the same type: the share of successful connections, the
+ * time the connections took and the latency of the observations. The type of a device is the
+ * manufacturer prefix (OUI) of its MAC address, since the DAs identify the devices by address.
+ * <p>
+ * The clock of a device is not synchronized with the one of the PA, so the latency of its
+ * observations is measured as the delay between measurement and arrival in excess of the
+ * smallest delay seen for the device through the same DA, which absorbs the clock offset.
+ */
+public class DASelector {
+
+    // Weight of the last sample in the moving averages of times and latencies
+    private static final double ALPHA = 0.2;
+
+    // Number of characters of the MAC address identifying the manufacturer ("AA:BB:CC")
+    private static final int OUI_LENGTH = 8;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>(); // <[Device type]/[DA ID], [Stats]>
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>(); // <[Device ID], [Route]>
+
+    /**
+     * Return the type of a device, that is the manufacturer prefix of its MAC address.
+     *
+     * @param devId The Device ID
+     * @return The type of the device, or the whole ID if it is not a MAC address
+     */
+    public static String deviceTypeOf(String devId) {
+        if (devId == null) return "";
+        if (devId.length() >= OUI_LENGTH && devId.charAt(2) == ':' && devId.charAt(5) == ':') {
+            return devId.substring(0, OUI_LENGTH).toUpperCase(Locale.US);
+        }
+        return devId;
+    }
+
+    /**
+     * Record the outcome of a connection attempt.
+     *
+     * @param devId The Device ID
+     * @param daId The ID of the DA used
+     * @param success True if the device registered, false if the attempt failed or timed out
+     * @param duration The time the attempt took, in milliseconds
+     */
+    public void recordConnection(String devId, String daId, boolean success, long duration) {
+        if (daId == null) return;
+
+        Stats s = statsOf(deviceTypeOf(devId), daId);
+        synchronized (s) {
+            s.attempts++;
+            if (success) {
+                s.successes++;
+                s.connectionTime = s.connectionTime < 0 ? duration : s.connectionTime + ALPHA * (duration - s.connectionTime);
+            }
+        }
+    }
+
+    /**
+     * Record the arrival of an observation of a device to the PA, to learn the latency of the
+     * observations delivered by its DA.
+     *
+     * @param devId The Device ID
+     * @param daId The ID of the DA handling the device
+     * @param phenomenonTime The time of the measurement, on the clock of the device, 0 if unknown
+     * @param arrivalTime The time the observation reached the PA, on the clock of the PA
+     */
+    public void recordArrival(String devId, String daId, long phenomenonTime, long arrivalTime) {
+        if (devId == null || daId == null || phenomenonTime <= 0) return;
+
+        // The route is created again only when the device moves to another DA
+        Route route = routes.get(devId);
+        if (route == null || !route.daId.equals(daId)) {
+            route = new Route(daId, statsOf(deviceTypeOf(devId), daId));
+            routes.put(devId, route);
+        }
+
+        // The smallest delay is the clock offset plus the fastest delivery
+        long delay = arrivalTime - phenomenonTime;
+        long latency;
+        synchronized (route) {
+            if (delay < route.baseDelay) route.baseDelay = delay;
+            latency = delay - route.baseDelay;
+        }
+
+        Stats s = route.stats;
+        synchronized (s) {
+            s.latency = s.latency < 0 ? latency : s.latency + ALPHA * (latency - s.latency);
+        }
+    }
+
+    /**
+     * Sort the Device Adapters able to handle a device, the best first. A DA that was never used
+     * for this type of device is considered as good as a DA succeeding half of the times, so that
+     * it is tried too.
+     *
+     * @param devId The Device ID
+     * @param daIds The IDs of the DAs able to handle the device
+     * @return A new list with the DA IDs, from the best to the worst
+     */
+    public List<String> rank(String devId, Collection<String> daIds) {
+        String type = deviceTypeOf(devId);
+        final Map<String, Double> scores = new HashMap<String, Double>(); // <[DA ID], [Score]>
+
+        for (String daId : daIds) {
+            Stats s = stats.get(type + "/" + daId);
+            scores.put(daId, s != null ? s.score() : Stats.UNKNOWN_SCORE);
+        }
+
+        // The sort is stable, so DAs with the same score keep the order they were given
+        List<String> ranked = new ArrayList<String>(daIds);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+
+        return ranked;
+    }
+
+    /**
+     * Forget the statistics of a Device Adapter, for instance because it was updated.
+     *
+     * @param daId The DA ID
+     */
+    public void removeDa(String daId) {
+        if (daId == null) return;
+
+        for (String key : stats.keySet()) {
+            if (key.endsWith("/" + daId)) stats.remove(key);
+        }
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (entry.getValue().daId.equals(daId)) routes.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Return the statistics of a Device Adapter for a type of device, creating them if needed.
+     *
+     * @param type The type of device
+     * @param daId The DA ID
+     * @return The statistics
+     */
+    private Stats statsOf(String type, String daId) {
+        String key = type + "/" + daId;
+
+        Stats s = stats.get(key);
+        if (s == null) {
+            Stats newStats = new Stats();
+            s = stats.putIfAbsent(key, newStats);
+            if (s == null) s = newStats;
+        }
+
+        return s;
+    }
+
+    /**
+     * The Device Adapter currently delivering the observations of a device
+     */
+    private static class Route {
+        private final String daId;
+        private final Stats stats;
+        private long baseDelay = Long.MAX_VALUE; // Smallest delay seen between measurement and arrival
+
+        private Route(String daId, Stats stats) {
+            this.daId = daId;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * What was learned about a Device Adapter handling a type of device
+     */
+    private static class Stats {
+
+        // Score of a DA never used: the success rate of a DA with one success and one failure
+        private static final double UNKNOWN_SCORE = 0.5;
+
+        private int attempts = 0;
+        private int successes = 0;
+        private double connectionTime = -1;
+        private double latency = -1;
+
+        /**
+         * Compute the score of the DA: the smoothed success rate, divided by one plus the sum of
+         * connection time and observation latency in units of 10 seconds.
+         *
+         * @return The score, higher is better
+         */
+        private synchronized double score() {
+            double rate = (successes + 1.0) / (attempts + 2.0);
+            double time = Math.max(0, connectionTime) + Math.max(0, latency);
+
+            return rate / (1.0 + time / 10000.0);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A list of devices, like the whitelist or the blacklist, stored as a set: a device is in the
+ * list at most once, and checking whether it is in the list takes constant time and no lock.
+ * An entry ending with the wildcard, like "00:1A:7D:*", is a pattern admitting every device whose
+ * ID starts with it; the patterns are matched through a trie. Like the patterns, the Device IDs
+ * are compared ignoring case and treating '-' and ':' as the same separator, while the entries
+ * keep the form they were added with. The list also remembers the entries added and removed
+ * since the last time the changes were drained, so that only the changes need to be sent to the
+ * Device Adapters.
+ */
+public class DeviceList {
+
+    private final Map<String, String> devices = new ConcurrentHashMap<String, String>(); // <[Normalized entry], [Entry]>
+    private final Set<String> added = new HashSet<String>();
+    private final Set<String> removed = new HashSet<String>();
+    private final Set<String> patternEntries = new HashSet<String>();
+    private volatile DevicePatternTrie patterns = new DevicePatternTrie(Collections.<String>emptySet());
+    private boolean patternsChanged = false; // The patterns changed since the trie was built
+    private List<String> snapshot = null;
+
+    /**
+     * The changes of a list since the last time they were drained.
+     */
+    public static class Delta {
+        private final List<String> added;
+        private final List<String> removed;
+
+        private Delta(List<String> added, List<String> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public List<String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Return the number of changes.
+         *
+         * @return The number of devices added or removed
+         */
+        public int size() {
+            return added.size() + removed.size();
+        }
+    }
+
+    /**
+     * Check whether a device is in the list, either by itself or through a pattern.
+     *
+     * @param devId The Device ID
+     * @return True if the device is in the list, false otherwise
+     */
+    public boolean contains(String devId) {
+        if (devId == null || devices.isEmpty()) return false;
+
+        // IDs are usually reported in the normalized form already, so they are looked up as they are
+        String key = DevicePatternTrie.isNormalized(devId) ? devId : DevicePatternTrie.normalize(devId);
+        return devices.containsKey(key) || patterns.matches(devId);
+    }
+
+    /**
+     * Check whether a device is in the list through a pattern.
+     *
+     * @param devId The Device ID
+     * @return True if a pattern of the list matches the device, false otherwise
+     */
+    public boolean matchesPattern(String devId) {
+        return devId != null && patterns.matches(devId);
+    }
+
+    /**
+     * Check whether the list has patterns.
+     *
+     * @return True if at least one entry is a pattern, false otherwise
+     */
+    public boolean hasPatterns() {
+        return !patterns.isEmpty();
+    }
+
+    /**
+     * Return the number of entries in the list.
+     *
+     * @return The number of entries, patterns included
+     */
+    public int size() {
+        return devices.size();
+    }
+
+    /**
+     * Add a device to the list.
+     *
+     * @param devId The Device ID
+     * @return True if the device was added, false if it was already in the list
+     */
+    public synchronized boolean add(String devId) {
+        boolean changed = addEntry(devId);
+        publishPatterns();
+        return changed;
+    }
+
+    /**
+     * Remove a device from the list.
+     *
+     * @param devId The Device ID
+     * @return True if the device was removed, false if it was not in the list
+     */
+    public synchronized boolean remove(String devId) {
+        boolean changed = removeEntry(devId);
+        publishPatterns();
+        return changed;
+    }
+
+    /**
+     * Replace the content of the list, recording only the devices actually added or removed.
+     *
+     * @param devIds The new devices of the list
+     * @return True if the list changed, false otherwise
+     */
+    public synchronized boolean replace(Collection<String> devIds) {
+        Set<String> next = new HashSet<String>();
+        boolean changed = false;
+
+        for (String devId : devIds) {
+            next.add(DevicePatternTrie.normalize(devId));
+        }
+        for (String key : new ArrayList<String>(devices.keySet())) {
+            if (!next.contains(key)) changed |= removeEntry(devices.get(key));
+        }
+        for (String devId : devIds) {
+            changed |= addEntry(devId);
+        }
+
+        // The trie is built once, whatever the number of patterns changed
+        publishPatterns();
+        return changed;
+    }
+
+    /**
+     * Fill the list with devices that the Device Adapters already know, like the ones restored
+     * from the storage, without recording them as changes.
+     *
+     * @param devIds The devices to add
+     */
+    public synchronized void load(Collection<String> devIds) {
+        for (String devId : devIds) {
+            String key = DevicePatternTrie.normalize(devId);
+            if (devices.containsKey(key)) continue;
+
+            devices.put(key, devId);
+            if (DevicePatternTrie.isPattern(devId)) {
+                patternEntries.add(devId);
+                patternsChanged = true;
+            }
+        }
+        publishPatterns();
+        snapshot = null;
+    }
+
+    /**
+     * Return the entries in the list.
+     *
+     * @return An unmodifiable list of Device IDs and patterns
+     */
+    public synchronized List<String> toList() {
+        if (snapshot == null) snapshot = Collections.unmodifiableList(new ArrayList<String>(devices.values()));
+        return snapshot;
+    }
+
+    /**
+     * Return the changes of the list since the last call and forget them.
+     *
+     * @return The changes, or null if the list did not change
+     */
+    public synchronized Delta drainDelta() {
+        if (added.isEmpty() && removed.isEmpty()) return null;
+
+        Delta delta = new Delta(new ArrayList<String>(added), new ArrayList<String>(removed));
+        added.clear();
+        removed.clear();
+        return delta;
+    }
+
+    /**
+     * Add a device to the list without publishing the patterns. Must be called while holding the
+     * lock of the list.
+     *
+     * @param devId The Device ID
+     * @return True if the device was added, false if it was already in the list
+     */
+    private boolean addEntry(String devId) {
+        if (devId == null) return false;
+
+        String key = DevicePatternTrie.normalize(devId);
+        if (devices.containsKey(key)) return false;
+        devices.put(key, devId);
+
+        // Adding back a device removed in the meantime cancels the removal
+        if (!removed.remove(devId)) added.add(devId);
+        if (DevicePatternTrie.isPattern(devId)) patternsChanged |= patternEntries.add(devId);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Remove a device from the list without publishing the patterns. Must be called while
+     * holding the lock of the list.
+     *
+     * @param devId The Device ID
+     * @return True if the device was removed, false if it was not in the list
+     */
+    private boolean removeEntry(String devId) {
+        if (devId == null) return false;
+
+        // Remove the entry in the form it was added with, which is the one the DAs know
+        devId = devices.remove(DevicePatternTrie.normalize(devId));
+        if (devId == null) return false;
+
+        // Removing a device added in the meantime cancels the addition
+        if (!added.remove(devId)) removed.add(devId);
+        if (DevicePatternTrie.isPattern(devId)) patternsChanged |= patternEntries.remove(devId);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Publish a new trie if the patterns changed. Must be called while holding the lock of the
+     * list.
+     */
+    private void publishPatterns() {
+        if (!patternsChanged) return;
+
+        patterns = new DevicePatternTrie(patternEntries);
+        patternsChanged = false;
+    }
+}
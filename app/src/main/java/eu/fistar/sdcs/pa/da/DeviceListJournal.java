@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Persists the whitelist and the blacklist as an append-only journal of changes, so that saving
+ * a change costs the size of the change and not the size of the lists. Every record is an
+ * operation byte followed by the Device ID; the changes handed over together are written and
+ * synced to the disk at once. When the journal holds many more records than devices in the
+ * lists, it is compacted by writing the current content to a new file that replaces the old one.
+ */
+public class DeviceListJournal {
+
+    // Name of the journal file
+    public static final String FILENAME = "lists.journal";
+
+    // Minimum number of records before the journal is compacted
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    // Operations of the records
+    private static final int ADD_WHITE = 1;
+    private static final int REMOVE_WHITE = 2;
+    private static final int ADD_BLACK = 3;
+    private static final int REMOVE_BLACK = 4;
+
+    private final File file;
+    private FileOutputStream out = null;
+    private DataOutputStream data = null;
+    private long records = 0;
+
+    /**
+     * Create a new journal.
+     *
+     * @param dir The directory of the journal file
+     */
+    public DeviceListJournal(File dir) {
+        this.file = new File(dir, FILENAME);
+    }
+
+    /**
+     * Read the lists from the journal, one record at a time, and open it to append the changes.
+     * A record left incomplete by a crash is discarded. A journal that does not exist is not
+     * created: the changes are only recorded after compact() wrote the initial content of the
+     * lists, so that a crash before then is noticed by the next call.
+     *
+     * @param whitelist The collection to fill with the devices in the whitelist
+     * @param blacklist The collection to fill with the devices in the blacklist
+     * @return True if the journal exists, false otherwise
+     */
+    public synchronized boolean open(Collection<String> whitelist, Collection<String> blacklist) {
+        boolean existed = file.exists();
+        Set<String> white = new LinkedHashSet<String>();
+        Set<String> black = new LinkedHashSet<String>();
+        long valid = 0;
+        records = 0;
+
+        if (existed) {
+            CountingInputStream counter = null;
+            try {
+                counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                DataInputStream in = new DataInputStream(counter);
+
+                int op;
+                while ((op = in.read()) >= 0) {
+                    String devId = in.readUTF();
+
+                    switch (op) {
+                        case ADD_WHITE: white.add(devId); break;
+                        case REMOVE_WHITE: white.remove(devId); break;
+                        case ADD_BLACK: black.add(devId); break;
+                        case REMOVE_BLACK: black.remove(devId); break;
+                        default: throw new IOException("Unknown operation " + op);
+                    }
+
+                    valid = counter.count;
+                    records++;
+                }
+            } catch (EOFException e) {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Incomplete record in device list journal, discarding it");
+            } catch (IOException e) {
+                Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to read the device list journal, keeping the first " + records + " records", e);
+            } finally {
+                closeQuietly(counter);
+            }
+        }
+
+        whitelist.addAll(white);
+        blacklist.addAll(black);
+        if (!existed) return false;
+
+        try {
+            // Drop what follows the last complete record, then append after it
+            if (valid < file.length()) truncate(valid);
+            openForAppend();
+        } catch (IOException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to open the device list journal", e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Append the changes of the lists and sync them to the disk.
+     *
+     * @param whiteDelta The changes of the whitelist, or null
+     * @param blackDelta The changes of the blacklist, or null
+     */
+    public synchronized void append(DeviceList.Delta whiteDelta, DeviceList.Delta blackDelta) {
+        if (data == null) return;
+
+        try {
+            if (whiteDelta != null) {
+                write(REMOVE_WHITE, whiteDelta.getRemoved());
+                write(ADD_WHITE, whiteDelta.getAdded());
+            }
+            if (blackDelta != null) {
+                write(REMOVE_BLACK, blackDelta.getRemoved());
+                write(ADD_BLACK, blackDelta.getAdded());
+            }
+
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to append to the device list journal", e);
+        }
+    }
+
+    /**
+     * Check whether the journal holds so many obsolete records that it should be compacted.
+     *
+     * @param devices The number of devices currently in the lists
+     * @return True if the journal should be compacted, false otherwise
+     */
+    public synchronized boolean needsCompaction(int devices) {
+        return records > MIN_COMPACTION_RECORDS && records > 2L * devices;
+    }
+
+    /**
+     * Replace the journal with one holding only the current content of the lists, creating it
+     * if it does not exist.
+     *
+     * @param whitelist The devices in the whitelist
+     * @param blacklist The devices in the blacklist
+     * @return True if the new journal is in place, false if the old one, if any, was kept
+     */
+    public synchronized boolean compact(Collection<String> whitelist, Collection<String> blacklist) {
+        File tmp = new File(file.getPath() + ".tmp");
+        long before = records;
+
+        FileOutputStream tmpOut = null;
+        try {
+            // Write the new journal aside, so that a crash leaves the old one intact
+            tmpOut = new FileOutputStream(tmp);
+            DataOutputStream tmpData = new DataOutputStream(new BufferedOutputStream(tmpOut));
+            records = 0;
+            for (String devId : whitelist) {
+                tmpData.write(ADD_WHITE);
+                tmpData.writeUTF(devId);
+                records++;
+            }
+            for (String devId : blacklist) {
+                tmpData.write(ADD_BLACK);
+                tmpData.writeUTF(devId);
+                records++;
+            }
+            tmpData.flush();
+            tmpOut.getFD().sync();
+            tmpOut.close();
+            tmpOut = null;
+
+            // Switch to the new journal
+            closeQuietly(data);
+            data = null;
+            out = null;
+            if (!tmp.renameTo(file)) throw new IOException("Cannot rename " + tmp + " to " + file);
+            openForAppend();
+
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Device list journal compacted from " + before + " to " + records + " records");
+            return true;
+        } catch (IOException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to compact the device list journal", e);
+            closeQuietly(tmpOut);
+            if (!tmp.delete()) Log.w(PAAndroidConstants.PA_LOGTAG, "Failed to delete " + tmp);
+            records = before;
+
+            // Keep appending to the old journal, if there is one
+            try {
+                if (data == null && file.exists()) openForAppend();
+            } catch (IOException ex) {
+                Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to reopen the device list journal", ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Close the journal.
+     */
+    public synchronized void close() {
+        closeQuietly(data);
+        data = null;
+        out = null;
+    }
+
+    /**
+     * Write a record for every device.
+     *
+     * @param op The operation of the records
+     * @param devIds The Device IDs
+     * @throws IOException If the records cannot be written
+     */
+    private void write(int op, Collection<String> devIds) throws IOException {
+        for (String devId : devIds) {
+            data.write(op);
+            data.writeUTF(devId);
+            records++;
+        }
+    }
+
+    /**
+     * Open the journal file to append records to it.
+     *
+     * @throws IOException If the file cannot be opened
+     */
+    private void openForAppend() throws IOException {
+        out = new FileOutputStream(file, true);
+        data = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Cut the journal file at the given length.
+     *
+     * @param length The new length of the file
+     * @throws IOException If the file cannot be truncated
+     */
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Close a stream, ignoring the errors.
+     *
+     * @param stream The stream, possibly null
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream == null) return;
+
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to close the device list journal");
+        }
+    }
+
+    /**
+     * Counts the bytes read, to know where the last complete record ends
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
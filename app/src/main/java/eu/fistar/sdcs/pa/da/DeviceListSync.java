@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Collects the changes of the device lists made in a short time and hands them over together,
+ * on a background thread, so that a burst of additions and removals results in a single
+ * propagation to the Device Adapters and a single write to the storage.
+ */
+public class DeviceListSync {
+
+    // Default time the changes are collected before being handed over
+    public static final long DEFAULT_DELAY = 100L;
+
+    private final Listener listener;
+    private final HandlerThread syncThread;
+    private final Handler syncHandler;
+    private volatile long delay = DEFAULT_DELAY;
+    private boolean scheduled = false;
+
+    /**
+     * Receives the request to propagate the changes of the lists.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the sync thread after the lists changed.
+         */
+        public void onSync();
+    }
+
+    private final Runnable sync = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DeviceListSync.this) {
+                scheduled = false;
+            }
+            listener.onSync();
+        }
+    };
+
+    /**
+     * Create a new sync stage.
+     *
+     * @param listener The listener propagating the changes
+     */
+    public DeviceListSync(Listener listener) {
+        this.listener = listener;
+
+        syncThread = new HandlerThread("PA list sync");
+        syncThread.start();
+        syncHandler = new Handler(syncThread.getLooper());
+    }
+
+    /**
+     * Set the time the changes are collected before being handed over.
+     *
+     * @param delay The delay, in milliseconds
+     */
+    public void setDelay(long delay) {
+        this.delay = Math.max(0L, delay);
+    }
+
+    /**
+     * Notify that a list changed. The listener will be called after the delay, once for all the
+     * changes made in the meantime.
+     */
+    public synchronized void schedule() {
+        if (scheduled) return;
+
+        scheduled = true;
+        syncHandler.postDelayed(sync, delay);
+    }
+
+    /**
+     * Stop the sync thread, handing over on the calling thread the changes still waiting.
+     */
+    public void close() {
+        boolean pending;
+        synchronized (this) {
+            syncHandler.removeCallbacks(sync);
+            pending = scheduled;
+            scheduled = false;
+        }
+
+        syncThread.quit();
+        if (pending) listener.onSync();
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches Device IDs against prefix patterns, like "00:1A:7D:*" admitting all the devices of a
+ * manufacturer. The patterns are stored in a trie, so checking a Device ID costs at most one
+ * step per character of the ID, however many patterns there are. The comparison ignores case and
+ * treats '-' and ':' as the same separator. The trie is immutable once built.
+ */
+public class DevicePatternTrie {
+
+    // Suffix marking an entry of a device list as a prefix pattern
+    public static final String WILDCARD = "*";
+
+    private final Node root = new Node();
+    private final boolean empty;
+
+    /**
+     * Build the trie of a set of patterns.
+     *
+     * @param patterns The patterns; the entries that are not patterns are ignored
+     */
+    public DevicePatternTrie(Collection<String> patterns) {
+        boolean none = true;
+
+        for (String pattern : patterns) {
+            if (!isPattern(pattern)) continue;
+
+            Node node = root;
+            for (int i = 0; i < pattern.length() - WILDCARD.length(); i++) {
+                char c = normalize(pattern.charAt(i));
+
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.terminal = true;
+            none = false;
+        }
+
+        empty = none;
+    }
+
+    /**
+     * Check whether an entry of a device list is a pattern.
+     *
+     * @param entry The entry
+     * @return True if the entry ends with the wildcard, false if it is a Device ID
+     */
+    public static boolean isPattern(String entry) {
+        return entry != null && entry.endsWith(WILDCARD);
+    }
+
+    /**
+     * Check whether the trie has no patterns.
+     *
+     * @return True if there are no patterns, false otherwise
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Check whether a Device ID matches at least one of the patterns.
+     *
+     * @param devId The Device ID
+     * @return True if one pattern is a prefix of the ID, false otherwise
+     */
+    public boolean matches(String devId) {
+        if (empty || devId == null) return false;
+
+        Node node = root;
+        for (int i = 0; i < devId.length(); i++) {
+            if (node.terminal) return true;
+
+            node = node.children.get(normalize(devId.charAt(i)));
+            if (node == null) return false;
+        }
+
+        return node.terminal;
+    }
+
+    /**
+     * Make the Device IDs that must match equal, the same way the patterns are compared.
+     *
+     * @param devId The Device ID
+     * @return The normalized Device ID
+     */
+    public static String normalize(String devId) {
+        char[] chars = devId.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = normalize(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Check whether a Device ID is already in the normalized form, without allocating.
+     *
+     * @param devId The Device ID
+     * @return True if normalize() would return the same ID, false otherwise
+     */
+    public static boolean isNormalized(String devId) {
+        for (int i = 0; i < devId.length(); i++) {
+            char c = devId.charAt(i);
+            if (normalize(c) != c) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Make the characters that must match equal.
+     *
+     * @param c The character
+     * @return The normalized character
+     */
+    private static char normalize(char c) {
+        return c == '-' ? ':' : Character.toUpperCase(c);
+    }
+
+    /**
+     * A node of the trie
+     */
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private boolean terminal = false;
+    }
+}
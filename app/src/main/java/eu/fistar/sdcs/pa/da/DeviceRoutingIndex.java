@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of which Device Adapter is handling every connected device, so that requests
+ * about a device can be sent straight to its DA instead of asking every DA for its connected
+ * devices. The index is fed by the callbacks of the DAs: a device is added when it registers and
+ * removed when it disconnects or deregisters, or when its DA goes away.
+ */
+public class DeviceRoutingIndex {
+
+    private final ConcurrentMap<String, String> deviceToDa = new ConcurrentHashMap<>(); // <[Device ID], [DA ID]>
+    private final ConcurrentMap<String, Set<String>> daToDevices = new ConcurrentHashMap<>(); // <[DA ID], [Device IDs]>
+
+    /**
+     * Record that a device is handled by a Device Adapter.
+     *
+     * @param devId The Device ID
+     * @param daId The DA ID
+     */
+    public void put(String devId, String daId) {
+        if (devId == null || daId == null) return;
+
+        String oldDaId = deviceToDa.put(devId, daId);
+        if (oldDaId != null && !oldDaId.equals(daId)) {
+            Set<String> oldDevices = daToDevices.get(oldDaId);
+            if (oldDevices != null) oldDevices.remove(devId);
+        }
+
+        Set<String> devices = daToDevices.get(daId);
+        if (devices == null) {
+            Set<String> newDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            devices = daToDevices.putIfAbsent(daId, newDevices);
+            if (devices == null) devices = newDevices;
+        }
+        devices.add(devId);
+    }
+
+    /**
+     * Return the Device Adapter handling a device.
+     *
+     * @param devId The Device ID
+     * @return The DA ID, or null if the device is not known
+     */
+    public String get(String devId) {
+        return devId != null ? deviceToDa.get(devId) : null;
+    }
+
+    /**
+     * Forget a device that is no longer connected.
+     *
+     * @param devId The Device ID
+     */
+    public void remove(String devId) {
+        if (devId == null) return;
+
+        String daId = deviceToDa.remove(devId);
+        if (daId != null) {
+            Set<String> devices = daToDevices.get(daId);
+            if (devices != null) devices.remove(devId);
+        }
+    }
+
+    /**
+     * Forget all the devices of a Device Adapter that went away.
+     *
+     * @param daId The DA ID
+     * @return The IDs of the devices that were handled by the DA
+     */
+    public List<String> removeDa(String daId) {
+        List<String> removed = new ArrayList<String>();
+        Set<String> devices = daId != null ? daToDevices.remove(daId) : null;
+
+        if (devices == null) return removed;
+
+        for (String devId : devices) {
+            // Only remove the devices that did not move to another DA in the meantime
+            if (deviceToDa.remove(devId, daId)) removed.add(devId);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Return the devices handled by a Device Adapter.
+     *
+     * @param daId The DA ID
+     * @return The IDs of the devices handled by the DA, possibly an empty list
+     */
+    public List<String> getDevices(String daId) {
+        Set<String> devices = daId != null ? daToDevices.get(daId) : null;
+        return devices != null ? new ArrayList<String>(devices) : new ArrayList<String>();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the devices paired with the smartphone that every Device Adapter can handle, so that
+ * looking up the DAs able to handle a device does not require asking every DA. The cache is
+ * updated one DA at a time, when the DA connects, disconnects or is refreshed, and only the
+ * entries of the devices of that DA are rebuilt. Readers get an immutable snapshot and never
+ * block.
+ */
+public class PairedDeviceCache {
+
+    private final Map<String, List<String>> byDa = new HashMap<String, List<String>>(); // <[DA ID], [Device IDs]>
+    private volatile Map<String, List<String>> byDevice = Collections.emptyMap(); // <[Device ID], [DA IDs]>
+
+    /**
+     * Set the paired devices that a Device Adapter can handle, replacing the previous ones.
+     *
+     * @param daId The DA ID
+     * @param devices The IDs of the paired devices
+     */
+    public synchronized void put(String daId, List<String> devices) {
+        if (daId == null) return;
+
+        List<String> newDevices = devices != null ? new ArrayList<String>(devices) : new ArrayList<String>();
+        List<String> oldDevices = byDa.put(daId, newDevices);
+
+        update(daId, oldDevices, newDevices);
+    }
+
+    /**
+     * Forget the paired devices of a Device Adapter that went away.
+     *
+     * @param daId The DA ID
+     */
+    public synchronized void remove(String daId) {
+        if (daId == null) return;
+
+        List<String> oldDevices = byDa.remove(daId);
+        if (oldDevices != null) update(daId, oldDevices, Collections.<String>emptyList());
+    }
+
+    /**
+     * Return the Device Adapters that can handle a paired device.
+     *
+     * @param devId The Device ID
+     * @return The IDs of the DAs, or null if the device is not known
+     */
+    public List<String> getDAs(String devId) {
+        return devId != null ? byDevice.get(devId) : null;
+    }
+
+    /**
+     * Return all the paired devices, each with the Device Adapters that can handle it. The
+     * returned Map is a copy which the caller is free to modify.
+     *
+     * @return A Map with the Device IDs as keys and the lists of DA IDs as values
+     */
+    public Map<String, List<String>> getDevices() {
+        Map<String, List<String>> snapshot = byDevice;
+        Map<String, List<String>> copy = new HashMap<String, List<String>>();
+
+        for (Map.Entry<String, List<String>> entry : snapshot.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Publish a new snapshot in which only the devices of a Device Adapter changed. Must be
+     * called while holding the lock of the cache.
+     *
+     * @param daId The DA ID
+     * @param oldDevices The devices the DA could handle before, or null
+     * @param newDevices The devices the DA can handle now
+     */
+    private void update(String daId, List<String> oldDevices, List<String> newDevices) {
+        Map<String, List<String>> next = new HashMap<String, List<String>>(byDevice);
+
+        Set<String> handled = new HashSet<String>(newDevices);
+        Set<String> touched = new HashSet<String>(handled);
+        if (oldDevices != null) touched.addAll(oldDevices);
+
+        for (String devId : touched) {
+            List<String> das = new ArrayList<String>();
+            List<String> current = next.get(devId);
+            if (current != null) {
+                for (String other : current) {
+                    if (!other.equals(daId)) das.add(other);
+                }
+            }
+            if (handled.contains(devId)) das.add(daId);
+
+            if (das.isEmpty()) {
+                next.remove(devId);
+            } else {
+                next.put(devId, Collections.unmodifiableList(das));
+            }
+        }
+
+        byDevice = Collections.unmodifiableMap(next);
+    }
+}
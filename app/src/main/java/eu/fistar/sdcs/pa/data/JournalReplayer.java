@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Replays the content of an ObservationJournal on a background thread at a controlled rate, so
+ * that an application registering after a long absence is not flooded with the whole backlog at
+ * once. The replay proceeds in steps of a few batches and stops when the journal is empty or when
+ * the consumer refuses a batch; it can be started again at any time, and starting it while it
+ * runs or while the journal is empty costs a few field reads and no lock.
+ */
+public class JournalReplayer {
+
+    // Default replay rate
+    public static final int DEFAULT_BATCHES_PER_STEP = 16;
+    public static final long DEFAULT_STEP_INTERVAL = 50L;
+
+    private final ObservationJournal journal;
+    private final ObservationJournal.Consumer consumer;
+    private final HandlerThread replayThread;
+    private final Handler replayHandler;
+
+    private volatile int batchesPerStep = DEFAULT_BATCHES_PER_STEP;
+    private volatile long stepInterval = DEFAULT_STEP_INTERVAL;
+    private volatile boolean running = false;
+
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            int replayed = journal.replay(batchesPerStep, consumer);
+
+            synchronized (JournalReplayer.this) {
+                if (replayed > 0 && !journal.isEmpty()) {
+                    replayHandler.postDelayed(this, stepInterval);
+                } else {
+                    running = false;
+                    Log.i(PAAndroidConstants.PA_LOGTAG, journal.isEmpty() ? "Observation journal replayed" : "Observation journal replay suspended");
+                }
+            }
+        }
+    };
+
+    /**
+     * Create a new replayer.
+     *
+     * @param journal The journal to replay
+     * @param consumer The consumer of the replayed batches
+     */
+    public JournalReplayer(ObservationJournal journal, ObservationJournal.Consumer consumer) {
+        this.journal = journal;
+        this.consumer = consumer;
+
+        replayThread = new HandlerThread("PA journal replay");
+        replayThread.start();
+        replayHandler = new Handler(replayThread.getLooper());
+    }
+
+    /**
+     * Set the replay rate.
+     *
+     * @param batchesPerStep The maximum number of batches replayed in a step
+     * @param stepInterval The time between two steps, in milliseconds
+     */
+    public void setRate(int batchesPerStep, long stepInterval) {
+        this.batchesPerStep = Math.max(1, batchesPerStep);
+        this.stepInterval = Math.max(0L, stepInterval);
+    }
+
+    /**
+     * Start the replay, if there is something to replay and it is not already running.
+     */
+    public void start() {
+        if (running || !journal.hasBacklog()) return;
+
+        synchronized (this) {
+            if (running || journal.isEmpty()) return;
+
+            running = true;
+            replayHandler.post(step);
+        }
+        Log.i(PAAndroidConstants.PA_LOGTAG, "Replaying observation journal");
+    }
+
+    /**
+     * Stop the replay and its thread.
+     */
+    public synchronized void close() {
+        replayHandler.removeCallbacks(step);
+        replayThread.quit();
+        running = false;
+    }
+}
@@ -0,0 +1,526 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+import eu.fistar.sdcs.pa.dispatch.StripedExecutor;
+
+/**
+ * Collects the observations pushed by the Device Adapters into one bounded queue per device and
+ * hands them over to a FlushListener in batches. A batch is flushed as soon as it reaches the
+ * maximum size or when its oldest observation has been waiting for the maximum delay, whichever
+ * comes first. Batches are delivered on the StripedExecutor, using the Device ID as the key.
+ * <p>
+ * Other events regarding a device (e.g. its disconnection) can be queued together with the data,
+ * so that they are delivered exactly in the order they were received. When the queue of a device
+ * is full, new observations are handled according to the OverflowPolicy and the number of
+ * observations lost is counted for every policy; the counters are logged every time a device
+ * loses DROP_LOG_INTERVAL more observations.
+ * <p>
+ * Queues and batches are reused, so in steady state adding observations does not allocate any
+ * memory besides the timer of each batch. Timers are never cancelled: a timer firing after its
+ * batch was already delivered finds that its deadline belongs to the next batch and does nothing.
+ */
+public class ObservationBatcher {
+
+    // Default limits for the batches
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_BATCH_DELAY = 100L;
+
+    // Default limits for the queues
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+    public static final long DEFAULT_MAX_BLOCK_TIME = 2000L;
+
+    // Number of lost observations after which a new warning is logged for the same device
+    private static final long DROP_LOG_INTERVAL = 1000L;
+
+    private final ConcurrentMap<String, DeviceQueue> queues = new ConcurrentHashMap<>(); // <[Device ID], [DeviceQueue]>
+    private final AtomicLong[] droppedByPolicy = new AtomicLong[OverflowPolicy.values().length];
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private final FlushListener listener;
+    private final StripedExecutor executor;
+    private final ScheduledThreadPoolExecutor flushTimer;
+
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private volatile long maxBlockTime = DEFAULT_MAX_BLOCK_TIME;
+
+    /**
+     * Receives the batches of observations once they are ready to be delivered.
+     */
+    public interface FlushListener {
+
+        /**
+         * Deliver a batch of observations belonging to the same device. The list is cleared and
+         * reused as soon as this method returns, so it must be copied if it needs to be kept.
+         *
+         * @param observations The observations in the batch, in the order they were received
+         * @param devDesc The most recent DeviceDescription received for the device
+         */
+        public void onFlush(List<Observation> observations, DeviceDescription devDesc);
+    }
+
+    /**
+     * Create a new batcher with the default limits.
+     *
+     * @param listener The listener that will receive the batches
+     * @param executor The executor used to deliver the batches and the events
+     */
+    public ObservationBatcher(FlushListener listener, StripedExecutor executor) {
+        this.listener = listener;
+        this.executor = executor;
+
+        for (int i = 0; i < droppedByPolicy.length; i++) {
+            droppedByPolicy[i] = new AtomicLong();
+        }
+
+        // Time based flushes are triggered on a dedicated thread
+        flushTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PA batch flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Set the maximum number of observations in a batch. A value of 1 or less disables batching.
+     *
+     * @param maxBatchSize The maximum number of observations in a batch
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Set the maximum time an observation can wait in the buffer before being flushed.
+     *
+     * @param maxBatchDelay The maximum delay in milliseconds
+     */
+    public void setMaxBatchDelay(long maxBatchDelay) {
+        this.maxBatchDelay = Math.max(0L, maxBatchDelay);
+    }
+
+    /**
+     * Set the maximum number of observations waiting to be delivered for each device.
+     *
+     * @param queueCapacity The capacity of the queue of each device
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Set the policy applied when the queue of a device is full.
+     *
+     * @param policy The overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        if (policy != null) overflowPolicy = policy;
+    }
+
+    /**
+     * Set the maximum time a Device Adapter is blocked when using the BLOCK policy.
+     *
+     * @param maxBlockTime The maximum blocking time in milliseconds
+     */
+    public void setMaxBlockTime(long maxBlockTime) {
+        this.maxBlockTime = Math.max(0L, maxBlockTime);
+    }
+
+    /**
+     * Return the number of observations lost so far while applying the specified policy.
+     *
+     * @param policy The overflow policy
+     * @return The number of observations lost
+     */
+    public long getDroppedCount(OverflowPolicy policy) {
+        return droppedByPolicy[policy.ordinal()].get();
+    }
+
+    /**
+     * Return the number of times a Device Adapter was blocked because of a full queue.
+     *
+     * @return The number of times a Device Adapter was blocked
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * Add some observations to the queue of the device. If the queue reaches the maximum batch
+     * size, the delivery of a batch is scheduled right away.
+     *
+     * @param observations The observations received from the Device Adapter
+     * @param devDesc The device whom the observations belong to
+     */
+    public void add(List<Observation> observations, DeviceDescription devDesc) {
+        if (observations == null || observations.isEmpty() || devDesc == null) return;
+
+        DeviceQueue q = getQueue(devDesc.getDeviceID());
+        OverflowPolicy policy = overflowPolicy;
+
+        synchronized (q) {
+            q.devDesc = devDesc;
+
+            // Index based copy, an iterator would be allocated for every push
+            for (int i = 0; i < observations.size(); i++) {
+                offer(q, observations.get(i), policy);
+            }
+
+            if (q.observationCount >= maxBatchSize || maxBatchDelay == 0L) {
+                // The batch is full, deliver it right now
+                scheduleDrain(q);
+            } else if (!q.timerScheduled && !q.drainScheduled && q.observationCount > 0) {
+                // This is the first observation of a new batch, start the timer
+                long delay = maxBatchDelay;
+                q.timerScheduled = true;
+                q.flushDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                try {
+                    flushTimer.schedule(q.timedFlush, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Closed: nothing will flush the batch later, deliver it now
+                    scheduleDrain(q);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue an event regarding the device. The event runs on the executor after every observation
+     * queued before it has been delivered. Events are never dropped.
+     *
+     * @param devId The Device ID
+     * @param event The event to run
+     */
+    public void addEvent(String devId, Runnable event) {
+        if (devId == null) {
+            executor.execute(null, event);
+            return;
+        }
+
+        DeviceQueue q = getQueue(devId);
+
+        synchronized (q) {
+            q.items.addLast(event);
+            scheduleDrain(q);
+        }
+    }
+
+    /**
+     * Schedule immediately the delivery of the pending observations of the specified device.
+     *
+     * @param devId The Device ID
+     */
+    public void flush(String devId) {
+        DeviceQueue q = devId != null ? queues.get(devId) : null;
+
+        if (q != null) {
+            synchronized (q) {
+                scheduleDrain(q);
+            }
+        }
+    }
+
+    /**
+     * Schedule immediately the delivery of the pending observations of every device.
+     */
+    public void flushAll() {
+        for (String devId : queues.keySet()) {
+            flush(devId);
+        }
+    }
+
+    /**
+     * Forget the queue of the device once everything queued so far has been delivered. To be
+     * called when the device leaves the system.
+     *
+     * @param devId The Device ID
+     */
+    public void remove(final String devId) {
+        final DeviceQueue q = devId != null ? queues.get(devId) : null;
+
+        if (q == null) return;
+
+        addEvent(devId, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (q) {
+                    if (q.items.isEmpty()) queues.remove(devId, q);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedule the delivery of every pending observation and stop the timer thread. The executor
+     * must be shut down afterwards to wait for the deliveries.
+     */
+    public void close() {
+        flushAll();
+        flushTimer.shutdownNow();
+    }
+
+    /**
+     * Retrieve the queue of the device, creating it if needed.
+     *
+     * @param devId The Device ID
+     * @return The queue of the device
+     */
+    private DeviceQueue getQueue(String devId) {
+        DeviceQueue q = queues.get(devId);
+
+        if (q == null) {
+            DeviceQueue newQueue = new DeviceQueue(devId);
+            q = queues.putIfAbsent(devId, newQueue);
+            if (q == null) q = newQueue;
+        }
+
+        return q;
+    }
+
+    /**
+     * Insert an observation in the queue, applying the overflow policy if the queue is full. Must
+     * be called while holding the lock of the queue.
+     *
+     * @param q The queue of the device
+     * @param obs The observation to insert
+     * @param policy The overflow policy
+     */
+    private void offer(DeviceQueue q, Observation obs, OverflowPolicy policy) {
+        int capacity = queueCapacity;
+
+        if (q.observationCount >= capacity) {
+            switch (policy) {
+                case BLOCK:
+                    // Make sure the queue is being emptied, then wait for some room
+                    scheduleDrain(q);
+                    blockedCount.incrementAndGet();
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockTime);
+                    long wait;
+                    while (q.observationCount >= capacity && (wait = deadline - System.nanoTime()) > 0) {
+                        try {
+                            q.wait(TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if (q.observationCount >= capacity) {
+                        countDrop(q, policy);
+                        return;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    countDrop(q, policy);
+                    return;
+                case KEEP_LATEST:
+                    // Replace the oldest value of the same property, if there is one
+                    if (!removeFirst(q, obs.getPropertyName())) removeFirst(q, null);
+                    countDrop(q, policy);
+                    break;
+                case DROP_OLDEST:
+                default:
+                    removeFirst(q, null);
+                    countDrop(q, policy);
+                    break;
+            }
+        }
+
+        q.items.addLast(obs);
+        q.observationCount++;
+    }
+
+    /**
+     * Remove the oldest queued observation, optionally limited to a given property. Queued events
+     * are never removed. Must be called while holding the lock of the queue.
+     *
+     * @param q The queue of the device
+     * @param property The property of the observation to remove, or null for any property
+     * @return True if an observation was removed, false otherwise
+     */
+    private boolean removeFirst(DeviceQueue q, String property) {
+        Iterator<Object> it = q.items.iterator();
+
+        while (it.hasNext()) {
+            Object item = it.next();
+            if (item instanceof Observation &&
+                    (property == null || property.equals(((Observation) item).getPropertyName()))) {
+                it.remove();
+                q.observationCount--;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Update the counters after an observation has been lost. Must be called while holding the
+     * lock of the queue.
+     *
+     * @param q The queue of the device
+     * @param policy The policy that caused the loss
+     */
+    private void countDrop(DeviceQueue q, OverflowPolicy policy) {
+        droppedByPolicy[policy.ordinal()].incrementAndGet();
+
+        if (q.dropped++ % DROP_LOG_INTERVAL == 0) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Queue of device " + q.devId + " is full (" + policy + "), " +
+                    q.dropped + " observations lost so far; " + getCounters());
+        }
+    }
+
+    /**
+     * Describe the counters of every policy, for the logs.
+     *
+     * @return The number of observations lost with each policy and the number of blocked pushes
+     */
+    public String getCounters() {
+        StringBuilder sb = new StringBuilder("observations lost:");
+
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            sb.append(' ').append(policy).append('=').append(getDroppedCount(policy));
+        }
+        sb.append(", blocked pushes: ").append(getBlockedCount());
+
+        return sb.toString();
+    }
+
+    /**
+     * Schedule the delivery of the queue on the executor, unless it is already scheduled. Must be
+     * called while holding the lock of the queue.
+     *
+     * @param q The queue to deliver
+     */
+    private void scheduleDrain(DeviceQueue q) {
+        // A pending timer is not cancelled, it will find that the batch was already delivered
+        q.timerScheduled = false;
+
+        if (!q.drainScheduled && !q.items.isEmpty()) {
+            q.drainScheduled = true;
+            executor.execute(q.devId, q.drain);
+        }
+    }
+
+    /**
+     * The queue of pending observations and events for a single device
+     */
+    private class DeviceQueue {
+        private final String devId;
+        private final ArrayDeque<Object> items = new ArrayDeque<Object>(); // Observations and Runnables
+        private int observationCount = 0;
+        private DeviceDescription devDesc;
+        private boolean timerScheduled = false;
+        private long flushDeadline; // System.nanoTime() at which the current batch is due
+        private boolean drainScheduled = false;
+        private long dropped = 0L;
+
+        // Only accessed by the drain, which never runs concurrently with itself
+        private final List<Observation> batch = new ArrayList<Observation>();
+
+        private final Runnable timedFlush = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DeviceQueue.this) {
+                    // A timer started for a batch already delivered is early for the current one
+                    if (timerScheduled && System.nanoTime() - flushDeadline >= 0) scheduleDrain(DeviceQueue.this);
+                }
+            }
+        };
+
+        /**
+         * Deliver one batch (or one event) per run, then reschedule itself if something is left,
+         * so that a busy device does not monopolize its stripe
+         */
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                Runnable event = null;
+                DeviceDescription desc;
+
+                synchronized (DeviceQueue.this) {
+                    Object head = items.peekFirst();
+                    desc = devDesc;
+
+                    if (head instanceof Runnable) {
+                        event = (Runnable) items.pollFirst();
+                    } else {
+                        int max = maxBatchSize;
+                        while (batch.size() < max && items.peekFirst() instanceof Observation) {
+                            batch.add((Observation) items.pollFirst());
+                            observationCount--;
+                        }
+
+                        // Wake up any Device Adapter blocked on this queue
+                        DeviceQueue.this.notifyAll();
+                    }
+                }
+
+                try {
+                    if (event != null) {
+                        event.run();
+                    } else if (!batch.isEmpty()) {
+                        listener.onFlush(batch, desc);
+                    }
+                } finally {
+                    batch.clear();
+
+                    synchronized (DeviceQueue.this) {
+                        if (items.isEmpty()) {
+                            drainScheduled = false;
+                        } else {
+                            executor.execute(devId, this);
+                        }
+                    }
+                }
+            }
+        };
+
+        private DeviceQueue(String devId) {
+            this.devId = devId;
+        }
+    }
+}
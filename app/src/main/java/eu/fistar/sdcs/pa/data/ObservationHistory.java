@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.fistar.sdcs.pa.common.Observation;
+
+/**
+ * Keeps the most recent observations of every property of every device, so that applications
+ * starting late can retrieve them. Each property has a fixed size ring buffer made of primitive
+ * arrays holding the timestamps and the numeric values; values that are not a single number, or
+ * whose text would not be given back exactly by formatting the number (like "1.10" or "1e3"), are
+ * kept as they are in a side array allocated only when needed. Whether the text is given back
+ * exactly is decided by scanning its characters, so recording a number allocates nothing. The measurement unit is kept for
+ * every observation. The ring is always sorted by timestamp, so the observations since a given
+ * time are found with a binary search.
+ */
+public class ObservationHistory {
+
+    // Default number of observations kept for every property
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final ConcurrentMap<String, DeviceHistory> devices = new ConcurrentHashMap<>(); // <[Device ID], [DeviceHistory]>
+    private volatile int capacity;
+
+    /**
+     * Create a new history with the default capacity.
+     */
+    public ObservationHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new history.
+     *
+     * @param capacity The number of observations kept for every property
+     */
+    public ObservationHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Set the number of observations kept for every property. Properties already in the
+     * history keep their current capacity; 0 disables the history.
+     *
+     * @param capacity The number of observations kept for every property
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Record the observations pushed by a device.
+     *
+     * @param observations The observations
+     * @param devId The Device ID
+     */
+    public void record(List<Observation> observations, String devId) {
+        if (capacity == 0 || observations == null || devId == null) return;
+
+        DeviceHistory dev = devices.get(devId);
+        if (dev == null) {
+            DeviceHistory newDev = new DeviceHistory();
+            dev = devices.putIfAbsent(devId, newDev);
+            if (dev == null) dev = newDev;
+        }
+
+        synchronized (dev) {
+            for (int i = 0; i < observations.size(); i++) {
+                Observation obs = observations.get(i);
+                String property = obs.getPropertyName();
+
+                Ring ring = dev.properties.get(property);
+                if (ring == null) {
+                    ring = new Ring(capacity);
+                    dev.properties.put(property, ring);
+                }
+
+                ring.add(obs);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the observations of a device with a timestamp equal to or greater than the given
+     * one, ordered by timestamp for each property.
+     *
+     * @param devId The Device ID
+     * @param property The property name, or null for every property
+     * @param since The timestamp of the oldest observation to retrieve
+     * @return The observations, possibly an empty list
+     */
+    public List<Observation> getSince(String devId, String property, long since) {
+        List<Observation> result = new ArrayList<Observation>();
+        DeviceHistory dev = devId != null ? devices.get(devId) : null;
+
+        if (dev == null) return result;
+
+        synchronized (dev) {
+            if (property != null) {
+                Ring ring = dev.properties.get(property);
+                if (ring != null) ring.getSince(property, since, result);
+            } else {
+                for (Map.Entry<String, Ring> entry : dev.properties.entrySet()) {
+                    entry.getValue().getSince(entry.getKey(), since, result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Forget the history of a device that left the system.
+     *
+     * @param devId The Device ID
+     */
+    public void removeDevice(String devId) {
+        if (devId != null) devices.remove(devId);
+    }
+
+    /**
+     * History of all the properties of a device
+     */
+    private static class DeviceHistory {
+        private final Map<String, Ring> properties = new HashMap<String, Ring>();
+    }
+
+    /**
+     * Fixed size ring buffer of the observations of a single property, sorted by timestamp
+     */
+    private static class Ring {
+        private final long[] times;
+        private final long[] durations;
+        private final double[] values;
+        private final String[] units;
+        private Object[] rawValues = null; // Original text, or array of texts, of the values that are not kept as a number
+        private int head = 0; // Index of the oldest element
+        private int size = 0;
+
+        private Ring(int capacity) {
+            times = new long[capacity];
+            durations = new long[capacity];
+            values = new double[capacity];
+            units = new String[capacity];
+        }
+
+        /**
+         * Add an observation, discarding the oldest one if the ring is full.
+         *
+         * @param obs The observation
+         */
+        private void add(Observation obs) {
+            long time = obs.getPhenomenonTime() > 0 ? obs.getPhenomenonTime() : System.currentTimeMillis();
+            List<String> obsValues = obs.getValues();
+
+            // Keep the values as a primitive when it gives back the same text
+            double value = Double.NaN;
+            Object raw = null;
+            if (obsValues != null && obsValues.size() == 1 && obsValues.get(0) != null) {
+                String text = obsValues.get(0);
+                if (isCanonical(text)) {
+                    value = Double.parseDouble(text);
+                } else {
+                    raw = text;
+                }
+            } else if (obsValues != null) {
+                raw = obsValues.toArray(new String[obsValues.size()]);
+            }
+
+            // Observations are expected in order: find the slot, shifting the newer ones if needed
+            int pos = size;
+            if (size > 0 && time < times[index(size - 1)]) {
+                pos = upperBound(time);
+                if (pos == 0 && size == times.length) return; // Older than everything in a full ring
+            }
+
+            if (size == times.length) {
+                // Full: drop the oldest element
+                head = index(1);
+                size--;
+                pos--;
+            }
+
+            for (int i = size; i > pos; i--) {
+                move(index(i - 1), index(i));
+            }
+
+            int slot = index(pos);
+            times[slot] = time;
+            durations[slot] = obs.getDuration();
+            values[slot] = value;
+            units[slot] = obs.getMeasurementUnit();
+            if (raw != null || rawValues != null) {
+                if (rawValues == null) rawValues = new Object[times.length];
+                rawValues[slot] = raw;
+            }
+            size++;
+        }
+
+        /**
+         * Append to the result the observations with a timestamp equal to or greater than the
+         * given one.
+         *
+         * @param property The name of the property
+         * @param since The timestamp of the oldest observation to retrieve
+         * @param result The list the observations are appended to
+         */
+        private void getSince(String property, long since, List<Observation> result) {
+            for (int i = lowerBound(since); i < size; i++) {
+                int slot = index(i);
+
+                Observation obs = new Observation();
+                obs.setProperty(property);
+                obs.setMeasurementUnit(units[slot]);
+                obs.setPhenomenonTime(times[slot]);
+                obs.setDuration(durations[slot]);
+                if (rawValues != null && rawValues[slot] instanceof String[]) {
+                    obs.setValues((String[]) rawValues[slot]);
+                } else if (rawValues != null && rawValues[slot] != null) {
+                    obs.setValues(new String[] { (String) rawValues[slot] });
+                } else {
+                    obs.setValues(new String[] { format(values[slot]) });
+                }
+
+                result.add(obs);
+            }
+        }
+
+        /**
+         * Check whether a text is a number that format() gives back exactly: an optional minus
+         * sign, no leading zero, and either an integer below 10^15 other than "-0", or a decimal
+         * number between 10^-3 and 10^7 with at most 15 significant digits and no trailing zero.
+         * Anything else, like "1.10", "1e3", "+1" or "NaN", is kept as text.
+         *
+         * @param text The text of the value
+         * @return True if the value can be kept as a number
+         */
+        private static boolean isCanonical(String text) {
+            int length = text.length();
+            int start = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+
+            // Integer part
+            int i = start;
+            while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') i++;
+            int intDigits = i - start;
+            if (intDigits == 0 || (intDigits > 1 && text.charAt(start) == '0')) return false;
+            if (i == length) return intDigits <= 15 && !(start == 1 && text.charAt(1) == '0');
+
+            // Fractional part
+            if (text.charAt(i) != '.' || i == length - 1 || text.charAt(length - 1) == '0' || intDigits > 7) return false;
+            boolean zero = intDigits == 1 && text.charAt(start) == '0';
+            int digits = zero ? 0 : intDigits;
+            for (int j = i + 1; j < length; j++) {
+                char c = text.charAt(j);
+                if (c < '0' || c > '9') return false;
+                if (zero && c == '0') {
+                    if (j - i >= 3) return false; // Below 10^-3
+                } else {
+                    zero = false;
+                    digits++;
+                }
+            }
+
+            return digits <= 15;
+        }
+
+        /**
+         * Format a value, without decimals if it is an integer.
+         *
+         * @param value The value
+         * @return The formatted value
+         */
+        private static String format(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+            return Double.toString(value);
+        }
+
+        /**
+         * Find the logical position of the first element with a timestamp equal to or greater
+         * than the given one.
+         *
+         * @param time The timestamp
+         * @return The logical position, size if there is none
+         */
+        private int lowerBound(long time) {
+            int low = 0;
+            int high = size;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[index(mid)] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Find the logical position of the first element with a timestamp greater than the given
+         * one.
+         *
+         * @param time The timestamp
+         * @return The logical position, size if there is none
+         */
+        private int upperBound(long time) {
+            int low = 0;
+            int high = size;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[index(mid)] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Copy an element to another slot.
+         *
+         * @param from The source slot
+         * @param to The destination slot
+         */
+        private void move(int from, int to) {
+            times[to] = times[from];
+            durations[to] = durations[from];
+            values[to] = values[from];
+            units[to] = units[from];
+            if (rawValues != null) rawValues[to] = rawValues[from];
+        }
+
+        /**
+         * Convert a logical position into a slot of the arrays.
+         *
+         * @param position The logical position, 0 being the oldest element
+         * @return The slot
+         */
+        private int index(int position) {
+            return (head + position) % times.length;
+        }
+    }
+}
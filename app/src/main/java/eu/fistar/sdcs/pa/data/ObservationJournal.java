@@ -0,0 +1,607 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+
+/**
+ * Disk backed, append only journal of observation batches, used to keep the data received while
+ * no application is able to receive it. The journal is made of fixed size segment files which are
+ * memory mapped, so appending a batch is a sequential copy into memory and the data survives the
+ * death of the PA process. Segments are deleted as soon as they have been replayed, and the oldest
+ * ones are discarded if the journal grows beyond its maximum size.
+ * <p>
+ * Every record is a batch of observations of a single device. The length of a record is written
+ * after its content, so a record interrupted by a crash is simply ignored. The replay position is
+ * saved in a small memory mapped file as well; after a crash the records of the last replay step
+ * may be delivered twice.
+ */
+public class ObservationJournal {
+
+    // Default sizes of the journal
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILENAME = "cursor";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxSize;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final Map<String, DeviceDescription> descriptions = new HashMap<String, DeviceDescription>(); // <[Device ID], [DeviceDescription]>
+    private final RecordWriter writer = new RecordWriter();
+    private MappedByteBuffer cursor;
+    private long nextSegmentId = 0L;
+    private long droppedRecords = 0L;
+    private boolean open = false;
+    private volatile boolean backlog = false;
+
+    /**
+     * Receives the batches read from the journal during the replay.
+     */
+    public interface Consumer {
+
+        /**
+         * Deliver a batch read from the journal.
+         *
+         * @param observations The observations of the batch
+         * @param devDesc The device whom the observations belong to
+         * @return True if the batch was delivered, false to stop the replay and keep the batch
+         */
+        public boolean onReplay(List<Observation> observations, DeviceDescription devDesc);
+    }
+
+    /**
+     * Create a new journal with the default sizes.
+     *
+     * @param dir The directory where the segments are stored
+     */
+    public ObservationJournal(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a new journal.
+     *
+     * @param dir The directory where the segments are stored
+     * @param segmentSize The size of each segment, in bytes
+     * @param maxSize The maximum size of the journal, in bytes
+     */
+    public ObservationJournal(File dir, int segmentSize, long maxSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSize = Math.max(maxSize, segmentSize);
+    }
+
+    /**
+     * Open the journal, recovering the segments left by a previous run.
+     */
+    public synchronized void open() {
+        if (open) return;
+
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create journal directory " + dir);
+            }
+
+            // Map the replay position
+            RandomAccessFile cursorFile = new RandomAccessFile(new File(dir, CURSOR_FILENAME), "rw");
+            try {
+                cursor = cursorFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+            } finally {
+                cursorFile.close();
+            }
+            long readSegmentId = cursor.getLong(0);
+            int readPosition = cursor.getInt(8);
+
+            // Recover the existing segments, oldest first
+            File[] files = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File d, String name) {
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+            long[] ids = new long[files != null ? files.length : 0];
+            for (int i = 0; i < ids.length; i++) {
+                String name = files[i].getName();
+                try {
+                    ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    ids[i] = -1L;
+                }
+            }
+            Arrays.sort(ids);
+
+            for (long id : ids) {
+                if (id < 0L) continue;
+
+                File file = segmentFile(id);
+                if (id < readSegmentId) {
+                    // Already replayed, the PA died before deleting it
+                    deleteFile(file);
+                    continue;
+                }
+
+                Segment seg = new Segment(id, file, (int) file.length());
+                seg.writePosition = seg.scan(0);
+                if (id == readSegmentId) seg.readPosition = Math.min(readPosition, seg.writePosition);
+                segments.addLast(seg);
+                nextSegmentId = id + 1;
+            }
+
+            open = true;
+            backlog = !isEmpty();
+
+            if (backlog) {
+                Log.i(PAAndroidConstants.PA_LOGTAG, "Observation journal recovered " + segments.size() + " segments to replay");
+            }
+        } catch (IOException e) {
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to open the observation journal", e);
+        }
+    }
+
+    /**
+     * Check whether there is something to replay.
+     *
+     * @return True if the journal contains no batches to replay, false otherwise
+     */
+    public synchronized boolean isEmpty() {
+        for (Segment seg : segments) {
+            if (seg.readPosition < seg.writePosition) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check whether there may be something to replay, without taking the lock of the journal.
+     * The flag is set when a batch is appended and cleared once a replay drained the journal.
+     *
+     * @return True if batches may be waiting to be replayed, false if the journal is empty
+     */
+    public boolean hasBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Return the number of batches discarded because the journal was full or not open.
+     *
+     * @return The number of batches discarded
+     */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Store a batch that nobody can receive at the moment. The batches stored are replayed in the
+     * order they were appended; the batches delivered directly while the journal is replayed are
+     * not ordered with respect to them.
+     *
+     * @param observations The observations of the batch
+     * @param devDesc The device whom the observations belong to
+     * @return True if the batch was stored in the journal, false if the journal is not open
+     */
+    public synchronized boolean append(List<Observation> observations, DeviceDescription devDesc) {
+        if (!open) {
+            droppedRecords++;
+            return false;
+        }
+
+        write(observations, devDesc);
+        backlog = true;
+        return true;
+    }
+
+    /**
+     * Read up to maxRecords batches from the journal and hand them to the consumer, in order. The
+     * consumer runs while holding the lock of the journal, so the batches appended meanwhile wait
+     * for it.
+     *
+     * @param maxRecords The maximum number of batches to replay
+     * @param consumer The consumer of the batches
+     * @return The number of batches replayed
+     */
+    public synchronized int replay(int maxRecords, Consumer consumer) {
+        int replayed = 0;
+
+        while (replayed < maxRecords && !segments.isEmpty()) {
+            Segment seg = segments.peekFirst();
+
+            if (seg.readPosition >= seg.writePosition) {
+                // The segment is exhausted: delete it, unless it is the one being written
+                if (segments.size() == 1) break;
+                segments.pollFirst();
+                deleteFile(seg.file);
+                saveCursor(segments.peekFirst().id, 0);
+                continue;
+            }
+
+            int length = seg.buffer.getInt(seg.readPosition);
+            MappedByteBuffer record = seg.buffer;
+            record.position(seg.readPosition + 4);
+
+            List<Observation> observations;
+            DeviceDescription devDesc;
+            try {
+                devDesc = readDevice(record);
+                int count = record.getInt();
+                observations = new ArrayList<Observation>(count);
+                for (int i = 0; i < count; i++) {
+                    observations.add(readObservation(record));
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Corrupted record, skip the rest of the segment
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Corrupted record in observation journal, skipping segment " + seg.id);
+                seg.readPosition = seg.writePosition;
+                continue;
+            }
+
+            if (!consumer.onReplay(observations, devDesc)) break;
+
+            seg.readPosition += 4 + length + 4;
+            saveCursor(seg.id, seg.readPosition);
+            replayed++;
+        }
+
+        backlog = !isEmpty();
+        return replayed;
+    }
+
+    /**
+     * Close the journal. Unreplayed batches stay on disk and will be recovered by open().
+     */
+    public synchronized void close() {
+        segments.clear();
+        open = false;
+        backlog = false;
+    }
+
+    /**
+     * Append a batch to the current segment, starting a new one if needed. Must be called while
+     * holding the lock of the journal.
+     *
+     * @param observations The observations of the batch
+     * @param devDesc The device whom the observations belong to
+     */
+    private void write(List<Observation> observations, DeviceDescription devDesc) {
+        descriptions.put(devDesc.getDeviceID(), devDesc);
+
+        // Serialize the record: device, observations
+        writer.reset();
+        writeDevice(writer, devDesc);
+        writer.writeInt(observations.size());
+        for (int i = 0; i < observations.size(); i++) {
+            writeObservation(writer, observations.get(i));
+        }
+
+        // Records are laid out as [placeholder][content][length]
+        int recordSize = 4 + writer.size + 4;
+
+        try {
+            Segment seg = segments.peekLast();
+            if (seg == null || seg.writePosition + recordSize + 4 > seg.buffer.capacity()) {
+                seg = newSegment(Math.max(segmentSize, recordSize + 4));
+            }
+
+            int pos = seg.writePosition;
+            seg.buffer.position(pos + 4);
+            seg.buffer.put(writer.bytes, 0, writer.size);
+            seg.buffer.putInt(writer.size);
+
+            // Commit the record by writing its length at the beginning
+            seg.buffer.putInt(pos, writer.size);
+            seg.writePosition = pos + recordSize;
+        } catch (IOException e) {
+            droppedRecords++;
+            Log.e(PAAndroidConstants.PA_LOGTAG, "Failed to append to the observation journal", e);
+        }
+    }
+
+    /**
+     * Create and map a new segment, discarding the oldest ones if the journal is full. Must be
+     * called while holding the lock of the journal.
+     *
+     * @param size The size of the segment
+     * @return The new segment
+     * @throws IOException If the segment cannot be created
+     */
+    private Segment newSegment(int size) throws IOException {
+        long total = size;
+        for (Segment seg : segments) {
+            total += seg.buffer.capacity();
+        }
+
+        // Make room by discarding the oldest data
+        while (total > maxSize && segments.size() > 1) {
+            Segment oldest = segments.pollFirst();
+            total -= oldest.buffer.capacity();
+            droppedRecords += oldest.countRecords();
+            deleteFile(oldest.file);
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Observation journal full, discarded segment " + oldest.id);
+        }
+
+        long id = nextSegmentId++;
+        Segment seg = new Segment(id, segmentFile(id), size);
+        segments.addLast(seg);
+
+        // The segment to replay may have changed
+        Segment first = segments.peekFirst();
+        saveCursor(first.id, first.readPosition);
+
+        return seg;
+    }
+
+    /**
+     * Save the replay position.
+     *
+     * @param segmentId The ID of the segment being replayed
+     * @param position The position in the segment
+     */
+    private void saveCursor(long segmentId, int position) {
+        if (cursor == null) return;
+
+        cursor.putLong(0, segmentId);
+        cursor.putInt(8, position);
+    }
+
+    /**
+     * Return the file of a segment.
+     *
+     * @param id The ID of the segment
+     * @return The file of the segment
+     */
+    private File segmentFile(long id) {
+        return new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Delete a file, logging any failure.
+     *
+     * @param file The file to delete
+     */
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(PAAndroidConstants.PA_LOGTAG, "Failed to delete journal file " + file);
+        }
+    }
+
+    /**
+     * Write the identity of a device.
+     *
+     * @param w The writer
+     * @param devDesc The device
+     */
+    private static void writeDevice(RecordWriter w, DeviceDescription devDesc) {
+        w.writeString(devDesc.getDeviceID());
+        w.writeString(devDesc.getSerialNumber());
+        w.writeString(devDesc.getModelName());
+        w.writeString(devDesc.getManufacturerName());
+        w.writeString(devDesc.getAddress());
+    }
+
+    /**
+     * Read the identity of a device. If the full description of the device is known, it is used
+     * in place of the stored one, which does not include the sensors.
+     *
+     * @param buf The buffer to read from
+     * @return The description of the device
+     */
+    private DeviceDescription readDevice(MappedByteBuffer buf) {
+        String devId = readString(buf);
+        String serial = readString(buf);
+        String model = readString(buf);
+        String manufacturer = readString(buf);
+        String address = readString(buf);
+
+        DeviceDescription known = descriptions.get(devId);
+        if (known != null) return known;
+
+        return new DeviceDescription(devId, serial, model, manufacturer, new ArrayList<SensorDescription>(), address);
+    }
+
+    /**
+     * Write an observation.
+     *
+     * @param w The writer
+     * @param obs The observation
+     */
+    private static void writeObservation(RecordWriter w, Observation obs) {
+        w.writeString(obs.getPropertyName());
+        w.writeString(obs.getMeasurementUnit());
+        w.writeLong(obs.getPhenomenonTime());
+        w.writeLong(obs.getDuration());
+
+        List<String> values = obs.getValues();
+        int count = values != null ? values.size() : 0;
+        w.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            w.writeString(values.get(i));
+        }
+    }
+
+    /**
+     * Read an observation.
+     *
+     * @param buf The buffer to read from
+     * @return The observation
+     */
+    private static Observation readObservation(MappedByteBuffer buf) {
+        Observation obs = new Observation();
+        obs.setProperty(readString(buf));
+        obs.setMeasurementUnit(readString(buf));
+        obs.setPhenomenonTime(buf.getLong());
+        obs.setDuration(buf.getLong());
+
+        int count = buf.getInt();
+        if (count < 0) throw new IllegalArgumentException("Negative value count");
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readString(buf);
+        }
+        obs.setValues(values);
+
+        return obs;
+    }
+
+    /**
+     * Read a string written by RecordWriter.writeString().
+     *
+     * @param buf The buffer to read from
+     * @return The string, possibly null
+     */
+    private static String readString(MappedByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        if (length > buf.remaining()) throw new IllegalArgumentException("String too long");
+
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * A segment file of the journal
+     */
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private int readPosition = 0;
+
+        private Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Find the end of the committed records, starting from a given position.
+         *
+         * @param from The position of the first record
+         * @return The position after the last committed record
+         */
+        private int scan(int from) {
+            int pos = from;
+
+            while (pos + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length <= 0 || pos + 4 + length + 4 > buffer.capacity() || buffer.getInt(pos + 4 + length) != length) break;
+                pos += 4 + length + 4;
+            }
+
+            return pos;
+        }
+
+        /**
+         * Count the records still to be replayed.
+         *
+         * @return The number of records
+         */
+        private int countRecords() {
+            int count = 0;
+            int pos = readPosition;
+
+            while (pos < writePosition) {
+                pos += 4 + buffer.getInt(pos) + 4;
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Growable buffer used to serialize a record before copying it in the segment
+     */
+    private static class RecordWriter {
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        private void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        private void writeString(String s) {
+            if (s == null) {
+                writeInt(-1);
+                return;
+            }
+
+            byte[] encoded = s.getBytes(UTF8);
+            writeInt(encoded.length);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Logs the observations flowing through the data path. Formatting the observations is expensive,
+ * so it is only done when the debug mode is enabled or, otherwise, once every N pushes according
+ * to the sampling rate. When neither applies, logging a push costs a couple of field reads.
+ */
+public class ObservationLogger {
+
+    private final AtomicLong pushCounter = new AtomicLong();
+
+    private volatile boolean debugEnabled;
+    private volatile int samplingRate;
+
+    /**
+     * Create a new logger.
+     *
+     * @param debugEnabled Whether every push should be logged
+     * @param samplingRate Log one push every samplingRate pushes (0 never logs when not in debug mode)
+     */
+    public ObservationLogger(boolean debugEnabled, int samplingRate) {
+        this.debugEnabled = debugEnabled;
+        this.samplingRate = Math.max(0, samplingRate);
+    }
+
+    /**
+     * Enable or disable the debug mode, in which every push is logged.
+     *
+     * @param debugEnabled Whether every push should be logged
+     */
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    /**
+     * Set how often a push is logged when the debug mode is disabled.
+     *
+     * @param samplingRate Log one push every samplingRate pushes (0 to disable sampling)
+     */
+    public void setSamplingRate(int samplingRate) {
+        this.samplingRate = Math.max(0, samplingRate);
+    }
+
+    /**
+     * Log the observations received from a Device Adapter, if the debug mode or the sampling rate
+     * say so.
+     *
+     * @param observations The observations received
+     * @param devDesc The device whom the observations belong to
+     */
+    public void logPush(List<Observation> observations, DeviceDescription devDesc) {
+        if (!isLoggable()) return;
+
+        StringBuilder sb = new StringBuilder(64 * (observations.size() + 1));
+        sb.append("Received data to push\nDevice: ").append(devDesc.getDeviceID()).append("\nData: \n");
+        for (int i = 0; i < observations.size(); i++) {
+            sb.append(observations.get(i)).append('\n');
+        }
+
+        Log.i(PAAndroidConstants.PA_LOGTAG, sb.toString());
+    }
+
+    /**
+     * Check whether the current push should be logged.
+     *
+     * @return True if the push should be logged, false otherwise
+     */
+    private boolean isLoggable() {
+        if (debugEnabled) return true;
+
+        int rate = samplingRate;
+        return rate > 0 && pushCounter.incrementAndGet() % rate == 0;
+    }
+}
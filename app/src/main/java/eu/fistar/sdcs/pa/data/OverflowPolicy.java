@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+/**
+ * What to do with a new observation when the queue of its device is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the Device Adapter until there is room in the queue. If the queue is still full after
+     * the maximum blocking time, the new observation is dropped.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest observation in the queue to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new observation.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest queued observation of the same property as the new one, or the oldest
+     * observation if none is queued, and append the new one. The properties pushed often thus
+     * lose their old values first, while the values of the other properties are kept.
+     */
+    KEEP_LATEST
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.fistar.sdcs.pa.common.Observation;
+
+/**
+ * Applies the StreamPolicies to the observations pushed by the Device Adapters, discarding the
+ * ones that are not needed before they are queued and dispatched. Policies can be set for a
+ * specific property of a specific device, for all the properties of a device, for a property of
+ * every device or for everything, and the most specific one applies. Policies can be changed at
+ * any time; when no policy is set, filtering costs a single field read.
+ */
+public class StreamFilter {
+
+    // Key used in place of a Device ID or a property name to match anything
+    private static final String ANY = "*";
+
+    private final ConcurrentMap<String, StreamPolicy> policies = new ConcurrentHashMap<>(); // <[Device ID + Property], [StreamPolicy]>
+    private final ConcurrentMap<String, DeviceState> states = new ConcurrentHashMap<>(); // <[Device ID], [DeviceState]>
+
+    private volatile boolean active = false;
+
+    /**
+     * Set the policy for a property of a device.
+     *
+     * @param devId The Device ID, or null for every device
+     * @param property The property name, or null for every property
+     * @param policy The policy, or null to remove the policy
+     */
+    public void setPolicy(String devId, String property, StreamPolicy policy) {
+        String key = key(devId != null ? devId : ANY, property != null ? property : ANY);
+
+        if (policy != null) {
+            policies.put(key, policy);
+        } else {
+            policies.remove(key);
+        }
+
+        // Start over with the new policies
+        states.clear();
+        active = !policies.isEmpty();
+    }
+
+    /**
+     * Return the policy set for a property of a device, if any.
+     *
+     * @param devId The Device ID, or null for every device
+     * @param property The property name, or null for every property
+     * @return The policy, or null if not set
+     */
+    public StreamPolicy getPolicy(String devId, String property) {
+        return policies.get(key(devId != null ? devId : ANY, property != null ? property : ANY));
+    }
+
+    /**
+     * Remove from the list the observations discarded by the policies. The list is modified in
+     * place, keeping the order of the remaining observations.
+     *
+     * @param observations The observations pushed by the Device Adapter
+     * @param devId The Device ID
+     */
+    public void filter(List<Observation> observations, String devId) {
+        if (!active || observations == null || devId == null) return;
+
+        DeviceState dev = states.get(devId);
+        if (dev == null) {
+            DeviceState newDev = new DeviceState();
+            dev = states.putIfAbsent(devId, newDev);
+            if (dev == null) dev = newDev;
+        }
+
+        synchronized (dev) {
+            int kept = 0;
+
+            for (int i = 0; i < observations.size(); i++) {
+                Observation obs = observations.get(i);
+                String property = obs.getPropertyName();
+
+                PropertyState prop = dev.properties.get(property);
+                if (prop == null) {
+                    prop = new PropertyState(resolve(devId, property));
+                    dev.properties.put(property, prop);
+                }
+
+                if (prop.accept(obs)) {
+                    observations.set(kept++, obs);
+                }
+            }
+
+            // Drop the tail left by the discarded observations
+            if (kept < observations.size()) {
+                observations.subList(kept, observations.size()).clear();
+            }
+        }
+    }
+
+    /**
+     * Forget the state of a device that left the system.
+     *
+     * @param devId The Device ID
+     */
+    public void removeDevice(String devId) {
+        if (devId != null) states.remove(devId);
+    }
+
+    /**
+     * Find the most specific policy for a property of a device.
+     *
+     * @param devId The Device ID
+     * @param property The property name
+     * @return The policy, or null if no policy applies
+     */
+    private StreamPolicy resolve(String devId, String property) {
+        StreamPolicy policy = policies.get(key(devId, property));
+        if (policy == null) policy = policies.get(key(devId, ANY));
+        if (policy == null) policy = policies.get(key(ANY, property));
+        if (policy == null) policy = policies.get(key(ANY, ANY));
+        return policy;
+    }
+
+    /**
+     * Build the key of the policies Map.
+     *
+     * @param devId The Device ID
+     * @param property The property name
+     * @return The key
+     */
+    private static String key(String devId, String property) {
+        return devId + '\n' + property;
+    }
+
+    /**
+     * Filtering state of all the properties of a device
+     */
+    private static class DeviceState {
+        private final Map<String, PropertyState> properties = new HashMap<String, PropertyState>();
+    }
+
+    /**
+     * Filtering state of a single property of a device
+     */
+    private static class PropertyState {
+        private final StreamPolicy policy;
+        private long count = 0L;
+        private long lastTime = Long.MIN_VALUE;
+        private double lastValue = Double.NaN;
+        private String lastRawValue = null;
+
+        private PropertyState(StreamPolicy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Check whether an observation should be forwarded, updating the state accordingly.
+         *
+         * @param obs The observation
+         * @return True if the observation should be forwarded, false otherwise
+         */
+        private boolean accept(Observation obs) {
+            if (policy == null) return true;
+
+            // Decimation: keep the first observation out of every N
+            if (count++ % policy.getDecimation() != 0) return false;
+
+            // Downsampling: respect the minimum interval from the last forwarded observation
+            long time = obs.getPhenomenonTime() > 0 ? obs.getPhenomenonTime() : System.currentTimeMillis();
+            if (policy.getMinInterval() > 0 && lastTime != Long.MIN_VALUE && time - lastTime < policy.getMinInterval()) {
+                return false;
+            }
+
+            // Deadband: forward only values that changed enough
+            if (policy.hasDeadband()) {
+                List<String> values = obs.getValues();
+                String raw = values != null && !values.isEmpty() ? values.get(0) : null;
+
+                if (lastRawValue != null && raw != null) {
+                    double value;
+                    try {
+                        value = Double.parseDouble(raw);
+                    } catch (NumberFormatException e) {
+                        value = Double.NaN;
+                    }
+
+                    if (Double.isNaN(value) || Double.isNaN(lastValue)) {
+                        // Not a number, just check whether the value changed
+                        if (raw.equals(lastRawValue)) return false;
+                    } else {
+                        double delta = Math.abs(value - lastValue);
+                        if (delta < policy.getAbsoluteDeadband()) return false;
+                        if (delta < policy.getRelativeDeadband() * Math.abs(lastValue)) return false;
+                    }
+
+                    lastValue = value;
+                } else if (raw != null) {
+                    try {
+                        lastValue = Double.parseDouble(raw);
+                    } catch (NumberFormatException e) {
+                        lastValue = Double.NaN;
+                    }
+                }
+
+                lastRawValue = raw;
+            }
+
+            lastTime = time;
+            return true;
+        }
+    }
+}
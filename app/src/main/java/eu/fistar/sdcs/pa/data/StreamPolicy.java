@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+/**
+ * Describes how a stream of observations should be thinned out before being dispatched. All the
+ * criteria that are set must be satisfied for an observation to be forwarded:
+ * <ul>
+ *     <li>decimation: only one observation out of N is kept;</li>
+ *     <li>downsampling: observations closer in time than the minimum interval to the last
+ *     forwarded one are discarded;</li>
+ *     <li>deadband: observations whose value differs from the last forwarded one by less than the
+ *     absolute deadband, or by less than the relative deadband (a fraction of the last value),
+ *     are discarded.</li>
+ * </ul>
+ */
+public class StreamPolicy {
+
+    private final int decimation;
+    private final long minInterval;
+    private final double absoluteDeadband;
+    private final double relativeDeadband;
+
+    /**
+     * Create a new policy. Pass 0 to disable any of the criteria.
+     *
+     * @param decimation Keep one observation every decimation observations
+     * @param minInterval The minimum time between two forwarded observations, in milliseconds
+     * @param absoluteDeadband The minimum absolute change of the value
+     * @param relativeDeadband The minimum relative change of the value (e.g. 0.05 for 5%)
+     */
+    public StreamPolicy(int decimation, long minInterval, double absoluteDeadband, double relativeDeadband) {
+        this.decimation = Math.max(1, decimation);
+        this.minInterval = Math.max(0L, minInterval);
+        this.absoluteDeadband = Math.max(0d, absoluteDeadband);
+        this.relativeDeadband = Math.max(0d, relativeDeadband);
+    }
+
+    public int getDecimation() {
+        return decimation;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public double getAbsoluteDeadband() {
+        return absoluteDeadband;
+    }
+
+    public double getRelativeDeadband() {
+        return relativeDeadband;
+    }
+
+    /**
+     * Check whether the policy has a deadband.
+     *
+     * @return True if an absolute or relative deadband is set, false otherwise
+     */
+    public boolean hasDeadband() {
+        return absoluteDeadband > 0d || relativeDeadband > 0d;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamPolicy{decimation=" + decimation + ", minInterval=" + minInterval +
+                ", absoluteDeadband=" + absoluteDeadband + ", relativeDeadband=" + relativeDeadband + "}";
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Splits the batches of observations so that no single binder transaction carries more than a
+ * given amount of data. The binder transaction buffer (about 1 MB) is shared by all the
+ * transactions in progress in the process, so batches of waveform data could otherwise fail with
+ * a TransactionTooLargeException and be lost. The size of every observation is estimated from
+ * the way it is written in the Parcel, without actually marshalling it. If a transaction fails
+ * anyway, it is split in half and retried.
+ */
+public class TransactionSizeLimiter {
+
+    // Default maximum size of the observations sent in a single transaction, in bytes
+    public static final int DEFAULT_MAX_TRANSACTION_SIZE = 256 * 1024;
+
+    private volatile int maxTransactionSize = DEFAULT_MAX_TRANSACTION_SIZE;
+
+    /**
+     * Performs the actual binder call with a chunk of the batch.
+     */
+    public interface Sender {
+
+        /**
+         * Send a chunk of observations belonging to the same device.
+         *
+         * @param observations The observations to send
+         * @param devDesc The device whom the observations belong to
+         * @throws RemoteException If the binder call fails
+         */
+        public void send(List<Observation> observations, DeviceDescription devDesc) throws RemoteException;
+    }
+
+    /**
+     * Set the maximum size of the observations sent in a single transaction.
+     *
+     * @param maxTransactionSize The maximum size in bytes
+     */
+    public void setMaxTransactionSize(int maxTransactionSize) {
+        this.maxTransactionSize = Math.max(1024, maxTransactionSize);
+    }
+
+    /**
+     * Send a batch of observations through the sender, splitting it in as many chunks as needed
+     * to respect the maximum transaction size. Chunks are sent in order.
+     *
+     * @param observations The batch of observations
+     * @param devDesc The device whom the observations belong to
+     * @param sender The sender that performs the binder calls
+     * @throws RemoteException If a binder call fails for any other reason than its size
+     */
+    public void send(List<Observation> observations, DeviceDescription devDesc, Sender sender) throws RemoteException {
+        int limit = maxTransactionSize;
+        int start = 0;
+        long chunkSize = 0L;
+
+        for (int i = 0; i < observations.size(); i++) {
+            long obsSize = estimateSize(observations.get(i));
+
+            // Close the current chunk if this observation does not fit
+            if (chunkSize + obsSize > limit && i > start) {
+                sendChunk(observations.subList(start, i), devDesc, sender);
+                start = i;
+                chunkSize = 0L;
+            }
+
+            chunkSize += obsSize;
+        }
+
+        if (start == 0) {
+            // The whole batch fits, which is by far the most common case
+            sendChunk(observations, devDesc, sender);
+        } else if (start < observations.size()) {
+            sendChunk(observations.subList(start, observations.size()), devDesc, sender);
+        }
+    }
+
+    /**
+     * Send a chunk, splitting it in half and retrying if the transaction turns out to be too
+     * large anyway.
+     *
+     * @param chunk The observations to send
+     * @param devDesc The device whom the observations belong to
+     * @param sender The sender that performs the binder calls
+     * @throws RemoteException If a binder call fails for any other reason than its size
+     */
+    private void sendChunk(List<Observation> chunk, DeviceDescription devDesc, Sender sender) throws RemoteException {
+        try {
+            sender.send(chunk, devDesc);
+        } catch (TransactionTooLargeException e) {
+            if (chunk.size() > 1) {
+                int half = chunk.size() / 2;
+                sendChunk(chunk.subList(0, half), devDesc, sender);
+                sendChunk(chunk.subList(half, chunk.size()), devDesc, sender);
+            } else {
+                Log.w(PAAndroidConstants.PA_LOGTAG, "Observation of device " + devDesc.getDeviceID() +
+                        " is too large to be pushed, dropped");
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of bytes an observation takes in a Parcel, following the fields written
+     * by Observation.writeToParcel() (two strings, a list of strings and two longs), plus the
+     * marker written for every element of a typed list.
+     *
+     * @param obs The observation
+     * @return The estimated size in bytes
+     */
+    public static long estimateSize(Observation obs) {
+        long size = 4L + stringSize(obs.getPropertyName()) + stringSize(obs.getMeasurementUnit()) + 8L + 8L;
+
+        List<String> values = obs.getValues();
+        size += 4L;
+        if (values != null) {
+            for (int i = 0; i < values.size(); i++) {
+                size += stringSize(values.get(i));
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Estimate the number of bytes a string takes in a Parcel: its length, followed by its UTF-16
+     * characters and a terminator, padded to 4 bytes.
+     *
+     * @param str The string
+     * @return The estimated size in bytes
+     */
+    private static long stringSize(String str) {
+        if (str == null) return 4L;
+
+        return 4L + ((((long) str.length() + 1L) * 2L + 3L) & ~3L);
+    }
+}
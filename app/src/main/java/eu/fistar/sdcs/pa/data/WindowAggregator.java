@@ -0,0 +1,402 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Computes min, max, mean and count of the numeric observations of every property of every
+ * device over tumbling time windows of 1, 10 and 60 seconds. Aggregates are updated
+ * incrementally as observations arrive, so every property costs a constant amount of memory.
+ * <p>
+ * Windows are keyed on the phenomenon time, that is on the clock of the device, and they are
+ * closed by the same clock: every device has a watermark, the latest phenomenon time it pushed,
+ * and the windows of all its properties ending before the watermark are closed. The clock of the
+ * phone is only used to flush the windows of a device that stopped pushing data, by measuring
+ * how long it has been idle. Observations falling in a window already closed are dropped, so a
+ * window is reported at most once.
+ * <p>
+ * Every closed window is reported as an Observation of the same property, with the start of the
+ * window as phenomenon time, its length as duration and the values min, max, mean and count.
+ */
+public class WindowAggregator {
+
+    // The supported window lengths, in milliseconds
+    public static final long[] WINDOWS = { 1000L, 10000L, 60000L };
+
+    // Interval of the sweep closing the windows of idle properties
+    private static final long SWEEP_INTERVAL = 1000L;
+
+    private final ConcurrentMap<String, DeviceState> devices = new ConcurrentHashMap<>(); // <[Device ID], [DeviceState]>
+    private final Listener listener;
+    private final HandlerThread sweepThread;
+    private final Handler sweepHandler;
+
+    private volatile boolean enabled = false;
+
+    private final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            flushIdle(System.currentTimeMillis());
+
+            if (enabled) sweepHandler.postDelayed(this, SWEEP_INTERVAL);
+        }
+    };
+
+    /**
+     * Receives the aggregates of the closed windows.
+     */
+    public interface Listener {
+
+        /**
+         * Called when some windows of a device are closed. The listener is called while holding
+         * the lock of the device, so that the aggregates of a device are reported in the order
+         * their windows were closed: it should just queue them.
+         *
+         * @param window The length of the windows, in milliseconds
+         * @param aggregates The aggregates, one Observation per property
+         * @param devDesc The device whom the aggregates belong to
+         */
+        public void onAggregates(long window, List<Observation> aggregates, DeviceDescription devDesc);
+    }
+
+    /**
+     * Create a new aggregator, disabled until someone needs the aggregates.
+     *
+     * @param listener The listener receiving the aggregates
+     */
+    public WindowAggregator(Listener listener) {
+        this.listener = listener;
+
+        sweepThread = new HandlerThread("PA aggregator");
+        sweepThread.start();
+        sweepHandler = new Handler(sweepThread.getLooper());
+    }
+
+    /**
+     * Check whether a window length is supported.
+     *
+     * @param window The length of the window, in milliseconds
+     * @return True if the window is supported, false otherwise
+     */
+    public static boolean isSupported(long window) {
+        for (long w : WINDOWS) {
+            if (w == window) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Enable or disable the aggregation. When disabled, observations are ignored and the
+     * partial aggregates are discarded.
+     *
+     * @param enabled Whether the aggregates are needed
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
+
+        this.enabled = enabled;
+        if (enabled) {
+            sweepHandler.postDelayed(sweep, SWEEP_INTERVAL);
+        } else {
+            sweepHandler.removeCallbacks(sweep);
+            devices.clear();
+        }
+    }
+
+    /**
+     * Add the observations pushed by a device to the aggregates. Observations whose first value
+     * is not a number are ignored.
+     *
+     * @param observations The observations
+     * @param devDesc The device whom the observations belong to
+     */
+    public void add(List<Observation> observations, DeviceDescription devDesc) {
+        if (!enabled || observations == null || devDesc == null) return;
+
+        String devId = devDesc.getDeviceID();
+        DeviceState dev = devices.get(devId);
+        if (dev == null) {
+            DeviceState newDev = new DeviceState();
+            dev = devices.putIfAbsent(devId, newDev);
+            if (dev == null) dev = newDev;
+        }
+
+        dev.add(observations, devDesc);
+    }
+
+    /**
+     * Forget the aggregates of a device that left the system.
+     *
+     * @param devId The Device ID
+     */
+    public void removeDevice(String devId) {
+        if (devId != null) devices.remove(devId);
+    }
+
+    /**
+     * Stop the sweep thread.
+     */
+    public void close() {
+        setEnabled(false);
+        sweepThread.quit();
+    }
+
+    /**
+     * Close the windows of the devices that did not push any data for long enough that their
+     * windows must have ended, according to their own clock.
+     *
+     * @param now The current time of the phone
+     */
+    void flushIdle(long now) {
+        for (DeviceState dev : devices.values()) {
+            dev.closeIdle(now);
+        }
+    }
+
+    /**
+     * Aggregates of all the properties of a device
+     */
+    private class DeviceState {
+        private final Map<String, Window[]> properties = new HashMap<String, Window[]>(); // <[Property], [Windows]>
+        private DeviceDescription devDesc;
+        private long watermark = Long.MIN_VALUE; // Latest phenomenon time, on the clock of the device
+        private long lastArrival = 0L; // Time of the last push, on the clock of the phone
+        private long late = 0L;
+
+        /**
+         * Add some observations, closing the windows ended before the watermark.
+         *
+         * @param observations The observations
+         * @param devDesc The device whom the observations belong to
+         */
+        private synchronized void add(List<Observation> observations, DeviceDescription devDesc) {
+            this.devDesc = devDesc;
+            lastArrival = System.currentTimeMillis();
+            List<Observation>[] closed = null;
+
+            for (int i = 0; i < observations.size(); i++) {
+                Observation obs = observations.get(i);
+                List<String> values = obs.getValues();
+                if (values == null || values.isEmpty() || values.get(0) == null) continue;
+
+                double value;
+                try {
+                    value = Double.parseDouble(values.get(0));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (Double.isNaN(value)) continue;
+
+                long time = obs.getPhenomenonTime() > 0 ? obs.getPhenomenonTime() : lastArrival;
+                String property = obs.getPropertyName();
+
+                Window[] windows = properties.get(property);
+                if (windows == null) {
+                    windows = new Window[WINDOWS.length];
+                    for (int w = 0; w < windows.length; w++) {
+                        windows[w] = new Window(WINDOWS[w]);
+                    }
+                    properties.put(property, windows);
+                }
+
+                boolean added = true;
+                for (int w = 0; w < windows.length; w++) {
+                    Window window = windows[w];
+
+                    if (window.count > 0 && time >= window.end()) {
+                        closed = collect(closed, w, window.close(property));
+                    }
+
+                    added &= window.add(time, value, obs.getMeasurementUnit());
+                }
+                if (!added) late++;
+
+                if (time > watermark) watermark = time;
+            }
+
+            // The clock of the device moved on: close the windows of the other properties as well
+            for (Map.Entry<String, Window[]> entry : properties.entrySet()) {
+                Window[] windows = entry.getValue();
+
+                for (int w = 0; w < windows.length; w++) {
+                    if (windows[w].count > 0 && watermark >= windows[w].end()) {
+                        closed = collect(closed, w, windows[w].close(entry.getKey()));
+                    }
+                }
+            }
+
+            emit(closed);
+        }
+
+        /**
+         * Close the windows of the device if it has been idle, on the clock of the phone, for
+         * longer than the time left to their end on the clock of the device, plus a grace period
+         * for the data still on its way.
+         *
+         * @param now The current time of the phone
+         */
+        private synchronized void closeIdle(long now) {
+            List<Observation>[] closed = null;
+            long idle = now - lastArrival;
+
+            for (Map.Entry<String, Window[]> entry : properties.entrySet()) {
+                Window[] windows = entry.getValue();
+
+                for (int w = 0; w < windows.length; w++) {
+                    Window window = windows[w];
+
+                    if (window.count > 0 && idle >= window.end() - watermark + SWEEP_INTERVAL) {
+                        closed = collect(closed, w, window.close(entry.getKey()));
+                    }
+                }
+            }
+
+            emit(closed);
+        }
+
+        /**
+         * Report the closed windows to the listener. Must be called while holding the lock of
+         * the device.
+         *
+         * @param closed The aggregates of the closed windows, indexed as WINDOWS, or null
+         */
+        private void emit(List<Observation>[] closed) {
+            if (closed == null) return;
+
+            if (late > 0) {
+                Log.d(PAAndroidConstants.PA_LOGTAG, "Dropped " + late + " late observations of device " + devDesc.getDeviceID() + " from the aggregates");
+                late = 0L;
+            }
+
+            for (int i = 0; i < closed.length; i++) {
+                if (closed[i] != null) listener.onAggregates(WINDOWS[i], closed[i], devDesc);
+            }
+        }
+
+        /**
+         * Add an aggregate to the ones to report.
+         *
+         * @param closed The aggregates collected so far, or null
+         * @param index The index of the window length
+         * @param aggregate The aggregate
+         * @return The aggregates collected so far
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private List<Observation>[] collect(List<Observation>[] closed, int index, Observation aggregate) {
+            if (closed == null) closed = new List[WINDOWS.length];
+            if (closed[index] == null) closed[index] = new ArrayList<Observation>();
+            closed[index].add(aggregate);
+            return closed;
+        }
+    }
+
+    /**
+     * Incremental aggregate of a property over a single window
+     */
+    private static class Window {
+        private final long length;
+        private long start = 0L;
+        private long closedUntil = Long.MIN_VALUE; // End of the last window closed
+        private int count = 0;
+        private double min;
+        private double max;
+        private double sum;
+        private String unit;
+
+        private Window(long length) {
+            this.length = length;
+        }
+
+        /**
+         * Add a value to the window, opening it if needed. Values older than the window, or
+         * falling in a window already closed, are ignored.
+         *
+         * @param time The timestamp of the value
+         * @param value The value
+         * @param unit The measurement unit
+         * @return True if the value was added, false if it was too late
+         */
+        private boolean add(long time, double value, String unit) {
+            if (time < closedUntil) return false;
+
+            if (count == 0) {
+                start = time - time % length;
+                min = value;
+                max = value;
+                sum = 0d;
+            } else if (time < start) {
+                return false;
+            }
+
+            if (value < min) min = value;
+            if (value > max) max = value;
+            sum += value;
+            count++;
+            this.unit = unit;
+            return true;
+        }
+
+        /**
+         * Return the end of the window, excluded.
+         *
+         * @return The end of the window
+         */
+        private long end() {
+            return start + length;
+        }
+
+        /**
+         * Close the window, returning its aggregate.
+         *
+         * @param property The name of the property
+         * @return The aggregate
+         */
+        private Observation close(String property) {
+            Observation obs = new Observation();
+            obs.setProperty(property);
+            obs.setMeasurementUnit(unit);
+            obs.setPhenomenonTime(start);
+            obs.setDuration(length);
+            obs.setValues(new String[] { Double.toString(min), Double.toString(max), Double.toString(sum / count), Integer.toString(count) });
+
+            count = 0;
+            closedUntil = end();
+            return obs;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.dispatch;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+
+/**
+ * Executes tasks asynchronously on a fixed set of single threaded stripes. Every task is
+ * submitted together with a key and all the tasks with the same key run on the same stripe, so
+ * they are executed one at a time in the order they were submitted. Tasks with different keys
+ * can run in parallel.
+ */
+public class StripedExecutor {
+
+    private final ExecutorService[] stripes;
+
+    /**
+     * Create a new executor with one stripe for each available processor (at least two).
+     *
+     * @param name The name used for the threads of the executor
+     */
+    public StripedExecutor(String name) {
+        this(name, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Create a new executor with the specified number of stripes.
+     *
+     * @param name The name used for the threads of the executor
+     * @param stripeCount The number of stripes
+     */
+    public StripedExecutor(final String name, int stripeCount) {
+        stripes = new ExecutorService[Math.max(1, stripeCount)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            final String threadName = name + " #" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, threadName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Execute a task on the stripe associated with the key.
+     *
+     * @param key The key that determines the stripe (e.g. the Device ID)
+     * @param task The task to execute
+     */
+    public void execute(String key, final Runnable task) {
+        try {
+            stripes[stripeOf(key)].execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Never let a failing task kill the stripe thread
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(PAAndroidConstants.PA_LOGTAG, "Dispatch task failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Executor shut down, task discarded");
+        }
+    }
+
+    /**
+     * Stop accepting new tasks and wait a bit for the pending ones to complete.
+     *
+     * @param timeout The maximum time to wait for each stripe, in milliseconds
+     */
+    public void shutdown(long timeout) {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+
+        for (ExecutorService stripe : stripes) {
+            try {
+                stripe.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compute the index of the stripe associated with a key.
+     *
+     * @param key The key
+     * @return The index of the stripe
+     */
+    private int stripeOf(String key) {
+        return key == null ? 0 : (key.hashCode() & 0x7fffffff) % stripes.length;
+    }
+}
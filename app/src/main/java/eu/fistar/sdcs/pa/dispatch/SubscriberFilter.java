@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.dispatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes which data a subscriber is interested in. Every criterion is a set of accepted
+ * values; a null criterion accepts everything. A subscriber receives an observation only if its
+ * device, the Device Adapter handling the device and its property are all accepted.
+ */
+public class SubscriberFilter {
+
+    // The filter used for subscribers that did not specify one
+    public static final SubscriberFilter ACCEPT_ALL = new SubscriberFilter(null, null, null);
+
+    private final Set<String> deviceIds;
+    private final Set<String> daIds;
+    private final Set<String> properties;
+
+    /**
+     * Create a new filter.
+     *
+     * @param deviceIds The accepted Device IDs, or null to accept every device
+     * @param daIds The accepted DA IDs, or null to accept every Device Adapter
+     * @param properties The accepted property names, or null to accept every property
+     */
+    public SubscriberFilter(Collection<String> deviceIds, Collection<String> daIds, Collection<String> properties) {
+        this.deviceIds = toSet(deviceIds);
+        this.daIds = toSet(daIds);
+        this.properties = toSet(properties);
+    }
+
+    /**
+     * Check whether the filter accepts a device.
+     *
+     * @param devId The Device ID
+     * @param daId The ID of the Device Adapter handling the device, if known
+     * @return True if the device is accepted, false otherwise
+     */
+    public boolean acceptsDevice(String devId, String daId) {
+        if (deviceIds != null && (devId == null || !deviceIds.contains(devId))) return false;
+        return daIds == null || (daId != null && daIds.contains(daId));
+    }
+
+    /**
+     * Check whether the filter accepts every property.
+     *
+     * @return True if no property filter is set, false otherwise
+     */
+    public boolean acceptsAllProperties() {
+        return properties == null;
+    }
+
+    /**
+     * Return the accepted property names.
+     *
+     * @return The accepted property names, or null if every property is accepted
+     */
+    public Set<String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Copy a collection into an unmodifiable set.
+     *
+     * @param values The collection to copy
+     * @return The set, or null if the collection is null
+     */
+    private static Set<String> toSet(Collection<String> values) {
+        return values != null ? Collections.unmodifiableSet(new HashSet<String>(values)) : null;
+    }
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.dispatch;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.IProtocolAdapterListener;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.PAAndroidConstants;
+import eu.fistar.sdcs.pa.data.TransactionSizeLimiter;
+
+/**
+ * Keeps track of all the applications that registered a listener with the Protocol Adapter and
+ * delivers data and events to them according to their filters. Every subscriber is linked to the
+ * death of the binder of its application, so subscribers whose process dies are removed
+ * automatically.
+ * <p>
+ * For every device, the subscribers interested in it are computed once and cached together with
+ * an index from property names to the subscribers that filter on them, so that filtering a batch
+ * costs a single lookup per observation and no subscriber ever receives data it does not want.
+ */
+public class SubscriberRegistry {
+
+    // Copy on write, so that dispatching never waits for a registration
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentMap<String, String> deviceOwners = new ConcurrentHashMap<>(); // <[Device ID], [DA ID]>
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>(); // <[Device ID], [Route]>
+    private final AtomicInteger version = new AtomicInteger();
+
+    /**
+     * A call to perform on the listener of a subscriber.
+     */
+    public interface Call {
+
+        /**
+         * Perform the call.
+         *
+         * @param listener The listener of the subscriber
+         * @throws RemoteException If the binder call fails
+         */
+        public void call(IProtocolAdapterListener listener) throws RemoteException;
+    }
+
+    /**
+     * Register a new subscriber interested in everything. If the application is already
+     * registered, its filter is kept.
+     *
+     * @param application The IBinder of the application listener
+     */
+    public synchronized void register(IBinder application) {
+        if (application == null || find(application) != null) return;
+
+        Subscriber sub = new Subscriber(IProtocolAdapterListener.Stub.asInterface(application));
+        try {
+            application.linkToDeath(sub, 0);
+        } catch (RemoteException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Application listener died before registering");
+            return;
+        }
+
+        subscribers.add(sub);
+        invalidateRoutes();
+        Log.i(PAAndroidConstants.PA_LOGTAG, "Application listener registered, " + subscribers.size() + " subscribers");
+    }
+
+    /**
+     * Remove a subscriber.
+     *
+     * @param application The IBinder of the application listener
+     */
+    public synchronized void remove(IBinder application) {
+        Subscriber sub = find(application);
+
+        if (sub != null) {
+            application.unlinkToDeath(sub, 0);
+            subscribers.remove(sub);
+            invalidateRoutes();
+        }
+    }
+
+    /**
+     * Set the filter of a subscriber.
+     *
+     * @param application The IBinder of the application listener
+     * @param filter The new filter, or null to receive everything
+     * @return True if the subscriber exists, false otherwise
+     */
+    public boolean setFilter(IBinder application, SubscriberFilter filter) {
+        Subscriber sub = find(application);
+
+        if (sub == null) return false;
+
+        sub.filter = filter != null ? filter : SubscriberFilter.ACCEPT_ALL;
+        invalidateRoutes();
+        return true;
+    }
+
+    /**
+     * Make a subscriber receive the aggregates over a time window in place of the raw
+     * observations.
+     *
+     * @param application The IBinder of the application listener
+     * @param window The length of the window in milliseconds, or 0 to receive the raw observations
+     * @return True if the subscriber exists, false otherwise
+     */
+    public boolean setAggregateWindow(IBinder application, long window) {
+        Subscriber sub = find(application);
+
+        if (sub == null) return false;
+
+        sub.aggregateWindow = Math.max(0L, window);
+        invalidateRoutes();
+        return true;
+    }
+
+    /**
+     * Check whether at least one subscriber receives aggregates.
+     *
+     * @return True if some subscriber receives aggregates, false otherwise
+     */
+    public boolean wantsAggregates() {
+        for (Subscriber sub : subscribers) {
+            if (sub.aggregateWindow > 0) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether there is at least one subscriber.
+     *
+     * @return True if there are no subscribers, false otherwise
+     */
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    /**
+     * Record the Device Adapter handling a device, used to apply the DA filters.
+     *
+     * @param devId The Device ID
+     * @param daId The DA ID
+     */
+    public void setDeviceOwner(String devId, String daId) {
+        if (devId == null || daId == null) return;
+
+        deviceOwners.put(devId, daId);
+        routes.remove(devId);
+    }
+
+    /**
+     * Forget a device that left the system.
+     *
+     * @param devId The Device ID
+     */
+    public void removeDevice(String devId) {
+        if (devId == null) return;
+
+        deviceOwners.remove(devId);
+        routes.remove(devId);
+    }
+
+    /**
+     * Perform a call on every subscriber interested in the device.
+     *
+     * @param devId The Device ID, or null to perform the call on every subscriber
+     * @param call The call to perform
+     */
+    public void dispatch(String devId, Call call) {
+        if (devId == null) {
+            for (Subscriber sub : subscribers) {
+                invoke(sub, call);
+            }
+            return;
+        }
+
+        Route route = getRoute(devId);
+        for (Subscriber sub : route.unfiltered) {
+            invoke(sub, call);
+        }
+        for (Subscriber sub : route.filtered) {
+            invoke(sub, call);
+        }
+        for (Subscriber sub : route.aggregated) {
+            invoke(sub, call);
+        }
+    }
+
+    /**
+     * Push a batch of observations to every subscriber interested in them. Subscribers without a
+     * property filter share the whole batch, the others receive only the observations they want.
+     *
+     * @param observations The observations to push
+     * @param devDesc The device whom the observations belong to
+     * @param limiter The limiter used to keep every transaction below the binder limit
+     * @return False if there are no subscribers or all the ones interested in the data are dead,
+     * true otherwise
+     */
+    public boolean pushData(List<Observation> observations, DeviceDescription devDesc, TransactionSizeLimiter limiter) {
+        if (subscribers.isEmpty()) return false;
+
+        Route route = getRoute(devDesc.getDeviceID());
+        boolean delivered = route.unfiltered.length == 0 && route.filtered.length == 0;
+
+        for (Subscriber sub : route.unfiltered) {
+            delivered |= push(sub, observations, devDesc, limiter);
+        }
+
+        if (route.filtered.length == 0) return delivered;
+
+        // Split the batch among the subscribers with a property filter, one lookup per observation
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<Observation>[] split = new List[route.filtered.length];
+        for (int i = 0; i < observations.size(); i++) {
+            Observation obs = observations.get(i);
+            int[] targets = route.propertyIndex.get(obs.getPropertyName());
+
+            if (targets == null) continue;
+
+            for (int t : targets) {
+                if (split[t] == null) split[t] = new ArrayList<Observation>();
+                split[t].add(obs);
+            }
+        }
+
+        for (int i = 0; i < split.length; i++) {
+            if (split[i] != null) {
+                delivered |= push(route.filtered[i], split[i], devDesc, limiter);
+            } else {
+                delivered = true;
+            }
+        }
+
+        return delivered;
+    }
+
+    /**
+     * Push the aggregates over a time window to the subscribers that asked for them and are
+     * interested in the device and its properties.
+     *
+     * @param window The length of the window, in milliseconds
+     * @param aggregates The aggregates to push
+     * @param devDesc The device whom the aggregates belong to
+     * @param limiter The limiter used to keep every transaction below the binder limit
+     */
+    public void pushAggregates(long window, List<Observation> aggregates, DeviceDescription devDesc, TransactionSizeLimiter limiter) {
+        Route route = getRoute(devDesc.getDeviceID());
+
+        for (Subscriber sub : route.aggregated) {
+            SubscriberFilter filter = sub.filter;
+            if (sub.aggregateWindow != window) continue;
+
+            if (filter.acceptsAllProperties()) {
+                push(sub, aggregates, devDesc, limiter);
+                continue;
+            }
+
+            List<Observation> wanted = new ArrayList<Observation>();
+            for (Observation obs : aggregates) {
+                if (filter.getProperties().contains(obs.getPropertyName())) wanted.add(obs);
+            }
+            if (!wanted.isEmpty()) push(sub, wanted, devDesc, limiter);
+        }
+    }
+
+    /**
+     * Push some observations to a single subscriber.
+     *
+     * @param sub The subscriber
+     * @param observations The observations to push
+     * @param devDesc The device whom the observations belong to
+     * @param limiter The limiter used to keep every transaction below the binder limit
+     * @return False if the subscriber is dead, true otherwise
+     */
+    private boolean push(Subscriber sub, List<Observation> observations, DeviceDescription devDesc, TransactionSizeLimiter limiter) {
+        try {
+            limiter.send(observations, devDesc, sub.sender);
+        } catch (DeadObjectException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Application listener is dead, removing it");
+            remove(sub.listener.asBinder());
+            return false;
+        } catch (RemoteException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to push data with application!");
+        }
+
+        return true;
+    }
+
+    /**
+     * Perform a call on a single subscriber.
+     *
+     * @param sub The subscriber
+     * @param call The call to perform
+     */
+    private void invoke(Subscriber sub, Call call) {
+        try {
+            call.call(sub.listener);
+        } catch (DeadObjectException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Application listener is dead, removing it");
+            remove(sub.listener.asBinder());
+        } catch (RemoteException e) {
+            Log.d(PAAndroidConstants.PA_LOGTAG, "Failed to contact application listener!");
+        }
+    }
+
+    /**
+     * Find the subscriber associated with a binder.
+     *
+     * @param application The IBinder of the application listener
+     * @return The subscriber, or null if it is not registered
+     */
+    private Subscriber find(IBinder application) {
+        if (application == null) return null;
+
+        for (Subscriber sub : subscribers) {
+            if (sub.listener.asBinder() == application) return sub;
+        }
+
+        return null;
+    }
+
+    /**
+     * Discard every cached route, after subscribers or filters changed.
+     */
+    private void invalidateRoutes() {
+        version.incrementAndGet();
+        routes.clear();
+    }
+
+    /**
+     * Retrieve the route of a device, computing it if needed.
+     *
+     * @param devId The Device ID
+     * @return The route of the device
+     */
+    private Route getRoute(String devId) {
+        Route route = routes.get(devId);
+        int currentVersion = version.get();
+
+        if (route == null || route.version != currentVersion) {
+            route = new Route(devId, deviceOwners.get(devId), currentVersion);
+            routes.put(devId, route);
+        }
+
+        return route;
+    }
+
+    /**
+     * The subscribers interested in a single device, with the index of their property filters
+     */
+    private class Route {
+        private final int version;
+        private final Subscriber[] unfiltered;
+        private final Subscriber[] filtered;
+        private final Subscriber[] aggregated;
+        private final Map<String, int[]> propertyIndex = new HashMap<String, int[]>(); // <[Property], [Indexes in filtered]>
+
+        private Route(String devId, String daId, int version) {
+            this.version = version;
+
+            List<Subscriber> all = new ArrayList<Subscriber>();
+            List<Subscriber> withProperties = new ArrayList<Subscriber>();
+            List<Subscriber> withAggregates = new ArrayList<Subscriber>();
+
+            for (Subscriber sub : subscribers) {
+                SubscriberFilter filter = sub.filter;
+                if (!filter.acceptsDevice(devId, daId)) continue;
+
+                if (sub.aggregateWindow > 0) {
+                    withAggregates.add(sub);
+                } else if (filter.acceptsAllProperties()) {
+                    all.add(sub);
+                } else {
+                    withProperties.add(sub);
+                }
+            }
+
+            unfiltered = all.toArray(new Subscriber[all.size()]);
+            filtered = withProperties.toArray(new Subscriber[withProperties.size()]);
+            aggregated = withAggregates.toArray(new Subscriber[withAggregates.size()]);
+
+            // Build the index from every property to the subscribers that want it
+            for (int i = 0; i < filtered.length; i++) {
+                for (String property : filtered[i].filter.getProperties()) {
+                    int[] old = propertyIndex.get(property);
+                    int[] targets;
+                    if (old == null) {
+                        targets = new int[] { i };
+                    } else {
+                        targets = new int[old.length + 1];
+                        System.arraycopy(old, 0, targets, 0, old.length);
+                        targets[old.length] = i;
+                    }
+                    propertyIndex.put(property, targets);
+                }
+            }
+        }
+    }
+
+    /**
+     * A registered application
+     */
+    private class Subscriber implements IBinder.DeathRecipient {
+        private final IProtocolAdapterListener listener;
+        private volatile SubscriberFilter filter = SubscriberFilter.ACCEPT_ALL;
+        private volatile long aggregateWindow = 0L;
+
+        private final TransactionSizeLimiter.Sender sender = new TransactionSizeLimiter.Sender() {
+            @Override
+            public void send(List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+                listener.pushData(observations, devDesc);
+            }
+        };
+
+        private Subscriber(IProtocolAdapterListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void binderDied() {
+            Log.i(PAAndroidConstants.PA_LOGTAG, "Application listener died, removing it");
+            remove(listener.asBinder());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommandExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger hungCalls = new AtomicInteger();
+    private final AtomicInteger hungRunning = new AtomicInteger();
+    private final AtomicInteger hungOverlaps = new AtomicInteger();
+    private final Map<String, CommandExecutor.Status> results = new ConcurrentHashMap<String, CommandExecutor.Status>(); // <[Command ID], [Outcome]>
+    private CommandExecutor executor;
+
+    // Answers immediately, except the device "hung" which blocks until released
+    private final CommandExecutor.Target target = new CommandExecutor.Target() {
+        @Override
+        public void execute(String devId, String command, String parameter) {
+            if (!"hung".equals(devId)) return;
+
+            hungCalls.incrementAndGet();
+            if (hungRunning.incrementAndGet() > 1) hungOverlaps.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // A binder call would not notice the interruption either
+            } finally {
+                hungRunning.decrementAndGet();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        executor = new CommandExecutor(target, new CommandExecutor.Listener() {
+            @Override
+            public void onCommandResult(String commandId, String devId, String command, CommandExecutor.Status status, String detail) {
+                results.put(commandId, status);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void aHungDeviceDoesNotStarveTheOthers() {
+        for (int round = 0; round < 5; round++) {
+            List<CommandRequest> requests = new ArrayList<CommandRequest>();
+            requests.add(new CommandRequest("hung", "start", null));
+            for (int i = 0; i < 20; i++) {
+                requests.add(new CommandRequest("dev" + i, "start", null));
+            }
+
+            List<CommandExecutor.Outcome> outcomes = executor.executeAll(requests, 100L);
+
+            CommandExecutor.Status expected = round == 0 ? CommandExecutor.Status.TIMEOUT : CommandExecutor.Status.FAILED;
+            assertEquals(expected, outcomes.get(0).getStatus());
+            for (int i = 1; i < outcomes.size(); i++) {
+                assertEquals(CommandExecutor.Status.COMPLETED, outcomes.get(i).getStatus());
+            }
+        }
+
+        assertEquals(1, hungCalls.get());
+    }
+
+    @Test
+    public void aStuckDeviceGetsNoNewCallUntilItAnswers() throws InterruptedException {
+        String first = executor.submit("hung", "start", null, 100L);
+        String second = executor.submit("hung", "stop", null, 100L);
+
+        // The first times out, the second is failed without calling the device
+        waitFor(first, second);
+        assertEquals(CommandExecutor.Status.TIMEOUT, results.get(first));
+        assertEquals(CommandExecutor.Status.FAILED, results.get(second));
+        assertEquals(1, hungCalls.get());
+
+        try {
+            executor.submit("hung", "stop", null, 100L);
+            fail("A device still answering a previous command must reject new ones");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Once the call returns, the device accepts commands again
+        release.countDown();
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        String third = null;
+        while (third == null && System.currentTimeMillis() < end) {
+            try {
+                third = executor.submit("hung", "stop", null, 100L);
+            } catch (IllegalStateException e) {
+                Thread.sleep(10L);
+            }
+        }
+        assertTrue(third != null);
+        waitFor(third);
+        assertEquals(CommandExecutor.Status.COMPLETED, results.get(third));
+        assertEquals(2, hungCalls.get());
+        assertEquals(0, hungOverlaps.get());
+    }
+
+    private void waitFor(String... commandIds) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        for (String commandId : commandIds) {
+            while (!results.containsKey(commandId) && System.currentTimeMillis() < end) {
+                Thread.sleep(10L);
+            }
+        }
+    }
+}
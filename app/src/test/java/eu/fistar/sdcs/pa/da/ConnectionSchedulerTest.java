@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, ConnectionScheduler.Status> progress = new ConcurrentHashMap<String, ConnectionScheduler.Status>(); // <[Device ID], [Outcome]>
+    private final AtomicInteger hungCalls = new AtomicInteger();
+    private final AtomicInteger maxHungCalls = new AtomicInteger();
+    private ConnectionScheduler scheduler;
+
+    // Accepts every request immediately, except the DA "hung" which blocks until released
+    private final ConnectionScheduler.Target target = new ConnectionScheduler.Target() {
+        @Override
+        public void execute(String daId, String devId, ConnectionScheduler.Action action) {
+            calls.add(daId + " " + devId + " " + action);
+            if (!"hung".equals(daId)) return;
+
+            int running = hungCalls.incrementAndGet();
+            synchronized (maxHungCalls) {
+                maxHungCalls.set(Math.max(maxHungCalls.get(), running));
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // A binder call would not notice the interruption either
+            } finally {
+                hungCalls.decrementAndGet();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        scheduler = new ConnectionScheduler(target, new ConnectionScheduler.Listener() {
+            @Override
+            public void onProgress(String requestId, String devId, ConnectionScheduler.Status status, String detail, int done, int total) {
+                progress.put(devId, status);
+            }
+
+            @Override
+            public void onAttempt(String devId, String daId, ConnectionScheduler.Action action, ConnectionScheduler.Status status, long duration) {
+                attempts.add(daId + " " + status);
+            }
+        });
+        scheduler.setTimeout(100L);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void aTimedOutDeviceAdapterIsCancelledAndNotCredited() throws InterruptedException {
+        scheduler.submit(Arrays.asList(new ConnectionScheduler.Request("dev", Arrays.asList("da1", "da2"), ConnectionScheduler.Action.CONNECT)), 0);
+
+        // da1 does not register the device in time: it is asked to disconnect it and da2 is tried
+        assertTrue(waitForCall("da2 dev CONNECT"));
+        assertTrue(waitForCall("da1 dev DISCONNECT"));
+
+        // A late registration by da1 does not complete the attempt of da2
+        scheduler.onConnected("dev", "da1");
+        assertFalse(progress.containsKey("dev"));
+
+        scheduler.onConnected("dev", "da2");
+        assertEquals(ConnectionScheduler.Status.CONNECTED, progress.get("dev"));
+        assertEquals(Arrays.asList("da1 TIMEOUT", "da2 CONNECTED"), attempts);
+    }
+
+    @Test
+    public void aHungDeviceAdapterDoesNotStarveTheOthers() throws InterruptedException {
+        scheduler.setMaxPerDa(2);
+
+        List<ConnectionScheduler.Request> requests = new ArrayList<ConnectionScheduler.Request>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new ConnectionScheduler.Request("hung" + i, "hung", ConnectionScheduler.Action.CONNECT));
+        }
+        scheduler.submit(requests, 0);
+
+        // The first attempts time out, the ones waiting behind them fail without a call
+        Thread.sleep(400L);
+        assertEquals(ConnectionScheduler.Status.TIMEOUT, progress.get("hung0"));
+        assertEquals(ConnectionScheduler.Status.FAILED, progress.get("hung9"));
+
+        scheduler.submit(Arrays.asList(new ConnectionScheduler.Request("dev", "da1", ConnectionScheduler.Action.CONNECT)), 0);
+        assertTrue(waitForCall("da1 dev CONNECT"));
+
+        // The stuck calls keep their slots, so the hung DA never gets more calls than slots
+        assertEquals(2, maxHungCalls.get());
+    }
+
+    @Test
+    public void aStuckDeviceAdapterHandsItsRequestsToTheNextOne() throws InterruptedException {
+        scheduler.setMaxPerDa(1);
+        scheduler.submit(Arrays.asList(new ConnectionScheduler.Request("dev1", "hung", ConnectionScheduler.Action.CONNECT)), 0);
+        scheduler.submit(Arrays.asList(new ConnectionScheduler.Request("dev2", Arrays.asList("hung", "da1"), ConnectionScheduler.Action.CONNECT)), 0);
+
+        // dev2 does not wait for the call of dev1 to return
+        assertTrue(waitForCall("da1 dev2 CONNECT"));
+        assertFalse(calls.contains("hung dev2 CONNECT"));
+
+        scheduler.onConnected("dev2", "da1");
+        assertEquals(ConnectionScheduler.Status.CONNECTED, progress.get("dev2"));
+    }
+
+    private boolean waitForCall(String call) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!calls.contains(call) && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+        return calls.contains(call);
+    }
+}
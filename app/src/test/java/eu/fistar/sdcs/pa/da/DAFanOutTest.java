@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.da;
+
+import android.os.RemoteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import eu.fistar.sdcs.pa.common.da.IDeviceAdapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DAFanOutTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Map<String, IDeviceAdapter> das = new HashMap<String, IDeviceAdapter>();
+    private DAFanOut fanOut;
+
+    // Answers immediately, except the DA "hung" which blocks until released
+    private final DAFanOut.Call<String> call = new DAFanOut.Call<String>() {
+        @Override
+        public String call(String daId, IDeviceAdapter da) throws RemoteException {
+            if ("hung".equals(daId)) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // A binder call would not notice the interruption either
+                }
+            }
+            return daId;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        fanOut = new DAFanOut("test fan-out");
+        fanOut.setDeadline(100L);
+
+        for (String daId : Arrays.asList("hung", "da1", "da2", "da3")) {
+            das.put(daId, deviceAdapter());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        fanOut.shutdown();
+    }
+
+    @Test
+    public void aHungDeviceAdapterDoesNotStarveTheOthers() {
+        for (int i = 0; i < 50; i++) {
+            DAFanOut.Result<String> result = fanOut.invoke(das.keySet(), das, call);
+
+            assertEquals(3, result.getResults().size());
+            assertEquals(Arrays.asList("hung"), result.getTimedOut());
+        }
+    }
+
+    @Test
+    public void aHungDeviceAdapterIsSkippedUntilItAnswers() throws InterruptedException {
+        fanOut.invoke(das.keySet(), das, call);
+        assertTrue(fanOut.isStuck("hung"));
+
+        // Skipped without waiting for the deadline
+        long start = System.currentTimeMillis();
+        DAFanOut.Result<String> result = fanOut.invoke(Arrays.asList("hung"), das, call);
+        assertTrue(System.currentTimeMillis() - start < 100L);
+        assertEquals(Arrays.asList("hung"), result.getTimedOut());
+
+        // Called again once it answers
+        release.countDown();
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (fanOut.isStuck("hung") && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+        assertFalse(fanOut.isStuck("hung"));
+        assertEquals("hung", fanOut.invoke(Arrays.asList("hung"), das, call).getResults().get("hung"));
+    }
+
+    @Test
+    public void reportsTheFailedCalls() {
+        DAFanOut.Result<String> result = fanOut.invoke(Arrays.asList("da1", "da2"), das, new DAFanOut.Call<String>() {
+            @Override
+            public String call(String daId, IDeviceAdapter da) throws RemoteException {
+                if ("da2".equals(daId)) throw new RemoteException();
+                return daId;
+            }
+        });
+
+        assertEquals(1, result.getResults().size());
+        assertTrue(result.getFailed().get("da2") instanceof RemoteException);
+        assertFalse(result.isComplete());
+    }
+
+    private static IDeviceAdapter deviceAdapter() {
+        return (IDeviceAdapter) Proxy.newProxyInstance(IDeviceAdapter.class.getClassLoader(), new Class<?>[] { IDeviceAdapter.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class DASelectorTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+    private static final String SAME_TYPE = "00:11:22:66:77:88";
+    private static final long START = 1400000000000L;
+
+    private final DASelector selector = new DASelector();
+
+    @Test
+    public void theDeviceTypeIsTheManufacturerPrefix() {
+        assertEquals("AA:BB:CC", DASelector.deviceTypeOf("aa:bb:cc:dd:ee:ff"));
+        assertEquals("sensor-1", DASelector.deviceTypeOf("sensor-1"));
+    }
+
+    @Test
+    public void prefersTheDeviceAdapterThatConnectsTheSameType() {
+        for (int i = 0; i < 5; i++) {
+            selector.recordConnection(DEVICE, "da1", false, 1000L);
+            selector.recordConnection(DEVICE, "da2", true, 1000L);
+        }
+
+        assertEquals(Arrays.asList("da2", "da1"), selector.rank(SAME_TYPE, Arrays.asList("da1", "da2")));
+    }
+
+    @Test
+    public void triesAnUnknownDeviceAdapterBeforeOneThatFails() {
+        for (int i = 0; i < 5; i++) {
+            selector.recordConnection(DEVICE, "da1", false, 1000L);
+        }
+
+        assertEquals(Arrays.asList("da2", "da1"), selector.rank(DEVICE, Arrays.asList("da1", "da2")));
+    }
+
+    @Test
+    public void theClockOfTheDeviceDoesNotCountAsLatency() {
+        selector.recordConnection(DEVICE, "da1", true, 1000L);
+        selector.recordConnection(DEVICE, "da2", true, 1000L);
+
+        // The clock of the first device is an hour behind, but da1 delivers steadily; da2 gets slower and slower
+        long hour = 3600000L;
+        for (int i = 0; i < 20; i++) {
+            long measured = START + i * 1000L;
+            selector.recordArrival(DEVICE, "da1", measured - hour, measured + 50L);
+            selector.recordArrival(SAME_TYPE, "da2", measured, measured + 50L + i * 2000L);
+        }
+
+        assertEquals(Arrays.asList("da1", "da2"), selector.rank(DEVICE, Arrays.asList("da2", "da1")));
+    }
+
+    @Test
+    public void ignoresObservationsWithoutMeasurementTime() {
+        selector.recordConnection(DEVICE, "da1", true, 1000L);
+        selector.recordConnection(DEVICE, "da2", true, 1000L);
+
+        // Without a measurement time the delay would look huge after a real one
+        selector.recordArrival(DEVICE, "da1", START, START + 50L);
+        selector.recordArrival(DEVICE, "da1", 0L, START + 1050L);
+        selector.recordArrival(SAME_TYPE, "da2", START, START + 50L);
+        selector.recordArrival(SAME_TYPE, "da2", START + 1000L, START + 1050L);
+
+        // Same latency: the given order is kept
+        assertEquals(Arrays.asList("da1", "da2"), selector.rank(DEVICE, Arrays.asList("da1", "da2")));
+    }
+
+    @Test
+    public void forgetsARemovedDeviceAdapter() {
+        for (int i = 0; i < 5; i++) {
+            selector.recordConnection(DEVICE, "da1", false, 1000L);
+        }
+        selector.removeDa("da1");
+
+        // Both unknown again: the given order is kept
+        assertEquals(Arrays.asList("da1", "da2"), selector.rank(DEVICE, Arrays.asList("da1", "da2")));
+    }
+}
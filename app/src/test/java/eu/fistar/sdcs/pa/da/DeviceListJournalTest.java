@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceListJournalTest {
+
+    private File dir;
+    private DeviceListJournal journal;
+    private final List<String> white = new ArrayList<String>();
+    private final List<String> black = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("lists", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+
+        journal = new DeviceListJournal(dir);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void openingDoesNotCreateTheJournal() {
+        assertFalse(journal.open(white, black));
+        journal.close();
+
+        // A crash before the initial content was written is noticed by the next start
+        assertFalse(new File(dir, DeviceListJournal.FILENAME).exists());
+        assertFalse(new DeviceListJournal(dir).open(white, black));
+    }
+
+    @Test
+    public void restoresTheInitialContentAndTheChanges() {
+        assertFalse(journal.open(white, black));
+        assertTrue(journal.compact(Arrays.asList("dev1", "dev2"), Arrays.asList("dev3")));
+
+        DeviceList list = new DeviceList();
+        list.load(Arrays.asList("dev1", "dev2"));
+        list.remove("dev1");
+        list.add("00:1A:7D:*");
+        journal.append(list.drainDelta(), null);
+        journal.close();
+
+        assertTrue(journal.open(white, black));
+        assertEquals(Arrays.asList("dev2", "00:1A:7D:*"), white);
+        assertEquals(Arrays.asList("dev3"), black);
+    }
+
+    @Test
+    public void discardsAnIncompleteRecord() throws IOException {
+        journal.open(white, black);
+        journal.compact(Arrays.asList("dev1"), Collections.<String>emptyList());
+        journal.close();
+
+        // An operation byte without its Device ID, as left by a crash
+        FileOutputStream out = new FileOutputStream(new File(dir, DeviceListJournal.FILENAME), true);
+        out.write(1);
+        out.close();
+
+        assertTrue(journal.open(white, black));
+        assertEquals(Arrays.asList("dev1"), white);
+    }
+
+    @Test
+    public void aFailedCompactionKeepsTheJournal() {
+        journal.open(white, black);
+        journal.compact(Arrays.asList("dev1"), Collections.<String>emptyList());
+
+        // The temporary file cannot be created where a directory is in the way
+        assertTrue(new File(dir, DeviceListJournal.FILENAME + ".tmp").mkdir());
+        assertFalse(journal.compact(Arrays.asList("dev2"), Collections.<String>emptyList()));
+        journal.close();
+
+        assertTrue(journal.open(white, black));
+        assertEquals(Arrays.asList("dev1"), white);
+    }
+}
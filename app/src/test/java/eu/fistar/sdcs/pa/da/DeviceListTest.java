@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceListTest {
+
+    private final DeviceList list = new DeviceList();
+
+    @Test
+    public void matchesExactEntriesLikeThePatterns() {
+        list.add("aa-bb-cc-dd-ee-ff");
+        list.add("00:1a:7d:*");
+
+        assertTrue(list.contains("AA:BB:CC:DD:EE:FF"));
+        assertTrue(list.contains("00:1A:7D:11:22:33"));
+        assertFalse(list.matchesPattern("AA:BB:CC:DD:EE:FF"));
+        assertTrue(list.matchesPattern("00-1A-7D-11-22-33"));
+
+        // The same device written differently is not added twice
+        assertFalse(list.add("AA:BB:CC:DD:EE:FF"));
+        assertEquals(2, list.size());
+    }
+
+    @Test
+    public void removesTheEntryInTheFormItWasAdded() {
+        list.load(Collections.singletonList("aa:bb:cc:dd:ee:ff"));
+
+        assertTrue(list.remove("AA:BB:CC:DD:EE:FF"));
+        assertFalse(list.contains("aa:bb:cc:dd:ee:ff"));
+
+        // The Device Adapters are asked to remove the ID they received
+        DeviceList.Delta delta = list.drainDelta();
+        assertEquals(Collections.singletonList("aa:bb:cc:dd:ee:ff"), delta.getRemoved());
+        assertTrue(delta.getAdded().isEmpty());
+    }
+
+    @Test
+    public void recordsOnlyTheNetChanges() {
+        list.load(Arrays.asList("dev1", "dev2"));
+        assertNull(list.drainDelta());
+
+        list.add("dev3");
+        list.remove("dev3");
+        list.remove("dev1");
+        list.add("dev1");
+        assertNull(list.drainDelta());
+
+        assertTrue(list.replace(Arrays.asList("DEV2", "dev4")));
+        DeviceList.Delta delta = list.drainDelta();
+        assertEquals(Collections.singletonList("dev4"), delta.getAdded());
+        assertEquals(Collections.singletonList("dev1"), delta.getRemoved());
+    }
+
+    @Test
+    public void removingAPatternStopsMatching() {
+        list.add("00:1A:7D:*");
+        assertTrue(list.hasPatterns());
+
+        list.remove("00:1a:7d:*");
+        assertFalse(list.hasPatterns());
+        assertFalse(list.contains("00:1A:7D:11:22:33"));
+    }
+
+    @Test
+    public void replacingThePatternsUpdatesTheMatches() {
+        list.replace(Arrays.asList("00:1A:7D:*", "AA:BB:*", "dev1"));
+        assertTrue(list.contains("aa-bb-cc-dd-ee-ff"));
+
+        assertTrue(list.replace(Arrays.asList("00:1a:7d:*", "11:22:*")));
+        assertTrue(list.contains("00:1A:7D:11:22:33"));
+        assertTrue(list.contains("11:22:33:44:55:66"));
+        assertFalse(list.contains("AA:BB:CC:DD:EE:FF"));
+        assertFalse(list.contains("dev1"));
+
+        assertTrue(list.replace(Collections.<String>emptyList()));
+        assertFalse(list.hasPatterns());
+        assertFalse(list.contains("11:22:33:44:55:66"));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+
+package eu.fistar.sdcs.pa.da;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DevicePatternTrieTest {
+
+    @Test
+    public void matchesTheDevicesStartingWithAPattern() {
+        DevicePatternTrie trie = new DevicePatternTrie(Arrays.asList("00:1A:7D:*", "AA:BB:*"));
+
+        assertTrue(trie.matches("00:1A:7D:11:22:33"));
+        assertTrue(trie.matches("AA:BB:CC:DD:EE:FF"));
+        assertFalse(trie.matches("00:1A:7E:11:22:33"));
+        assertFalse(trie.matches("00:1A"));
+    }
+
+    @Test
+    public void ignoresCaseAndSeparators() {
+        DevicePatternTrie trie = new DevicePatternTrie(Collections.singletonList("aa-bb-*"));
+
+        assertTrue(trie.matches("AA:BB:CC:DD:EE:FF"));
+        assertTrue(trie.matches("aa-bb-cc-dd-ee-ff"));
+        assertEquals("AA:BB:CC", DevicePatternTrie.normalize("aa-bb-Cc"));
+        assertTrue(DevicePatternTrie.isNormalized("AA:BB:CC"));
+        assertFalse(DevicePatternTrie.isNormalized("AA-BB:CC"));
+        assertFalse(DevicePatternTrie.isNormalized("AA:bB:CC"));
+    }
+
+    @Test
+    public void ignoresTheEntriesThatAreNotPatterns() {
+        DevicePatternTrie trie = new DevicePatternTrie(Arrays.asList("00:1A:7D:11:22:33", null));
+
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.matches("00:1A:7D:11:22:33"));
+    }
+
+    @Test
+    public void theWildcardAloneMatchesEverything() {
+        DevicePatternTrie trie = new DevicePatternTrie(Collections.singletonList(DevicePatternTrie.WILDCARD));
+
+        assertTrue(trie.matches("00:1A:7D:11:22:33"));
+        assertTrue(trie.matches(""));
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+import eu.fistar.sdcs.pa.dispatch.StripedExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ObservationBatcherTest {
+
+    private final DeviceDescription device = new DeviceDescription("dev", "serial", "model", "manufacturer", Collections.<SensorDescription>emptyList(), "dev");
+    private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<List<String>>(); // Values of every batch delivered
+    private final CountDownLatch delivering = new CountDownLatch(1);
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private StripedExecutor executor;
+    private ObservationBatcher batcher;
+
+    // Records the values of every batch, since the list is reused once onFlush() returns, then
+    // blocks until released like a slow application
+    private final ObservationBatcher.FlushListener listener = new ObservationBatcher.FlushListener() {
+        @Override
+        public void onFlush(List<Observation> observations, DeviceDescription devDesc) {
+            List<String> values = new ArrayList<String>();
+            for (Observation obs : observations) {
+                values.add(obs.getValues().get(0));
+            }
+            batches.add(values);
+
+            delivering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        executor = new StripedExecutor("test", 2);
+        batcher = new ObservationBatcher(listener, executor);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        batcher.close();
+        executor.shutdown(1000L);
+    }
+
+    @Test
+    public void flushesAFullBatchRightAway() throws InterruptedException {
+        batcher.setMaxBatchSize(3);
+        batcher.setMaxBatchDelay(60000L);
+
+        batcher.add(observations("1", "2"), device);
+        assertNull(batches.poll(100L, TimeUnit.MILLISECONDS));
+
+        batcher.add(observations("3", "4"), device);
+        assertEquals(Arrays.asList("1", "2", "3"), batches.poll(5L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushesAnIncompleteBatchAfterTheMaximumDelay() throws InterruptedException {
+        batcher.setMaxBatchSize(100);
+        batcher.setMaxBatchDelay(200L);
+
+        long start = System.nanoTime();
+        batcher.add(observations("1", "2"), device);
+        batcher.add(observations("3"), device);
+
+        assertEquals(Arrays.asList("1", "2", "3"), batches.poll(5L, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200L));
+    }
+
+    @Test
+    public void theTimerOfADeliveredBatchDoesNotCutTheNextOne() throws InterruptedException {
+        batcher.setMaxBatchSize(2);
+        batcher.setMaxBatchDelay(300L);
+
+        // The first batch is delivered because it is full, its timer is still pending
+        batcher.add(observations("1", "2"), device);
+        assertEquals(Arrays.asList("1", "2"), batches.poll(5L, TimeUnit.SECONDS));
+
+        // The next batch waits for its own delay
+        Thread.sleep(150L);
+        long start = System.nanoTime();
+        batcher.add(observations("3"), device);
+        assertEquals(Collections.singletonList("3"), batches.poll(5L, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250L));
+    }
+
+    @Test
+    public void deliversTheEventsInOrderWithTheData() throws InterruptedException {
+        batcher.setMaxBatchSize(100);
+        batcher.setMaxBatchDelay(60000L);
+
+        batcher.add(observations("1", "2"), device);
+        batcher.addEvent("dev", new Runnable() {
+            @Override
+            public void run() {
+                batches.add(Collections.singletonList("event"));
+            }
+        });
+        batcher.add(observations("3"), device);
+        batcher.flush("dev");
+
+        assertEquals(Arrays.asList("1", "2"), batches.poll(5L, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("event"), batches.poll(5L, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("3"), batches.poll(5L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dropsTheOldestObservation() throws InterruptedException {
+        fillQueue(OverflowPolicy.DROP_OLDEST);
+        batcher.add(observations("4"), device);
+
+        assertDelivered("0", "2", "3", "4");
+        assertEquals(1L, batcher.getDroppedCount(OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void dropsTheNewestObservation() throws InterruptedException {
+        fillQueue(OverflowPolicy.DROP_NEWEST);
+        batcher.add(observations("4"), device);
+
+        assertDelivered("0", "1", "2", "3");
+        assertEquals(1L, batcher.getDroppedCount(OverflowPolicy.DROP_NEWEST));
+        assertEquals(0L, batcher.getDroppedCount(OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void dropsTheOldestValueOfTheSameProperty() throws InterruptedException {
+        fillQueue(OverflowPolicy.KEEP_LATEST);
+
+        // No humidity is queued, so the oldest temperature makes room for the first one; the next
+        // temperature then replaces the oldest temperature, not the humidity
+        List<Observation> humidity = observations("5");
+        humidity.get(0).setProperty("humidity");
+        batcher.add(humidity, device);
+        batcher.add(observations("4"), device);
+
+        assertDelivered("0", "3", "5", "4");
+        assertEquals(2L, batcher.getDroppedCount(OverflowPolicy.KEEP_LATEST));
+    }
+
+    @Test
+    public void blocksTheDeviceAdapterUntilThereIsRoom() throws InterruptedException {
+        batcher.setMaxBlockTime(5000L);
+        fillQueue(OverflowPolicy.BLOCK);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                release.countDown();
+            }
+        }).start();
+
+        long start = System.nanoTime();
+        batcher.add(observations("4"), device);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150L));
+
+        assertDelivered("0", "1", "2", "3", "4");
+        assertEquals(1L, batcher.getBlockedCount());
+        assertEquals(0L, batcher.getDroppedCount(OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void dropsTheObservationAfterBlockingTooLong() throws InterruptedException {
+        batcher.setMaxBlockTime(200L);
+        fillQueue(OverflowPolicy.BLOCK);
+
+        long start = System.nanoTime();
+        batcher.add(observations("4"), device);
+        long blocked = System.nanoTime() - start;
+        assertTrue(blocked >= TimeUnit.MILLISECONDS.toNanos(200L));
+        assertTrue(blocked < TimeUnit.SECONDS.toNanos(5L));
+
+        release.countDown();
+        assertDelivered("0", "1", "2", "3");
+        assertEquals(1L, batcher.getDroppedCount(OverflowPolicy.BLOCK));
+    }
+
+    /**
+     * Make the application hold the observation "0" while "1", "2" and "3" fill the queue.
+     *
+     * @param policy The overflow policy to apply
+     */
+    private void fillQueue(OverflowPolicy policy) throws InterruptedException {
+        batcher.setOverflowPolicy(policy);
+        batcher.setQueueCapacity(3);
+        batcher.setMaxBatchSize(1);
+        release = new CountDownLatch(1);
+
+        batcher.add(observations("0"), device);
+        assertTrue(delivering.await(5L, TimeUnit.SECONDS));
+        batcher.add(observations("1", "2", "3"), device);
+    }
+
+    /**
+     * Let the application go and check the values it receives, one per batch.
+     *
+     * @param values The expected values
+     */
+    private void assertDelivered(String... values) throws InterruptedException {
+        release.countDown();
+
+        for (String value : values) {
+            assertEquals(Collections.singletonList(value), batches.poll(5L, TimeUnit.SECONDS));
+        }
+        assertNull(batches.poll(100L, TimeUnit.MILLISECONDS));
+    }
+
+    private static List<Observation> observations(String... values) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (String value : values) {
+            Observation obs = new Observation();
+            obs.setProperty("temp");
+            obs.setValues(new String[] { value });
+            observations.add(obs);
+        }
+        return observations;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.Observation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObservationHistoryTest {
+
+    @Test
+    public void givesBackTheValuesAsRecorded() {
+        ObservationHistory history = new ObservationHistory(16);
+        String[] values = { "1.10", "42", "1e3", "-0", "0.1", "3.0", "NaN", "on", "007" };
+
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < values.length; i++) {
+            observations.add(observation("temp", 100L + i, "C", values[i]));
+        }
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", "temp", 0L);
+        assertEquals(values.length, result.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], result.get(i).getValues().get(0));
+        }
+    }
+
+    @Test
+    public void givesBackNumbersCloseToTheFormattingLimits() {
+        ObservationHistory history = new ObservationHistory(32);
+        String[] values = { "36.50", "1.0", "36.5", "-0.5", "+1", "0.001", "0.0001", "1234567.5", "12345678.5",
+                "999999999999999", "1000000000000000", "0.30000000000000004", "1.", ".5", "-", "" };
+
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < values.length; i++) {
+            observations.add(observation("temp", 100L + i, "C", values[i]));
+        }
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", "temp", 0L);
+        assertEquals(values.length, result.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], result.get(i).getValues().get(0));
+        }
+    }
+
+    @Test
+    public void keepsTheUnitOfEveryObservation() {
+        ObservationHistory history = new ObservationHistory(16);
+
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(observation("temp", 100L, "C", "20"));
+        observations.add(observation("temp", 200L, "F", "68"));
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", "temp", 0L);
+        assertEquals("C", result.get(0).getMeasurementUnit());
+        assertEquals("F", result.get(1).getMeasurementUnit());
+    }
+
+    @Test
+    public void keepsValuesWithSeveralElements() {
+        ObservationHistory history = new ObservationHistory(16);
+
+        Observation obs = new Observation();
+        obs.setProperty("pressure");
+        obs.setPhenomenonTime(100L);
+        obs.setValues(new String[] { "120", "80" });
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(obs);
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", "pressure", 0L);
+        assertEquals(2, result.get(0).getValues().size());
+        assertEquals("80", result.get(0).getValues().get(1));
+    }
+
+    @Test
+    public void returnsTheObservationsSinceATimestamp() {
+        ObservationHistory history = new ObservationHistory(16);
+
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 1; i <= 5; i++) {
+            observations.add(observation("temp", i * 100L, "C", String.valueOf(i)));
+        }
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", "temp", 300L);
+        assertEquals(3, result.size());
+        assertEquals(300L, result.get(0).getPhenomenonTime());
+    }
+
+    @Test
+    public void keepsTheNewestObservationsSortedByTimestamp() {
+        ObservationHistory history = new ObservationHistory(3);
+
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(observation("temp", 100L, "C", "1"));
+        observations.add(observation("temp", 300L, "C", "3"));
+        observations.add(observation("temp", 200L, "C", "2.50"));
+        observations.add(observation("temp", 400L, "F", "4"));
+        observations.add(observation("temp", 50L, "C", "0"));
+        history.record(observations, "dev");
+
+        List<Observation> result = history.getSince("dev", null, 0L);
+        assertEquals(3, result.size());
+        assertEquals("2.50", result.get(0).getValues().get(0));
+        assertEquals("C", result.get(0).getMeasurementUnit());
+        assertEquals("3", result.get(1).getValues().get(0));
+        assertEquals("F", result.get(2).getMeasurementUnit());
+    }
+
+    @Test
+    public void forgetsRemovedDevices() {
+        ObservationHistory history = new ObservationHistory(4);
+
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(observation("temp", 100L, "C", "1"));
+        history.record(observations, "dev");
+        history.removeDevice("dev");
+
+        assertTrue(history.getSince("dev", null, 0L).isEmpty());
+    }
+
+    private static Observation observation(String property, long time, String unit, String value) {
+        Observation obs = new Observation();
+        obs.setProperty(property);
+        obs.setMeasurementUnit(unit);
+        obs.setPhenomenonTime(time);
+        obs.setValues(new String[] { value });
+        return obs;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObservationJournalTest {
+
+    private File dir;
+    private ObservationJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+
+        journal = new ObservationJournal(dir, 4096, 16384);
+        journal.open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void replaysTheBatchesInOrder() {
+        assertTrue(journal.isEmpty());
+
+        journal.append(batch("temp", 1L, "20.5"), device("dev1"));
+        journal.append(batch("hum", 2L, "40"), device("dev2"));
+        assertFalse(journal.isEmpty());
+
+        Collector collector = new Collector(true);
+        assertEquals(2, journal.replay(10, collector));
+        assertEquals(2, collector.devices.size());
+        assertEquals("dev1", collector.devices.get(0));
+        assertEquals("dev2", collector.devices.get(1));
+        assertEquals("20.5", collector.batches.get(0).get(0).getValues().get(0));
+        assertEquals(2L, collector.batches.get(1).get(0).getPhenomenonTime());
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void aRefusedBatchIsKeptForTheNextReplay() {
+        journal.append(batch("temp", 1L, "1"), device("dev"));
+        journal.append(batch("temp", 2L, "2"), device("dev"));
+
+        assertEquals(0, journal.replay(10, new Collector(false)));
+        assertFalse(journal.isEmpty());
+
+        Collector collector = new Collector(true);
+        assertEquals(2, journal.replay(10, collector));
+        assertEquals("1", collector.batches.get(0).get(0).getValues().get(0));
+    }
+
+    @Test
+    public void replaysAtMostTheRequestedBatches() {
+        for (int i = 0; i < 5; i++) {
+            journal.append(batch("temp", i, String.valueOf(i)), device("dev"));
+        }
+
+        assertEquals(2, journal.replay(2, new Collector(true)));
+        assertEquals(3, journal.replay(10, new Collector(true)));
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void survivesAReopen() {
+        journal.append(batch("temp", 1L, "1"), device("dev"));
+        journal.append(batch("temp", 2L, "2"), device("dev"));
+        assertEquals(1, journal.replay(1, new Collector(true)));
+        journal.close();
+
+        journal = new ObservationJournal(dir, 4096, 16384);
+        journal.open();
+
+        Collector collector = new Collector(true);
+        assertEquals(1, journal.replay(10, collector));
+        assertEquals("2", collector.batches.get(0).get(0).getValues().get(0));
+    }
+
+    @Test
+    public void discardsTheOldestDataWhenFull() {
+        for (int i = 0; i < 200; i++) {
+            journal.append(batch("temp", i, String.valueOf(i)), device("dev"));
+        }
+
+        assertTrue(journal.getDroppedRecords() > 0);
+
+        Collector collector = new Collector(true);
+        journal.replay(1000, collector);
+        List<Observation> last = collector.batches.get(collector.batches.size() - 1);
+        assertEquals("199", last.get(0).getValues().get(0));
+        assertEquals(200, collector.batches.size() + journal.getDroppedRecords());
+    }
+
+    @Test
+    public void doesNotStoreAnythingWhenClosed() {
+        journal.close();
+
+        assertFalse(journal.append(batch("temp", 1L, "1"), device("dev")));
+        assertEquals(1L, journal.getDroppedRecords());
+        assertFalse(journal.hasBacklog());
+    }
+
+    @Test
+    public void theBacklogFlagFollowsTheContent() {
+        assertFalse(journal.hasBacklog());
+
+        journal.append(batch("temp", 1L, "1"), device("dev"));
+        journal.append(batch("temp", 2L, "2"), device("dev"));
+        assertTrue(journal.hasBacklog());
+
+        // Still set while something is left, cleared once drained
+        journal.replay(1, new Collector(true));
+        assertTrue(journal.hasBacklog());
+        journal.replay(10, new Collector(true));
+        assertFalse(journal.hasBacklog());
+
+        // Recovered by a reopen
+        journal.append(batch("temp", 3L, "3"), device("dev"));
+        journal.close();
+        journal = new ObservationJournal(dir, 4096, 16384);
+        journal.open();
+        assertTrue(journal.hasBacklog());
+    }
+
+    private static List<Observation> batch(String property, long time, String value) {
+        Observation obs = new Observation();
+        obs.setProperty(property);
+        obs.setMeasurementUnit("unit");
+        obs.setPhenomenonTime(time);
+        obs.setValues(new String[] { value });
+
+        List<Observation> batch = new ArrayList<Observation>();
+        batch.add(obs);
+        return batch;
+    }
+
+    private static DeviceDescription device(String devId) {
+        return new DeviceDescription(devId, "serial", "model", "manufacturer", Collections.<SensorDescription>emptyList(), devId);
+    }
+
+    private static class Collector implements ObservationJournal.Consumer {
+        private final boolean accept;
+        private final List<String> devices = new ArrayList<String>();
+        private final List<List<Observation>> batches = new ArrayList<List<Observation>>();
+
+        private Collector(boolean accept) {
+            this.accept = accept;
+        }
+
+        @Override
+        public boolean onReplay(List<Observation> observations, DeviceDescription devDesc) {
+            if (!accept) return false;
+
+            devices.add(devDesc.getDeviceID());
+            batches.add(observations);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.Observation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StreamFilterTest {
+
+    private StreamFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new StreamFilter();
+    }
+
+    @Test
+    public void forwardsEverythingWithoutPolicies() {
+        List<Observation> observations = observations("temp", 0L, "1", "2", "3");
+        filter.filter(observations, "dev");
+
+        assertEquals(3, observations.size());
+    }
+
+    @Test
+    public void keepsOneObservationOutOfN() {
+        filter.setPolicy("dev", "temp", new StreamPolicy(3, 0L, 0d, 0d));
+
+        List<Observation> observations = observations("temp", 0L, "1", "2", "3", "4", "5", "6", "7");
+        filter.filter(observations, "dev");
+
+        assertEquals(values("1", "4", "7"), valuesOf(observations));
+    }
+
+    @Test
+    public void respectsTheMinimumInterval() {
+        filter.setPolicy("dev", null, new StreamPolicy(0, 1000L, 0d, 0d));
+
+        List<Observation> observations = new ArrayList<Observation>();
+        observations.add(observation("temp", 1000L, "1"));
+        observations.add(observation("temp", 1500L, "2"));
+        observations.add(observation("temp", 2000L, "3"));
+        observations.add(observation("temp", 2999L, "4"));
+        filter.filter(observations, "dev");
+
+        assertEquals(values("1", "3"), valuesOf(observations));
+    }
+
+    @Test
+    public void appliesTheAbsoluteAndRelativeDeadband() {
+        filter.setPolicy(null, "temp", new StreamPolicy(0, 0L, 0.5d, 0d));
+        filter.setPolicy(null, "hum", new StreamPolicy(0, 0L, 0d, 0.1d));
+
+        List<Observation> temp = observations("temp", 0L, "20.0", "20.4", "20.6", "20.7", "19.9");
+        filter.filter(temp, "dev");
+        assertEquals(values("20.0", "20.6", "19.9"), valuesOf(temp));
+
+        List<Observation> hum = observations("hum", 0L, "50", "54", "56", "60");
+        filter.filter(hum, "dev");
+        assertEquals(values("50", "56"), valuesOf(hum));
+    }
+
+    @Test
+    public void forwardsNonNumericValuesOnlyWhenTheyChange() {
+        filter.setPolicy("dev", "state", new StreamPolicy(0, 0L, 1d, 0d));
+
+        List<Observation> observations = observations("state", 0L, "on", "on", "off", "off", "on");
+        filter.filter(observations, "dev");
+
+        assertEquals(values("on", "off", "on"), valuesOf(observations));
+    }
+
+    @Test
+    public void usesTheMostSpecificPolicy() {
+        filter.setPolicy(null, null, new StreamPolicy(2, 0L, 0d, 0d));
+        filter.setPolicy("dev", "temp", new StreamPolicy(1, 0L, 0d, 0d));
+
+        List<Observation> specific = observations("temp", 0L, "1", "2", "3");
+        filter.filter(specific, "dev");
+        assertEquals(3, specific.size());
+
+        List<Observation> generic = observations("temp", 0L, "1", "2", "3");
+        filter.filter(generic, "other");
+        assertEquals(values("1", "3"), valuesOf(generic));
+    }
+
+    @Test
+    public void removingThePolicyForwardsEverythingAgain() {
+        filter.setPolicy("dev", "temp", new StreamPolicy(10, 0L, 0d, 0d));
+        filter.setPolicy("dev", "temp", null);
+
+        assertNull(filter.getPolicy("dev", "temp"));
+
+        List<Observation> observations = observations("temp", 0L, "1", "2", "3");
+        filter.filter(observations, "dev");
+        assertEquals(3, observations.size());
+    }
+
+    private static Observation observation(String property, long time, String value) {
+        Observation obs = new Observation();
+        obs.setProperty(property);
+        obs.setPhenomenonTime(time);
+        obs.setValues(new String[] { value });
+        return obs;
+    }
+
+    private static List<Observation> observations(String property, long time, String... values) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (String value : values) {
+            observations.add(observation(property, time, value));
+        }
+        return observations;
+    }
+
+    private static List<String> values(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static List<String> valuesOf(List<Observation> observations) {
+        List<String> list = new ArrayList<String>();
+        for (Observation obs : observations) {
+            list.add(obs.getValues().get(0));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.data;
+
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionSizeLimiterTest {
+
+    private final DeviceDescription device = new DeviceDescription("dev", "serial", "model", "manufacturer", Collections.<SensorDescription>emptyList(), "dev");
+    private final TransactionSizeLimiter limiter = new TransactionSizeLimiter();
+    private final List<List<String>> chunks = new ArrayList<List<String>>(); // Values of every chunk sent
+
+    @Test
+    public void sendsASmallBatchInOneTransaction() throws RemoteException {
+        limiter.send(observations(10, 10), device, new Recorder(Integer.MAX_VALUE));
+
+        assertEquals(1, chunks.size());
+        assertEquals(10, chunks.get(0).size());
+    }
+
+    @Test
+    public void splitsALargeBatchInChunksOfTheMaximumSize() throws RemoteException {
+        List<Observation> batch = observations(50, 100);
+        long obsSize = TransactionSizeLimiter.estimateSize(batch.get(0));
+        limiter.setMaxTransactionSize(2048);
+
+        limiter.send(batch, device, new Recorder(Integer.MAX_VALUE));
+
+        assertTrue(chunks.size() > 1);
+        for (List<String> chunk : chunks) {
+            assertTrue(chunk.size() * obsSize <= 2048);
+            assertTrue((chunk.size() + 1) * obsSize > 2048 || chunk == chunks.get(chunks.size() - 1));
+        }
+        assertSentInOrder(50);
+    }
+
+    @Test
+    public void splitsAChunkRejectedAsTooLarge() throws RemoteException {
+        // The estimate lets everything through, but the binder only takes 3 observations at a time
+        limiter.send(observations(20, 10), device, new Recorder(3));
+
+        for (List<String> chunk : chunks) {
+            assertTrue(chunk.size() <= 3);
+        }
+        assertSentInOrder(20);
+    }
+
+    @Test
+    public void dropsOnlyAnObservationThatNeverFits() throws RemoteException {
+        List<Observation> batch = observations(3, 10);
+        batch.get(1).setValues(new String[] { "too large" });
+
+        limiter.send(batch, device, new Recorder(Integer.MAX_VALUE) {
+            @Override
+            public void send(List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+                for (Observation obs : observations) {
+                    if (obs.getValues().get(0).equals("too large")) throw new TransactionTooLargeException();
+                }
+                super.send(observations, devDesc);
+            }
+        });
+
+        List<String> sent = new ArrayList<String>();
+        for (List<String> chunk : chunks) {
+            sent.addAll(chunk);
+        }
+        assertEquals(2, sent.size());
+        assertEquals(batch.get(0).getValues().get(0), sent.get(0));
+        assertEquals(batch.get(2).getValues().get(0), sent.get(1));
+    }
+
+    /**
+     * Check that the chunks carried all the observations, in order.
+     *
+     * @param count The number of observations in the batch
+     */
+    private void assertSentInOrder(int count) {
+        int next = 0;
+        for (List<String> chunk : chunks) {
+            for (String value : chunk) {
+                assertTrue(value.startsWith(next + ":"));
+                next++;
+            }
+        }
+        assertEquals(count, next);
+    }
+
+    private static List<Observation> observations(int count, int valueLength) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder value = new StringBuilder(i + ":");
+            while (value.length() < valueLength) value.append('0');
+
+            Observation obs = new Observation();
+            obs.setProperty("ecg");
+            obs.setValues(new String[] { value.toString() });
+            observations.add(obs);
+        }
+        return observations;
+    }
+
+    /**
+     * Records the values of every chunk sent, failing like the binder for the chunks with too
+     * many observations
+     */
+    private class Recorder implements TransactionSizeLimiter.Sender {
+        private final int maxObservations;
+
+        private Recorder(int maxObservations) {
+            this.maxObservations = maxObservations;
+        }
+
+        @Override
+        public void send(List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+            if (observations.size() > maxObservations) throw new TransactionTooLargeException();
+
+            List<String> values = new ArrayList<String>();
+            for (Observation obs : observations) {
+                values.add(obs.getValues().get(0));
+            }
+            chunks.add(values);
+        }
+    }
+}
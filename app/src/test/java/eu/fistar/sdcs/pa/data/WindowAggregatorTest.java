@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+
+package eu.fistar.sdcs.pa.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WindowAggregatorTest {
+
+    // A device whose clock is far behind the clock of the phone
+    private static final long DEVICE_TIME = 1000000L;
+
+    private final DeviceDescription device = new DeviceDescription("dev", "serial", "model", "manufacturer", Collections.<SensorDescription>emptyList(), "dev");
+    private final List<Long> windows = new ArrayList<Long>();
+    private final List<Observation> aggregates = new ArrayList<Observation>();
+    private WindowAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        aggregator = new WindowAggregator(new WindowAggregator.Listener() {
+            @Override
+            public void onAggregates(long window, List<Observation> closed, DeviceDescription devDesc) {
+                for (Observation obs : closed) {
+                    windows.add(window);
+                    aggregates.add(obs);
+                }
+            }
+        });
+        aggregator.setEnabled(true);
+    }
+
+    @Test
+    public void closesAWindowWhenTheClockOfTheDeviceMovesOn() {
+        aggregator.add(batch("temp", DEVICE_TIME + 100L, "1", DEVICE_TIME + 900L, "3"), device);
+        assertTrue(aggregates.isEmpty());
+
+        aggregator.add(batch("temp", DEVICE_TIME + 1000L, "5"), device);
+        assertEquals(1, aggregates.size());
+        assertEquals(1000L, (long) windows.get(0));
+
+        Observation aggregate = aggregates.get(0);
+        assertEquals(DEVICE_TIME, aggregate.getPhenomenonTime());
+        assertEquals(1000L, aggregate.getDuration());
+        assertEquals("1.0", aggregate.getValues().get(0));
+        assertEquals("3.0", aggregate.getValues().get(1));
+        assertEquals("2.0", aggregate.getValues().get(2));
+        assertEquals("2", aggregate.getValues().get(3));
+    }
+
+    @Test
+    public void theClockOfThePhoneDoesNotCloseTheWindowsOfASkewedDevice() {
+        aggregator.add(batch("temp", DEVICE_TIME + 500L, "1"), device);
+
+        // The device is far behind the phone, but it has just pushed its data
+        aggregator.flushIdle(System.currentTimeMillis());
+        assertTrue(aggregates.isEmpty());
+    }
+
+    @Test
+    public void idleDevicesAreFlushedByTheClockOfThePhone() {
+        aggregator.add(batch("temp", DEVICE_TIME + 500L, "1"), device);
+
+        // After 5 seconds without data the 1s window must be over, the 10s one may not
+        aggregator.flushIdle(System.currentTimeMillis() + 5000L);
+        assertEquals(1, aggregates.size());
+        assertEquals(1000L, (long) windows.get(0));
+
+        aggregator.flushIdle(System.currentTimeMillis() + 70000L);
+        assertEquals(3, aggregates.size());
+    }
+
+    @Test
+    public void lateObservationsDoNotReopenAClosedWindow() {
+        aggregator.add(batch("temp", DEVICE_TIME + 500L, "1"), device);
+        aggregator.add(batch("temp", DEVICE_TIME + 1200L, "2"), device);
+        assertEquals(1, aggregates.size());
+
+        // Late for the first window, which was already reported
+        aggregator.add(batch("temp", DEVICE_TIME + 700L, "100"), device);
+        aggregator.add(batch("temp", DEVICE_TIME + 2100L, "3"), device);
+
+        assertEquals(2, aggregates.size());
+        assertEquals(DEVICE_TIME, aggregates.get(0).getPhenomenonTime());
+        assertEquals("1", aggregates.get(0).getValues().get(3));
+        assertEquals(DEVICE_TIME + 1000L, aggregates.get(1).getPhenomenonTime());
+        assertEquals("2.0", aggregates.get(1).getValues().get(1));
+    }
+
+    @Test
+    public void theDataOfAPropertyClosesTheWindowsOfTheOthers() {
+        aggregator.add(batch("temp", DEVICE_TIME + 500L, "1"), device);
+        aggregator.add(batch("hum", DEVICE_TIME + 1500L, "40"), device);
+
+        assertEquals(1, aggregates.size());
+        assertEquals("temp", aggregates.get(0).getPropertyName());
+    }
+
+    @Test
+    public void ignoresNonNumericValuesAndDisabledAggregation() {
+        aggregator.add(batch("state", DEVICE_TIME + 100L, "on", DEVICE_TIME + 5000L, "off"), device);
+        assertTrue(aggregates.isEmpty());
+
+        aggregator.setEnabled(false);
+        aggregator.add(batch("temp", DEVICE_TIME + 100L, "1", DEVICE_TIME + 5000L, "2"), device);
+        assertTrue(aggregates.isEmpty());
+    }
+
+    private static List<Observation> batch(String property, Object... timesAndValues) {
+        List<Observation> batch = new ArrayList<Observation>();
+
+        for (int i = 0; i < timesAndValues.length; i += 2) {
+            Observation obs = new Observation();
+            obs.setProperty(property);
+            obs.setPhenomenonTime((Long) timesAndValues[i]);
+            obs.setValues(new String[] { (String) timesAndValues[i + 1] });
+            batch.add(obs);
+        }
+
+        return batch;
+    }
+}
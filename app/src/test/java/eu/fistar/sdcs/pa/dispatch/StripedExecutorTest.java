@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.dispatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+    private final StripedExecutor executor = new StripedExecutor("test", 4);
+
+    @After
+    public void tearDown() {
+        executor.shutdown(1000L);
+    }
+
+    @Test
+    public void runsTheTasksOfAKeyInOrder() throws InterruptedException {
+        final List<Integer> dev1 = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> dev2 = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(2000);
+
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            executor.execute("dev1", new Runnable() {
+                @Override
+                public void run() {
+                    dev1.add(n);
+                    done.countDown();
+                }
+            });
+            executor.execute("dev2", new Runnable() {
+                @Override
+                public void run() {
+                    dev2.add(n);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5L, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) dev1.get(i));
+            assertEquals(i, (int) dev2.get(i));
+        }
+    }
+
+    @Test
+    public void aBlockedKeyDoesNotStopTheOtherStripes() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        String blocked = "dev1";
+        String other = keyOnAnotherStripe(blocked);
+
+        executor.execute(blocked, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(other, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5L, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void aFailingTaskDoesNotStopItsStripe() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute("dev1", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Failing on purpose");
+            }
+        });
+        executor.execute("dev1", new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5L, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Find a key that is not on the stripe of the given one, the same way the executor does.
+     *
+     * @param key The key
+     * @return Another key
+     */
+    private static String keyOnAnotherStripe(String key) {
+        int stripe = (key.hashCode() & 0x7fffffff) % 4;
+        for (int i = 0; ; i++) {
+            String other = "dev" + i;
+            if ((other.hashCode() & 0x7fffffff) % 4 != stripe) return other;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2014 Consorzio Roma Ricerche
+ * All rights reserved
+ *
+ * This file is part of the Protocol Adapter software, available at
+ * https://github.com/theIoTLab/ProtocolAdapter .
+ *
+ * The Protocol Adapter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://opensource.org/licenses/LGPL-3.0
+ *
+ * Contact Consorzio Roma Ricerche (protocoladapter@gmail.com)
+ */
+
+package eu.fistar.sdcs.pa.dispatch;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import eu.fistar.sdcs.pa.common.DeviceDescription;
+import eu.fistar.sdcs.pa.common.IProtocolAdapterListener;
+import eu.fistar.sdcs.pa.common.Observation;
+import eu.fistar.sdcs.pa.common.SensorDescription;
+import eu.fistar.sdcs.pa.data.TransactionSizeLimiter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriberRegistryTest {
+
+    private final SubscriberRegistry registry = new SubscriberRegistry();
+    private final TransactionSizeLimiter limiter = new TransactionSizeLimiter();
+    private final DeviceDescription dev1 = device("dev1");
+    private final DeviceDescription dev2 = device("dev2");
+
+    @Test
+    public void deliversToEverySubscriberOnlyWhatItWants() {
+        App all = register();
+        App onlyDev1 = register();
+        App onlyHeartRate = register();
+        registry.setFilter(onlyDev1, new SubscriberFilter(Collections.singletonList("dev1"), null, null));
+        registry.setFilter(onlyHeartRate, new SubscriberFilter(null, null, Collections.singletonList("hr")));
+
+        assertTrue(registry.pushData(observations("temp", "hr"), dev1, limiter));
+        assertTrue(registry.pushData(observations("temp", "hr"), dev2, limiter));
+
+        assertEquals(Arrays.asList("dev1/temp", "dev1/hr", "dev2/temp", "dev2/hr"), all.received);
+        assertEquals(Arrays.asList("dev1/temp", "dev1/hr"), onlyDev1.received);
+        assertEquals(Arrays.asList("dev1/hr", "dev2/hr"), onlyHeartRate.received);
+    }
+
+    @Test
+    public void aNewFilterAppliesToTheDevicesAlreadyRouted() {
+        App app = register();
+        registry.pushData(observations("temp"), dev1, limiter);
+
+        registry.setFilter(app, new SubscriberFilter(Collections.singletonList("dev2"), null, null));
+        registry.pushData(observations("temp"), dev1, limiter);
+        registry.pushData(observations("temp"), dev2, limiter);
+
+        assertEquals(Arrays.asList("dev1/temp", "dev2/temp"), app.received);
+    }
+
+    @Test
+    public void followsTheDeviceAdapterOfTheDevice() {
+        App app = register();
+        registry.setFilter(app, new SubscriberFilter(null, Collections.singletonList("da1"), null));
+
+        registry.setDeviceOwner("dev1", "da1");
+        registry.pushData(observations("temp"), dev1, limiter);
+        registry.setDeviceOwner("dev1", "da2");
+        registry.pushData(observations("hr"), dev1, limiter);
+
+        assertEquals(Collections.singletonList("dev1/temp"), app.received);
+    }
+
+    @Test
+    public void sendsTheEventsOfADeviceToTheInterestedSubscribers() {
+        App onlyDev1 = register();
+        App onlyDev2 = register();
+        registry.setFilter(onlyDev1, new SubscriberFilter(Collections.singletonList("dev1"), null, null));
+        registry.setFilter(onlyDev2, new SubscriberFilter(Collections.singletonList("dev2"), null, null));
+
+        registry.dispatch("dev1", new SubscriberRegistry.Call() {
+            @Override
+            public void call(IProtocolAdapterListener listener) throws RemoteException {
+                listener.deviceDisconnected(dev1);
+            }
+        });
+        registry.dispatch(null, new SubscriberRegistry.Call() {
+            @Override
+            public void call(IProtocolAdapterListener listener) throws RemoteException {
+                listener.onDAConnected("da1");
+            }
+        });
+
+        assertEquals(Arrays.asList("dev1 disconnected", "da1 connected"), onlyDev1.received);
+        assertEquals(Collections.singletonList("da1 connected"), onlyDev2.received);
+    }
+
+    @Test
+    public void removesTheSubscribersThatDie() {
+        App app = register();
+        App other = register();
+
+        app.die();
+        assertFalse(registry.isEmpty());
+        registry.pushData(observations("temp"), dev1, limiter);
+        assertTrue(app.received.isEmpty());
+
+        other.die();
+        assertTrue(registry.isEmpty());
+        assertFalse(registry.pushData(observations("temp"), dev1, limiter));
+    }
+
+    @Test
+    public void removesASubscriberFoundDeadWhilePushing() {
+        App app = register();
+        app.dead = true;
+
+        assertFalse(registry.pushData(observations("temp"), dev1, limiter));
+        assertTrue(registry.isEmpty());
+        assertFalse(app.linked);
+    }
+
+    @Test
+    public void registersAnApplicationOnlyOnce() {
+        App app = register();
+        registry.register(app);
+        registry.pushData(observations("temp"), dev1, limiter);
+
+        assertEquals(Collections.singletonList("dev1/temp"), app.received);
+    }
+
+    private App register() {
+        App app = new App();
+        registry.register(app);
+        assertTrue(app.linked);
+        return app;
+    }
+
+    private static DeviceDescription device(String devId) {
+        return new DeviceDescription(devId, "serial", "model", "manufacturer", Collections.<SensorDescription>emptyList(), devId);
+    }
+
+    private static List<Observation> observations(String... properties) {
+        List<Observation> observations = new ArrayList<Observation>();
+        for (String property : properties) {
+            Observation obs = new Observation();
+            obs.setProperty(property);
+            obs.setValues(new String[] { "1" });
+            observations.add(obs);
+        }
+        return observations;
+    }
+
+    /**
+     * An application living in the same process, whose death can be simulated
+     */
+    private static class App extends IProtocolAdapterListener.Stub {
+        private final List<String> received = new ArrayList<String>();
+        private IBinder.DeathRecipient recipient;
+        private boolean linked = false;
+        private boolean dead = false;
+
+        private void die() {
+            dead = true;
+            recipient.binderDied();
+        }
+
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return this;
+        }
+
+        @Override
+        public void linkToDeath(IBinder.DeathRecipient recipient, int flags) {
+            this.recipient = recipient;
+            linked = true;
+        }
+
+        @Override
+        public boolean unlinkToDeath(IBinder.DeathRecipient recipient, int flags) {
+            linked = false;
+            return true;
+        }
+
+        @Override
+        public void pushData(List<Observation> observations, DeviceDescription devDesc) throws RemoteException {
+            if (dead) throw new DeadObjectException();
+
+            for (Observation obs : observations) {
+                received.add(devDesc.getDeviceID() + "/" + obs.getPropertyName());
+            }
+        }
+
+        @Override
+        public void deviceDisconnected(DeviceDescription devDesc) throws RemoteException {
+            received.add(devDesc.getDeviceID() + " disconnected");
+        }
+
+        @Override
+        public void onDAConnected(String daId) throws RemoteException {
+            received.add(daId + " connected");
+        }
+
+        @Override
+        public void registerDevice(DeviceDescription devDesc, String daId) {
+        }
+
+        @Override
+        public void deregisterDevice(DeviceDescription devDesc) {
+        }
+
+        @Override
+        public void registerDeviceProperties(DeviceDescription devDesc) {
+        }
+
+        @Override
+        public void log(int level, String tag, String message) {
+        }
+    }
+}